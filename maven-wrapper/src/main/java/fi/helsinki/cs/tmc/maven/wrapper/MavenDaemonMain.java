@@ -0,0 +1,172 @@
+package fi.helsinki.cs.tmc.maven.wrapper;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import org.apache.maven.cli.MavenCli;
+
+/**
+ * A long-lived JVM that runs Maven builds on request.
+ * 
+ * <p>
+ * Saves the JVM startup, Maven core class loading and JIT warmup that a
+ * fresh <code>mvn</code> process pays on every run.
+ * Builds run one at a time. See {@link MavenDaemonProtocol} for the protocol.
+ */
+public class MavenDaemonMain {
+    private static final int IDLE_TIMEOUT = 30 * 60 * 1000;
+    
+    public static void main(String[] args) throws Exception {
+        final BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        String token = stdin.readLine();
+        if (token == null || token.isEmpty()) {
+            System.err.println("No token given");
+            System.exit(1);
+        }
+        
+        exitWhenStdinCloses(stdin);
+        
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(IDLE_TIMEOUT);
+        
+        System.out.println(MavenDaemonProtocol.LISTENING_PREFIX + server.getLocalPort());
+        System.out.flush();
+        
+        MavenDaemonMain daemon = new MavenDaemonMain(token);
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketTimeoutException e) {
+                System.exit(0);
+                return;
+            }
+            
+            try {
+                daemon.handle(socket);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+    
+    private static void exitWhenStdinCloses(final BufferedReader stdin) {
+        Thread thread = new Thread("Stdin watcher") {
+            @Override
+            public void run() {
+                try {
+                    while (stdin.readLine() != null) {
+                    }
+                } catch (IOException e) {
+                }
+                System.exit(0);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private final String token;
+    private final MavenCli cli;
+    private final Properties originalSystemProperties;
+    private final PrintStream originalStdout;
+    private final PrintStream originalStderr;
+
+    private MavenDaemonMain(String token) {
+        this.token = token;
+        this.cli = new MavenCli();
+        this.originalSystemProperties = (Properties)System.getProperties().clone();
+        this.originalStdout = System.out;
+        this.originalStderr = System.err;
+    }
+    
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        if (!token.equals(in.readUTF())) {
+            return;
+        }
+        String workDir = in.readUTF();
+        int argCount = in.readInt();
+        String[] args = new String[argCount];
+        for (int i = 0; i < argCount; ++i) {
+            args[i] = in.readUTF();
+        }
+        
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        PrintStream stdout = new PrintStream(new FrameOutputStream(out, MavenDaemonProtocol.FRAME_STDOUT), true, "UTF-8");
+        PrintStream stderr = new PrintStream(new FrameOutputStream(out, MavenDaemonProtocol.FRAME_STDERR), true, "UTF-8");
+        
+        // Some plugins write to System.out directly
+        System.setOut(stdout);
+        System.setErr(stderr);
+        int status;
+        try {
+            status = cli.doMain(args, workDir, stdout, stderr);
+        } catch (Throwable t) {
+            t.printStackTrace(stderr);
+            status = 1;
+        } finally {
+            System.setOut(originalStdout);
+            System.setErr(originalStderr);
+            // -D options are set as system properties and would leak into the next build
+            System.setProperties((Properties)originalSystemProperties.clone());
+            stdout.flush();
+            stderr.flush();
+        }
+        
+        synchronized (out) {
+            out.writeByte(MavenDaemonProtocol.FRAME_EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+    
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        public FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package fi.helsinki.cs.tmc.maven.wrapper;
+
+/**
+ * Constants shared by {@link MavenDaemonMain} and its client in the IDE.
+ * 
+ * <p>
+ * The daemon reads a secret token from the first line of its stdin and
+ * then prints {@link #LISTENING_PREFIX} followed by a port number.
+ * Clients connect to that port on the loopback interface and send
+ * (with {@link java.io.DataOutputStream}):
+ * the token (UTF), the working directory (UTF), the argument count (int)
+ * and the arguments (UTF each).
+ * The daemon answers with frames of a type byte, a length (int) and that many bytes.
+ * An {@link #FRAME_EXIT} frame carries the exit status (int) instead and ends the build.
+ * 
+ * <p>
+ * The daemon exits when its stdin is closed or when it has been idle for a while.
+ */
+public final class MavenDaemonProtocol {
+    public static final String MAIN_CLASS = "fi.helsinki.cs.tmc.maven.wrapper.MavenDaemonMain";
+    public static final String LISTENING_PREFIX = "TMC-MAVEN-DAEMON-LISTENING ";
+    
+    public static final byte FRAME_STDOUT = 1;
+    public static final byte FRAME_STDERR = 2;
+    public static final byte FRAME_EXIT = 3;
+    
+    private MavenDaemonProtocol() {
+    }
+}
@@ -1,6 +1,7 @@
 package fi.helsinki.cs.tmc.actions;
 
 import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import fi.helsinki.cs.tmc.events.TmcEventListener;
 import fi.helsinki.cs.tmc.model.CourseDb;
@@ -26,6 +27,16 @@ public abstract class AbstractExerciseSensitiveAction extends NodeAction {
                 boolean enable = AbstractExerciseSensitiveAction.this.enable(getActivatedNodes());
                 setEnabled(enable);
             }
+            
+            @Override
+            public Delivery getDelivery() {
+                return Delivery.EDT;
+            }
+            
+            @Override
+            public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+                return 200;
+            }
         }, this);
     }
     
@@ -2,9 +2,13 @@ package fi.helsinki.cs.tmc.actions;
 
 import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.data.CourseListUtils;
+import fi.helsinki.cs.tmc.events.TmcEvent;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.events.TmcEventListener;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.LocalExerciseStatus;
 import fi.helsinki.cs.tmc.model.ObsoleteClientException;
+import fi.helsinki.cs.tmc.model.PushEventListener;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.model.TmcSettings;
 import fi.helsinki.cs.tmc.ui.DownloadOrUpdateExercisesDialog;
@@ -12,6 +16,7 @@ import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
 import fi.helsinki.cs.tmc.ui.TmcNotificationDisplayer;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import fi.helsinki.cs.tmc.utilities.Inflector;
 import fi.helsinki.cs.tmc.utilities.TmcStringUtils;
 import java.awt.event.ActionEvent;
@@ -37,11 +42,30 @@ id = "fi.helsinki.cs.tmc.actions.CheckForNewExercisesOrUpdates")
 @Messages("CTL_CheckForNewExercisesOrUpdates=&Download/update exercises")
 public class CheckForNewExercisesOrUpdates extends AbstractAction {
 
+    /**
+     * Starts checking periodically. If the server pushes course changes, they trigger a check
+     * immediately, and while they're arriving the periodic checks are mostly skipped.
+     */
     public static void startTimer() {
-        int interval = 20*60*1000; // 20 minutes
-        javax.swing.Timer timer = new javax.swing.Timer(interval, new CheckForNewExercisesOrUpdates(true, true));
-        timer.setRepeats(true);
-        timer.start();
+        FallbackPollingTimer.start("exercises", FallbackPollingTimer.PushSource.COURSE_CHANGES, new CheckForNewExercisesOrUpdates(true, true));
+        TmcEventBus.getDefault().subscribeStrongly(new TmcEventListener() {
+            public void receive(PushEventListener.CourseChangedEvent e) {
+                Course current = CourseDb.getInstance().getCurrentCourse();
+                if (current != null && current.getName().equals(e.courseName)) {
+                    new CheckForNewExercisesOrUpdates(true, true).run();
+                }
+            }
+
+            @Override
+            public Delivery getDelivery() {
+                return Delivery.EDT;
+            }
+
+            @Override
+            public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+                return 5000; // A course update often pushes many messages at once
+            }
+        });
     }
     
     private static final TmcNotificationDisplayer.SingletonToken notifierToken = TmcNotificationDisplayer.createSingletonToken();
@@ -85,7 +109,8 @@ public class CheckForNewExercisesOrUpdates extends AbstractAction {
             return;
         }
         
-        BgTask.start("Checking for new exercises", serverAccess.getDownloadingCourseListTask(), new BgTaskListener<List<Course>>() {
+        BgTaskScheduler.Lane lane = backgroundCheck ? BgTaskScheduler.Lane.BACKGROUND : BgTaskScheduler.Lane.INTERACTIVE;
+        BgTask.start("Checking for new exercises", lane, serverAccess.getDownloadingCourseListTask(), new BgTaskListener<List<Course>>() {
             @Override
             public void bgTaskReady(List<Course> receivedCourseList) {
                 Course receivedCourse = CourseListUtils.getCourseByName(receivedCourseList, currentCourse.getName());
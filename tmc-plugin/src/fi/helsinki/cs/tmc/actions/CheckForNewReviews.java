@@ -1,16 +1,15 @@
 package fi.helsinki.cs.tmc.actions;
 
 import fi.helsinki.cs.tmc.data.Course;
-import fi.helsinki.cs.tmc.data.Review;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ReviewDb;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
@@ -35,10 +34,8 @@ public class CheckForNewReviews implements ActionListener, Runnable {
     public static void startTimer() {
         if (instance == null) {
             instance = new CheckForNewReviews(true, false, false);
-            int interval = 20*60*1000; // 20 minutes
-            javax.swing.Timer timer = new javax.swing.Timer(interval, instance);
-            timer.setRepeats(true);
-            timer.start();
+            // New reviews are normally pushed (see ReviewEventListener)
+            FallbackPollingTimer.start("reviews", FallbackPollingTimer.PushSource.REVIEWS, instance);
             SwingUtilities.invokeLater(instance);
         } else {
             log.warning("CheckForNewReviews.startTimer() called twice");
@@ -89,10 +86,18 @@ public class CheckForNewReviews implements ActionListener, Runnable {
             return;
         }
         
-        BgTask.start("Checking for code reviews", serverAccess.getDownloadingReviewListTask(course), new BgTaskListener<List<Review>>() {
+        BgTaskScheduler.Lane lane = beQuiet ? BgTaskScheduler.Lane.BACKGROUND : BgTaskScheduler.Lane.INTERACTIVE;
+        final String reviewsUrl = course.getReviewsUrl();
+        String etag = reviewDb.getReviewListETag(reviewsUrl);
+        BgTask.start("Checking for code reviews", lane, serverAccess.getDownloadingReviewListTask(course, etag), new BgTaskListener<ServerAccess.ReviewListDownload>() {
             @Override
-            public void bgTaskReady(List<Review> result) {
-                boolean newReviews = reviewDb.setReviews(result);
+            public void bgTaskReady(ServerAccess.ReviewListDownload result) {
+                boolean newReviews;
+                if (result.reviews != null) {
+                    newReviews = reviewDb.setReviews(result.reviews, reviewsUrl, result.etag);
+                } else {
+                    newReviews = reviewDb.notifyAboutUnreadReviews();
+                }
                 if (!newReviews && notifyAboutNoNewReviews) {
                     dialogs.displayMessage("You have no unread code reviews.");
                 }
@@ -2,20 +2,22 @@ package fi.helsinki.cs.tmc.actions;
 
 import fi.helsinki.cs.tmc.data.Exercise;
 import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.ExerciseManifestCache;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
-import fi.helsinki.cs.tmc.utilities.AggregatingBgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BatchedBgTaskListener;
 import fi.helsinki.cs.tmc.utilities.BgTask;
+import fi.helsinki.cs.tmc.utilities.BgTaskBatch;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import fi.helsinki.cs.tmc.utilities.zip.NbProjectUnzipper;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.SwingUtilities;
 
 /**
  * Downloads and opens the given exercises in the background.
@@ -40,38 +42,33 @@ public class DownloadExercisesAction {
     }
 
     public void run() {
-        final AggregatingBgTaskListener<TmcProjectInfo> aggregator =
-                new AggregatingBgTaskListener<TmcProjectInfo>(exercisesToDownload.size(), whenAllDownloadsFinished);
+        final BgTaskBatch<DownloadedProject> batch =
+                new BgTaskBatch<DownloadedProject>(new DownloadBatchListener(exercisesToDownload.size()));
 
         for (final Exercise exercise : exercisesToDownload) {
-            startDownloading(exercise, aggregator);
+            startDownloading(exercise, batch);
         }
     }
 
-    private void startDownloading(final Exercise exercise, final BgTaskListener<TmcProjectInfo> listener) {
-        BgTask.start("Downloading " + exercise.getName(), serverAccess.getDownloadingExerciseZipTask(exercise), new BgTaskListener<byte[]>() {
+    private void startDownloading(final Exercise exercise, final BgTaskListener<DownloadedProject> listener) {
+        BgTask.start("Downloading " + exercise.getName(), BgTaskScheduler.Lane.BULK, serverAccess.getDownloadingExerciseZipTask(exercise), new BgTaskListener<byte[]>() {
             @Override
             public void bgTaskReady(final byte[] zipData) {
-                BgTask.start("Extracting project", new Callable<TmcProjectInfo>() {
+                BgTask.start("Extracting project", BgTaskScheduler.Lane.BULK, new Callable<DownloadedProject>() {
                     @Override
-                    public TmcProjectInfo call() throws Exception {
+                    public DownloadedProject call() throws Exception {
                         NbProjectUnzipper unzipper = new NbProjectUnzipper();
                         unzipper.unzipProject(zipData, projectMediator.getProjectDirForExercise(exercise));
+                        if (exercise.getManifestUrl() != null) {
+                            ExerciseManifestCache.getInstance().setFileHashes(exercise.getKey(), unzipper.computeFileHashes(zipData));
+                        }
                         TmcProjectInfo proj = projectMediator.tryGetProjectForExercise(exercise);
 
                         if (proj == null) {
                             throw new RuntimeException("Failed to open project for exercise " + exercise.getName());
                         }
 
-                        // Need to invoke courseDb in swing thread to avoid races
-                        SwingUtilities.invokeAndWait(new Runnable() {
-                            @Override
-                            public void run() {
-                                courseDb.exerciseDownloaded(exercise);
-                            }
-                        });
-
-                        return proj;
+                        return new DownloadedProject(exercise, proj);
                     }
                 }, listener);
             }
@@ -87,21 +84,57 @@ public class DownloadExercisesAction {
             }
         });
     }
-
-    private BgTaskListener<Collection<TmcProjectInfo>> whenAllDownloadsFinished = new BgTaskListener<Collection<TmcProjectInfo>>() {
-        @Override
-        public void bgTaskReady(Collection<TmcProjectInfo> projects) {
-            projectMediator.openProjects(projects);
+    
+    private static class DownloadedProject {
+        public final Exercise exercise;
+        public final TmcProjectInfo project;
+
+        public DownloadedProject(Exercise exercise, TmcProjectInfo project) {
+            this.exercise = exercise;
+            this.project = project;
         }
+    }
 
-        @Override
-        public void bgTaskCancelled() {
+    /**
+     * Marks downloaded exercises in batches and opens the projects once all
+     * downloads have finished. Nothing is opened if any download fails.
+     */
+    private class DownloadBatchListener implements BatchedBgTaskListener<DownloadedProject> {
+        private final int expectedCount;
+        private int finishedCount;
+        private boolean aborted;
+        private List<TmcProjectInfo> projects;
+
+        public DownloadBatchListener(int expectedCount) {
+            this.expectedCount = expectedCount;
+            this.finishedCount = 0;
+            this.aborted = false;
+            this.projects = new ArrayList<TmcProjectInfo>(expectedCount);
         }
-
+        
         @Override
-        public void bgTaskFailed(Throwable ex) {
-            logger.log(Level.INFO, "Failed to download exercise file.", ex);
-            dialogs.displayError("Failed to download exercises.\n" + ServerErrorHelper.getServerExceptionMsg(ex));
+        public void bgTasksFinished(List<DownloadedProject> results, List<Throwable> failures, int cancelledCount) {
+            List<Exercise> exercises = new ArrayList<Exercise>(results.size());
+            for (DownloadedProject downloaded : results) {
+                exercises.add(downloaded.exercise);
+                projects.add(downloaded.project);
+            }
+            courseDb.exercisesDownloaded(exercises);
+            
+            finishedCount += results.size() + failures.size() + cancelledCount;
+            
+            if (!failures.isEmpty() && !aborted) {
+                Throwable ex = failures.get(0);
+                logger.log(Level.INFO, "Failed to download exercise file.", ex);
+                dialogs.displayError("Failed to download exercises.\n" + ServerErrorHelper.getServerExceptionMsg(ex));
+            }
+            if (!failures.isEmpty() || cancelledCount > 0) {
+                aborted = true;
+            }
+            
+            if (finishedCount == expectedCount && !aborted) {
+                projectMediator.openProjects(projects);
+            }
         }
-    };
+    }
 }
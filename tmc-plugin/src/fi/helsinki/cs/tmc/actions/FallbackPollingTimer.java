@@ -0,0 +1,77 @@
+package fi.helsinki.cs.tmc.actions;
+
+import fi.helsinki.cs.tmc.model.PushEventListener;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a periodic server check unless push events have kept us up to date since the last one.
+ *
+ * <p>
+ * While the relevant push channel is connected, the check runs only every
+ * {@link #FALLBACK_INTERVAL} in case some push message got lost.
+ */
+class FallbackPollingTimer implements ActionListener {
+    private static final Logger log = Logger.getLogger(FallbackPollingTimer.class.getName());
+
+    static final int POLL_INTERVAL = 20*60*1000; // 20 minutes
+    static final long FALLBACK_INTERVAL = 3*60*60*1000; // 3 hours
+
+    /**
+     * What the push events must cover for a check to be skipped.
+     */
+    public enum PushSource {
+        /** Any healthy push connection, which always delivers new reviews. */
+        REVIEWS,
+        /** Only a connection to a server that says it pushes course changes. */
+        COURSE_CHANGES
+    }
+
+    /**
+     * Starts a timer running the check in the EDT.
+     */
+    public static void start(String name, PushSource pushSource, ActionListener check) {
+        javax.swing.Timer timer = new javax.swing.Timer(POLL_INTERVAL, new FallbackPollingTimer(name, pushSource, check));
+        timer.setRepeats(true);
+        timer.start();
+    }
+
+    private final String name;
+    private final PushSource pushSource;
+    private final ActionListener check;
+    private long lastCheckTime;
+
+    private FallbackPollingTimer(String name, PushSource pushSource, ActionListener check) {
+        this.name = name;
+        this.pushSource = pushSource;
+        this.check = check;
+        this.lastCheckTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckTime < FALLBACK_INTERVAL && isPushedSince(lastCheckTime)) {
+            log.log(Level.FINE, "Skipping {0} since push events are arriving", name);
+            Metrics.getDefault().counter("polling." + name + ".skipped").increment();
+            return;
+        }
+        lastCheckTime = now;
+        Metrics.getDefault().counter("polling." + name + ".runs").increment();
+        check.actionPerformed(e);
+    }
+
+    private boolean isPushedSince(long timeMillis) {
+        switch (pushSource) {
+            case REVIEWS:
+                return PushEventListener.hasBeenConnectedSince(timeMillis);
+            case COURSE_CHANGES:
+                return PushEventListener.hasBeenReceivingCourseChangesSince(timeMillis);
+            default:
+                throw new IllegalStateException("Unknown push source: " + pushSource);
+        }
+    }
+}
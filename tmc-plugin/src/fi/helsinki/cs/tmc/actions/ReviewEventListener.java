@@ -10,6 +10,7 @@ import fi.helsinki.cs.tmc.ui.CodeReviewDialog;
 import fi.helsinki.cs.tmc.ui.TmcNotificationDisplayer;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
@@ -39,14 +40,20 @@ public class ReviewEventListener extends TmcEventListener {
     }
 
     private ServerAccess serverAccess;
+    private ReviewDb reviewDb;
     private TmcNotificationDisplayer notifier;
     
     ReviewEventListener() {
         this.serverAccess = new ServerAccess();
+        this.reviewDb = ReviewDb.getInstance();
         this.notifier = TmcNotificationDisplayer.getDefault();
     }
     
     public void receive(PushEventListener.ReviewAvailableEvent e) throws Throwable {
+        if (reviewDb.isKnownAndNotifiedAbout(e.exerciseName, e.url)) {
+            log.log(Level.FINE, "Already notified about review of {0}", e.exerciseName);
+            return;
+        }
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -106,11 +113,12 @@ public class ReviewEventListener extends TmcEventListener {
         dialog.setVisible(true);
     }
     
-    private void markAsRead(Review review) {
+    private void markAsRead(final Review review) {
         CancellableCallable<Void> task = serverAccess.getMarkingReviewAsReadTask(review, true);
-        BgTask.start("Marking review as read", task, new BgTaskListener<Void>() {
+        BgTask.start("Marking review as read", BgTaskScheduler.Lane.BACKGROUND, task, new BgTaskListener<Void>() {
             @Override
             public void bgTaskReady(Void result) {
+                reviewDb.markAsRead(review);
             }
 
             @Override
@@ -8,32 +8,43 @@ import fi.helsinki.cs.tmc.data.serialization.cresultparser.CTestResultParser;
 import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.MakeBuildStamps;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
+import fi.helsinki.cs.tmc.model.TestDurationHistory;
+import fi.helsinki.cs.tmc.model.TestScanCache;
 import fi.helsinki.cs.tmc.model.TmcSettings;
 import fi.helsinki.cs.tmc.testrunner.StackTraceSerializer;
 import fi.helsinki.cs.tmc.testrunner.TestCase;
 import fi.helsinki.cs.tmc.testrunner.TestCaseList;
 import fi.helsinki.cs.tmc.testscanner.TestMethod;
-import fi.helsinki.cs.tmc.testscanner.TestScanner;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
 import fi.helsinki.cs.tmc.ui.TestResultDisplayer;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
+import fi.helsinki.cs.tmc.utilities.TestShardPlanner;
 import fi.helsinki.cs.tmc.utilities.maven.MavenRunBuilder;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import fi.helsinki.cs.tmc.utilities.process.ProcessResult;
 import fi.helsinki.cs.tmc.utilities.process.ProcessRunner;
+import fi.helsinki.cs.tmc.utilities.process.ProcessRunnerGroup;
+import fi.helsinki.cs.tmc.utilities.valrindmemorytest.ValgrindProbe;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tools.ant.module.api.support.ActionUtils;
@@ -46,6 +57,7 @@ import org.openide.execution.ExecutorTask;
 import org.openide.filesystems.FileObject;
 import org.openide.filesystems.FileUtil;
 import org.openide.nodes.Node;
+import org.openide.util.Cancellable;
 import org.openide.util.NbBundle.Messages;
 import org.openide.windows.IOProvider;
 import org.openide.windows.InputOutput;
@@ -57,6 +69,15 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
     private static final String ERROR_MSG_LOCALE_SETTING = "fi.helsinki.cs.tmc.edutestutils.defaultLocale";
     private static final Logger log = Logger.getLogger(RunTestsLocallyAction.class.getName());
 
+    /**
+     * Setting this system property to a number overrides the number of parallel make jobs.
+     */
+    public static final String MAKE_JOBS_PROPERTY = "tmc.make.jobs";
+    /**
+     * Setting this system property to "true" compiles C exercises through ccache.
+     */
+    public static final String MAKE_CCACHE_PROPERTY = "tmc.make.ccache";
+
     public static class InvokedEvent implements TmcEvent {
 
         public final TmcProjectInfo projectInfo;
@@ -72,6 +93,11 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
     private ConvenientDialogDisplayer dialogDisplayer;
     private SubmitExerciseAction submitAction;
     private TmcEventBus eventBus;
+    private TestDurationHistory durationHistory;
+    private MakeBuildStamps makeBuildStamps;
+
+    // Valgrind runs not yet finished, by project directory. Only used in the EDT.
+    private static final Map<String, Cancellable> pendingValgrindRuns = new HashMap<String, Cancellable>();
 
     public RunTestsLocallyAction() {
         this.settings = TmcSettings.getDefault();
@@ -81,6 +107,8 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         this.dialogDisplayer = ConvenientDialogDisplayer.getDefault();
         this.submitAction = new SubmitExerciseAction();
         this.eventBus = TmcEventBus.getDefault();
+        this.durationHistory = TestDurationHistory.getInstance();
+        this.makeBuildStamps = MakeBuildStamps.getInstance();
 
         putValue("noIconInMenu", Boolean.TRUE);
     }
@@ -105,25 +133,19 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         for (final Project project : projects) {
             final TmcProjectInfo projectInfo = projectMediator.wrapProject(project);
             eventBus.post(new InvokedEvent(projectInfo));
-            BgTask.start("Compiling project", startCompilingProject(projectInfo), new BgTaskListener<Integer>() {
-                @Override
-                public void bgTaskReady(Integer result) {
-                    if (result == 0) {
-                        startRunningTests(projectInfo);
-                    } else {
-                        dialogDisplayer.displayError("The code did not compile.");
-                    }
-                }
-
-                @Override
-                public void bgTaskFailed(Throwable ex) {
-                    dialogDisplayer.displayError("Failed to compile the code.");
-                }
-
-                @Override
-                public void bgTaskCancelled() {
-                }
-            });
+            switch (projectInfo.getProjectType()) {
+                case JAVA_SIMPLE:
+                    startCompilingAndRunningSimpleProjectTests(projectInfo);
+                    break;
+                case JAVA_MAVEN:
+                    startCompilingAndRunningMavenProjectTests(projectInfo);
+                    break;
+                case MAKEFILE:
+                    startCompilingAndRunningMakefileProjectTests(projectInfo);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown project type: " + projectInfo.getProjectType());
+            }
         }
     }
 
@@ -136,17 +158,72 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         };
     }
 
-    private Callable<Integer> startCompilingProject(TmcProjectInfo projectInfo) {
-        switch (projectInfo.getProjectType()) {
-            case JAVA_SIMPLE:
-                return startCompilingAntProject(projectInfo);
-            case JAVA_MAVEN:
-                return startCompilingMavenProject(projectInfo);
-            case MAKEFILE:
-                return startCompilingMakefileProject(projectInfo);
-            default:
-                throw new IllegalArgumentException("Unknown project type: " + projectInfo.getProjectType());
+    /**
+     * Compiles with Ant, scans the test sources and runs the tests in one background task.
+     */
+    private void startCompilingAndRunningSimpleProjectTests(final TmcProjectInfo projectInfo) {
+        final FileObject testDir = findTestDir(projectInfo);
+        if (testDir == null) {
+            dialogDisplayer.displayError("No test directory in project");
+            return;
         }
+
+        final Callable<Integer> compilation = startCompilingAntProject(projectInfo);
+
+        // The scanner resolves classes through the build output, so it must wait for the compiler
+        Callable<List<TestMethod>> compileAndScan = new Callable<List<TestMethod>>() {
+            @Override
+            public List<TestMethod> call() throws Exception {
+                if (compilation.call() != 0) {
+                    return null;
+                }
+                return findProjectTests(projectInfo, testDir);
+            }
+        };
+
+        BgTask.start("Compiling project", compileAndScan, new BgTaskListener<List<TestMethod>>() {
+            @Override
+            public void bgTaskReady(List<TestMethod> tests) {
+                if (tests != null) {
+                    startRunningSimpleProjectTests(projectInfo, testDir, tests);
+                } else {
+                    dialogDisplayer.displayError("The code did not compile.");
+                }
+            }
+
+            @Override
+            public void bgTaskFailed(Throwable ex) {
+                dialogDisplayer.displayError("Failed to compile the code.");
+            }
+
+            @Override
+            public void bgTaskCancelled() {
+            }
+        });
+    }
+
+    private void startCompilingAndRunningMakefileProjectTests(final TmcProjectInfo projectInfo) {
+        // Make would rebuild the binary valgrind is running and both write the same results file
+        cancelPendingValgrindRun(projectInfo);
+        BgTask.start("Compiling project", startCompilingMakefileProject(projectInfo), new BgTaskListener<Integer>() {
+            @Override
+            public void bgTaskReady(Integer result) {
+                if (result == 0) {
+                    startRunningMakefileProjectTests(projectInfo);
+                } else {
+                    dialogDisplayer.displayError("The code did not compile.");
+                }
+            }
+
+            @Override
+            public void bgTaskFailed(Throwable ex) {
+                dialogDisplayer.displayError("Failed to compile the code.");
+            }
+
+            @Override
+            public void bgTaskCancelled() {
+            }
+        });
     }
 
     private Callable<Integer> startCompilingAntProject(TmcProjectInfo projectInfo) {
@@ -164,133 +241,117 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         }
     }
 
+    /**
+     * Runs <code>make test</code> in parallel, or nothing if the sources haven't changed
+     * since the last successful build.
+     */
     private Callable<Integer> startCompilingMakefileProject(TmcProjectInfo projectInfo) {
-        /* This solution is pretty much copied from the pre-existing Maven option.
-         * I have no idea how well it will work, but this is a start.
-         * --kviiri */
         Project project = projectInfo.getProject();
         FileObject makeFile = project.getProjectDirectory().getFileObject("Makefile");
-        File workDir = projectInfo.getProjectDirAsFile();
+        final File workDir = projectInfo.getProjectDirAsFile();
+        final File testExecutable = new File(workDir, "test" + File.separator + "test");
 
         if (makeFile == null) {
             throw new RuntimeException("Project has no Makefile");
         }
-        String[] command = {"make", "test"};
 
         final InputOutput io = IOProvider.getDefault().getIO(projectInfo.getProjectName(), false);
-        final ProcessRunner runner = new ProcessRunner(command, workDir, io);
+        final ProcessRunner runner = new ProcessRunner(makeTestCommand(), workDir, io);
         return new Callable<Integer>() {
             @Override
             public Integer call() throws Exception {
-                try {
-                    ProcessResult result = runner.call();
-                    int ret = result.statusCode;
-                    if (ret != 0) {
-                        io.select();
-                    }
-                    return ret;
-                } catch (Exception ex) {
-                    io.select();
-                    throw ex;
+                Metrics metrics = Metrics.getDefault();
+                String sourceHash = makeBuildStamps.hashSources(workDir);
+                if (makeBuildStamps.isUpToDate(workDir, sourceHash, testExecutable)) {
+                    metrics.counter("make.skipped-builds").increment();
+                    return 0;
                 }
-            }
-        };
-
-    }
-
-    private Callable<Integer> startCompilingMavenProject(TmcProjectInfo projectInfo) {
-        File projectDir = projectInfo.getProjectDirAsFile();
 
-        String goal = "test-compile";
-        final InputOutput inOut = IOProvider.getDefault().getIO(projectInfo.getProjectName(), false);
-
-        final ProcessRunner runner = new MavenRunBuilder()
-                .setProjectDir(projectDir)
-                .addGoal(goal)
-                .setIO(inOut)
-                .createProcessRunner();
-
-        return new Callable<Integer>() {
-            @Override
-            public Integer call() throws Exception {
+                long startTime = System.nanoTime();
                 try {
                     ProcessResult result = runner.call();
                     int ret = result.statusCode;
-                    if (ret != 0) {
-                        inOut.select();
+                    if (ret == 0) {
+                        makeBuildStamps.markBuilt(workDir, sourceHash, testExecutable);
+                    } else {
+                        makeBuildStamps.forget(workDir);
+                        io.select();
                     }
+                    metrics.recordSince("make.build", startTime);
                     return ret;
                 } catch (Exception ex) {
-                    inOut.select();
+                    makeBuildStamps.forget(workDir);
+                    io.select();
                     throw ex;
                 }
             }
         };
     }
 
-    private void startRunningTests(TmcProjectInfo projectInfo) {
-        switch (projectInfo.getProjectType()) {
-            case JAVA_SIMPLE:
-                startRunningSimpleProjectTests(projectInfo);
-                break;
-            case JAVA_MAVEN:
-                startRunningMavenProjectTests(projectInfo);
-                break;
-            case MAKEFILE:
-                startRunningMakefileProjectTests(projectInfo, true);
-                break;
-            default:
-                throw new IllegalArgumentException("Unknown project type: " + projectInfo.getProjectType());
+    private String[] makeTestCommand() {
+        List<String> command = new ArrayList<String>();
+        command.add("make");
+        Integer jobs = Integer.getInteger(MAKE_JOBS_PROPERTY);
+        if (jobs == null) {
+            jobs = Runtime.getRuntime().availableProcessors();
         }
-    }
-
-    private void startRunningSimpleProjectTests(TmcProjectInfo projectInfo) {
-        FileObject testDir = findTestDir(projectInfo);
-        if (testDir == null) {
-            dialogDisplayer.displayError("No test directory in project");
-            return;
+        command.add("-j" + Math.max(1, jobs));
+        if (Boolean.getBoolean(MAKE_CCACHE_PROPERTY)) {
+            command.add("CC=ccache gcc");
         }
-
-        List<TestMethod> tests = findProjectTests(projectInfo, testDir);
-        startRunningSimpleProjectTests(projectInfo, testDir, tests);
+        command.add("test");
+        return command.toArray(new String[command.size()]);
     }
 
-    private void startRunningMakefileProjectTests(final TmcProjectInfo projectInfo, final boolean withValgrind) {
+    /**
+     * Runs the tests natively and shows the results, then reruns them under valgrind
+     * in the background to add the memory checks.
+     */
+    private void startRunningMakefileProjectTests(final TmcProjectInfo projectInfo) {
         final File testDir = projectInfo.getProjectDirAsFile();
-        String[] command;
-        if (withValgrind) {
-            command = new String[]{"valgrind", "--log-file=valgrind.log", "."
-                + File.separatorChar + "test" + File.separatorChar + "test"};
-        } else {
-            //Todo: why does this need testDir.getAbsolutePath()? --kviiri
-            command = new String[]{testDir.getAbsolutePath()
-                + File.separatorChar + "test" + File.separatorChar + "test"};
-        }
-        ProcessRunner runner = new ProcessRunner(command, testDir, IOProvider.getDefault()
+        //Todo: why does this need testDir.getAbsolutePath()? --kviiri
+        String[] command = {testDir.getAbsolutePath()
+            + File.separatorChar + "test" + File.separatorChar + "test"};
+        final ProcessRunner runner = new ProcessRunner(command, testDir, IOProvider.getDefault()
                 .getIO(projectInfo.getProjectName(), false));
+        final ValgrindProbe valgrindProbe = ValgrindProbe.getDefault();
+
+        CancellableCallable<ProcessResult> runAndProbe = new CancellableCallable<ProcessResult>() {
+            @Override
+            public ProcessResult call() throws Exception {
+                ProcessResult result = runner.call();
+                valgrindProbe.isAvailable(); // So that it's known without blocking below
+                return result;
+            }
 
-        BgTask.start(
-                "Running tests", runner, new BgTaskListener<ProcessResult>() {
+            @Override
+            public boolean cancel() {
+                return runner.cancel();
+            }
+        };
+
+        BgTask.start("Running tests", runAndProbe, new BgTaskListener<ProcessResult>() {
             @Override
             public void bgTaskReady(ProcessResult result) {
-                CTestResultParser parser = new CTestResultParser(
-                        new File(testDir.getAbsolutePath() + "/tmc_test_results.xml"),
-                        withValgrind ? new File(testDir.getAbsolutePath() + "/valgrind.log") : null,
-                        null);
+                boolean withValgrind = valgrindProbe.isAvailable();
+                CTestResultParser parser = new CTestResultParser(new File(testDir, "tmc_test_results.xml"), null, null);
+                parser.setWarnIfNoValgrind(!withValgrind);
                 try {
                     parser.parseTestOutput();
                 } catch (Exception e) {
                     dialogDisplayer.displayError("Failed to read test results:\n" + e.getClass() + " " + e.getMessage());
                     return;
                 }
-                boolean canSubmit = submitAction.enable(projectInfo.getProject());
                 List<TestCaseResult> results = parser.getTestCaseResults();
-                resultDisplayer.showLocalRunResult(results, canSubmit, new Runnable() {
-                    @Override
-                    public void run() {
-                        submitAction.performAction(projectInfo.getProject());
-                    }
-                });
+
+                if (withValgrind) {
+                    // Submitting is offered only once the memory checks are done
+                    resultDisplayer.startLocalRun(results.size());
+                    resultDisplayer.showPartialLocalRunResult(results);
+                    startRunningMakefileProjectTestsWithValgrind(projectInfo, results);
+                } else {
+                    showTestResults(projectInfo, results);
+                }
             }
 
             @Override
@@ -299,21 +360,117 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
 
             @Override
             public void bgTaskFailed(Throwable ex) {
-                if (withValgrind) {
-                    startRunningMakefileProjectTests(projectInfo, false);
-                } else {
-                    dialogDisplayer.displayError("Failed to run tests:\n" + ex.getMessage());
+                dialogDisplayer.displayError("Failed to run tests:\n" + ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Reruns the tests under valgrind and replaces the given results with ones that include its output.
+     * If valgrind fails, the given results are shown as they are.
+     */
+    private void startRunningMakefileProjectTestsWithValgrind(final TmcProjectInfo projectInfo, final List<TestCaseResult> nativeResults) {
+        final File testDir = projectInfo.getProjectDirAsFile();
+        final String key = projectInfo.getProjectDirAbsPath();
+        String[] command = {"valgrind", "--log-file=valgrind.log", "."
+            + File.separatorChar + "test" + File.separatorChar + "test"};
+        final ProcessRunner runner = new ProcessRunner(command, testDir, null);
+
+        final CancellableCallable<List<TestCaseResult>> runAndParse = new CancellableCallable<List<TestCaseResult>>() {
+            @Override
+            public List<TestCaseResult> call() throws Exception {
+                // Files left over from earlier runs must not pass for this run's output
+                File resultsFile = new File(testDir, "tmc_test_results.xml");
+                File valgrindLog = new File(testDir, "valgrind.log");
+                resultsFile.delete();
+                valgrindLog.delete();
+
+                ProcessResult result = runner.call();
+                if (!valgrindLog.isFile() || isValgrindError(result)) {
+                    throw new IOException("Valgrind failed with exit code " + result.statusCode + ":\n" + result.errorOutput);
+                }
+                if (!resultsFile.isFile()) {
+                    throw new IOException("The tests wrote no results under valgrind. Exit code " + result.statusCode);
+                }
+
+                CTestResultParser parser = new CTestResultParser(resultsFile, valgrindLog, null);
+                parser.parseTestOutput();
+                return parser.getTestCaseResults();
+            }
+
+            @Override
+            public boolean cancel() {
+                return runner.cancel();
+            }
+        };
+
+        BgTask.start("Checking memory with valgrind", BgTaskScheduler.Lane.BULK, runAndParse, new BgTaskListener<List<TestCaseResult>>() {
+            @Override
+            public void bgTaskReady(List<TestCaseResult> results) {
+                if (finishValgrindRun(key, runAndParse)) {
+                    showTestResults(projectInfo, results);
+                }
+            }
+
+            @Override
+            public void bgTaskCancelled() {
+                if (finishValgrindRun(key, runAndParse)) {
+                    showTestResults(projectInfo, nativeResults);
+                }
+            }
+
+            @Override
+            public void bgTaskFailed(Throwable ex) {
+                if (finishValgrindRun(key, runAndParse)) {
+                    log.log(Level.INFO, "Valgrind run failed. Showing results without memory checks.", ex);
+                    showTestResults(projectInfo, nativeResults);
                 }
             }
         });
+        pendingValgrindRuns.put(key, runAndParse);
+    }
+
+    /**
+     * Valgrind reports its own failures, such as being unable to start the
+     * program, on stderr with a "valgrind:" prefix. The tests' output goes
+     * to the same stream but is not expected to use that prefix.
+     */
+    private static boolean isValgrindError(ProcessResult result) {
+        for (String line : result.errorOutput.split("\n")) {
+            if (line.startsWith("valgrind:")) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    private void cancelPendingValgrindRun(TmcProjectInfo projectInfo) {
+        Cancellable pending = pendingValgrindRuns.remove(projectInfo.getProjectDirAbsPath());
+        if (pending != null) {
+            log.log(Level.INFO, "Cancelling valgrind run of {0} since the tests were started again", projectInfo.getProjectName());
+            pending.cancel();
+            resultDisplayer.abortLocalRun();
+        }
     }
 
-    private void startRunningMavenProjectTests(final TmcProjectInfo projectInfo) {
+    /**
+     * Returns false if the run was superseded by a newer one, whose results must not be overwritten.
+     */
+    private boolean finishValgrindRun(String key, Cancellable run) {
+        if (pendingValgrindRuns.get(key) != run) {
+            return false;
+        }
+        pendingValgrindRuns.remove(key);
+        return true;
+    }
+
+    /**
+     * Compiles and runs the tests in one Maven build.
+     */
+    private void startCompilingAndRunningMavenProjectTests(final TmcProjectInfo projectInfo) {
         final File projectDir = projectInfo.getProjectDirAsFile();
-        String goal = MAVEN_TEST_RUN_GOAL;
         Map<String, String> props = new HashMap<String, String>();
-        InputOutput inOut = getIoTab();
+        final InputOutput inOut = getIoTab();
 
         List<String> jvmOpts = new ArrayList<String>();
 
@@ -326,20 +483,33 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
 
         props.put("tmc.test.jvm_opts", StringUtils.join(jvmOpts, ' '));
 
-        final ProcessRunner runner = new MavenRunBuilder()
+        final File resultsFile = new File(
+                projectDir.getPath() + File.separator
+                + "target" + File.separator
+                + "test_output.txt");
+        // Its absence after the build tells us the tests never ran
+        resultsFile.delete();
+
+        final CancellableCallable<ProcessResult> runner = new MavenRunBuilder()
                 .setProjectDir(projectDir)
-                .addGoal(goal)
+                .addGoal("test-compile")
+                .addGoal(MAVEN_TEST_RUN_GOAL)
                 .setProperties(props)
                 .setIO(inOut)
-                .createProcessRunner();
+                .createRunner();
 
         BgTask.start("Running tests", runner, new BgTaskListener<ProcessResult>() {
             @Override
             public void bgTaskReady(ProcessResult processResult) {
-                File resultsFile = new File(
-                        projectDir.getPath() + File.separator
-                        + "target" + File.separator
-                        + "test_output.txt");
+                if (!resultsFile.exists()) {
+                    inOut.select();
+                    if (processResult.statusCode != 0) {
+                        dialogDisplayer.displayError("The code did not compile.");
+                    } else {
+                        dialogDisplayer.displayError("Failed to run tests: no test results were produced.");
+                    }
+                    return;
+                }
                 log.log(Level.INFO, "Next calling handleTestResults: projectInfo: {0}, file: {1}", new Object[]{projectInfo.getProjectDirAbsPath(), resultsFile.exists()});
                 handleTestResults(projectInfo, resultsFile);
             }
@@ -355,11 +525,9 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         });
     }
 
-    private List<TestMethod> findProjectTests(TmcProjectInfo projectInfo, FileObject testDir) {
-        TestScanner scanner = new TestScanner();
-        scanner.setClassPath(getTestClassPath(projectInfo, testDir).toString(ClassPath.PathConversionMode.WARN));
-        scanner.addSource(FileUtil.toFile(testDir));
-        return scanner.findTests();
+    private List<TestMethod> findProjectTests(TmcProjectInfo projectInfo, FileObject testDir) throws IOException {
+        String classPath = getTestClassPath(projectInfo, testDir).toString(ClassPath.PathConversionMode.WARN);
+        return TestScanCache.getInstance().findTests(FileUtil.toFile(testDir), classPath);
     }
 
     private FileObject findTestDir(TmcProjectInfo projectInfo) {
@@ -397,89 +565,218 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         return new File(path);
     }
 
+    /**
+     * Runs the tests in one JVM, or in several at once if enabled with
+     * {@link TestShardPlanner#SHARD_COUNT_PROPERTY}, balanced by how long each test took before.
+     * All tests of a class run in the same JVM since they may share static state or files.
+     */
     private void startRunningSimpleProjectTests(final TmcProjectInfo projectInfo, FileObject testDir, List<TestMethod> testMethods) {
-        File tempFile;
-        try {
-            tempFile = File.createTempFile("tmc_test_results", ".txt");
-        } catch (IOException ex) {
-            dialogDisplayer.displayError("Failed to create temporary file for test results.", ex);
-            return;
+        final List<String> testNames = new ArrayList<String>(testMethods.size());
+        List<String> testClassNames = new ArrayList<String>(testMethods.size());
+        final Map<String, Integer> resultOrder = new HashMap<String, Integer>();
+        for (TestMethod testMethod : testMethods) {
+            testNames.add(testMethod.className + "." + testMethod.methodName);
+            testClassNames.add(testMethod.className);
+            resultOrder.put(testMethod.className + " " + testMethod.methodName, resultOrder.size());
+        }
+
+        Integer memoryLimit = getMemoryLimit(projectInfo.getProject());
+        int shardCount = TestShardPlanner.chooseShardCount(testMethods.size(), Runtime.getRuntime().availableProcessors(), memoryLimit);
+        final List<List<TestMethod>> shards = TestShardPlanner.partitionByGroup(testMethods, testClassNames, durationHistory.getEstimates(projectInfo.getProjectDirAsFile(), testNames), shardCount);
+        if (shards.isEmpty()) {
+            shards.add(testMethods);
         }
 
+        final List<File> resultFiles = new ArrayList<File>(shards.size());
         try {
-            ArrayList<String> args = new ArrayList<String>();
-            args.add("-Dtmc.test_class_dir=" + FileUtil.toFile(testDir).getAbsolutePath());
-            args.add("-Dtmc.results_file=" + tempFile.getAbsolutePath());
-            args.add("-D" + ERROR_MSG_LOCALE_SETTING + "=" + settings.getErrorMsgLocale().toString());
+            List<ProcessRunner> runners = new ArrayList<ProcessRunner>(shards.size());
+            InputOutput inOut = getIoTab();
+            ClassPath classPath = getTestClassPath(projectInfo, testDir);
+            for (List<TestMethod> shard : shards) {
+                File resultFile = File.createTempFile("tmc_test_results", ".txt");
+                resultFiles.add(resultFile);
 
-            if (endorsedLibsExist(projectInfo)) {
-                args.add("-Djava.endorsed.dirs=" + endorsedLibsPath(projectInfo));
-            }
+                ArrayList<String> args = new ArrayList<String>();
+                args.add("-Dtmc.test_class_dir=" + FileUtil.toFile(testDir).getAbsolutePath());
+                args.add("-Dtmc.results_file=" + resultFile.getAbsolutePath());
+                args.add("-D" + ERROR_MSG_LOCALE_SETTING + "=" + settings.getErrorMsgLocale().toString());
 
-            Integer memoryLimit = getMemoryLimit(projectInfo.getProject());
-            if (memoryLimit != null) {
-                args.add("-Xmx" + memoryLimit + "M");
-            }
+                if (endorsedLibsExist(projectInfo)) {
+                    args.add("-Djava.endorsed.dirs=" + endorsedLibsPath(projectInfo));
+                }
+
+                if (memoryLimit != null) {
+                    args.add("-Xmx" + memoryLimit + "M");
+                }
+
+                args.add("fi.helsinki.cs.tmc.testrunner.Main");
 
-            args.add("fi.helsinki.cs.tmc.testrunner.Main");
+                for (TestMethod testMethod : shard) {
+                    args.add(testMethod.toString());
+                }
 
-            for (int i = 0; i < testMethods.size(); ++i) {
-                args.add(testMethods.get(i).toString());
+                runners.add(createJavaProcessRunner(projectInfo, classPath, args, inOut));
             }
-            InputOutput inOut = getIoTab();
 
-            final File tempFileAsFinal = tempFile;
-            ClassPath classPath = getTestClassPath(projectInfo, testDir);
-            runJavaProcessInProject(projectInfo, classPath, "Running tests", args, inOut, new BgTaskListener<ProcessResult>() {
-                @Override
-                public void bgTaskReady(ProcessResult result) {
-                    log.info("Test run standard output:");
-                    log.info(result.output);
-                    log.info("Test run error output:");
-                    log.info(result.errorOutput);
-
-                    if (result.statusCode != 0) {
-                        log.log(Level.INFO, "Failed to run tests. Status code: {0}", result.statusCode);
-                        dialogDisplayer.displayError("Failed to run tests.\n" + result.errorOutput);
-                        tempFileAsFinal.delete();
-                        return;
+            final ProcessRunnerGroup group = new ProcessRunnerGroup(runners);
+            final Map<Integer, List<TestCaseResult>> partialResults = Collections.synchronizedMap(new HashMap<Integer, List<TestCaseResult>>());
+            final boolean streaming = shards.size() > 1;
+            if (streaming) {
+                resultDisplayer.startLocalRun(testMethods.size());
+                group.setListener(new ProcessRunnerGroup.Listener() {
+                    @Override
+                    public void processFinished(int index, ProcessResult result) {
+                        if (result.statusCode != 0) {
+                            return;
+                        }
+                        try {
+                            String resultJson = FileUtils.readFileToString(resultFiles.get(index), "UTF-8");
+                            final List<TestCaseResult> shardResults = parseTestResults(resultJson);
+                            partialResults.put(index, shardResults);
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    resultDisplayer.showPartialLocalRunResult(shardResults);
+                                }
+                            });
+                        } catch (Exception ex) {
+                            // Reported when the whole run is done
+                            log.log(Level.FINE, "Failed to read partial test results", ex);
+                        }
                     }
+                });
+            }
 
+            BgTask.start("Running tests", group, new BgTaskListener<List<ProcessResult>>() {
+                @Override
+                public void bgTaskReady(List<ProcessResult> results) {
                     try {
-                        handleTestResults(projectInfo, tempFileAsFinal);
+                        for (ProcessResult result : results) {
+                            // The output was already shown in the output window
+                            log.log(Level.FINE, "Test run standard output:\n{0}", result.output);
+                            log.log(Level.FINE, "Test run error output:\n{0}", result.errorOutput);
+
+                            if (result.statusCode != 0) {
+                                log.log(Level.INFO, "Failed to run tests. Status code: {0}", result.statusCode);
+                                if (streaming) {
+                                    resultDisplayer.abortLocalRun();
+                                }
+                                dialogDisplayer.displayError("Failed to run tests.\n" + result.errorOutput);
+                                return;
+                            }
+                        }
+
+                        recordDurations(projectInfo, shards, group);
+
+                        List<TestCaseResult> merged = new ArrayList<TestCaseResult>();
+                        for (int i = 0; i < resultFiles.size(); ++i) {
+                            List<TestCaseResult> shardResults = partialResults.get(i);
+                            if (shardResults == null) {
+                                shardResults = readTestResults(resultFiles.get(i));
+                            }
+                            if (shardResults == null) {
+                                if (streaming) {
+                                    resultDisplayer.abortLocalRun();
+                                }
+                                return;
+                            }
+                            merged.addAll(shardResults);
+                        }
+                        sortInto(resultOrder, merged);
+                        showTestResults(projectInfo, merged);
                     } finally {
-                        tempFileAsFinal.delete();
+                        deleteAll(resultFiles);
                     }
                 }
 
                 @Override
                 public void bgTaskCancelled() {
-                    tempFileAsFinal.delete();
+                    deleteAll(resultFiles);
+                    if (streaming) {
+                        resultDisplayer.abortLocalRun();
+                    }
                 }
 
                 @Override
                 public void bgTaskFailed(Throwable ex) {
-                    tempFileAsFinal.delete();
+                    deleteAll(resultFiles);
+                    if (streaming) {
+                        resultDisplayer.abortLocalRun();
+                    }
                     dialogDisplayer.displayError("Failed to run tests", ex);
                 }
             });
 
         } catch (Exception ex) {
-            tempFile.delete();
+            deleteAll(resultFiles);
             dialogDisplayer.displayError("Failed to run tests", ex);
         }
     }
 
+    /**
+     * Puts the results of a sharded run back in the order the tests were found in.
+     * Results with unknown names go last.
+     */
+    private void sortInto(final Map<String, Integer> order, List<TestCaseResult> results) {
+        Collections.sort(results, new Comparator<TestCaseResult>() {
+            @Override
+            public int compare(TestCaseResult a, TestCaseResult b) {
+                return positionOf(a).compareTo(positionOf(b));
+            }
+
+            private Integer positionOf(TestCaseResult result) {
+                Integer position = order.get(result.getName());
+                return (position != null) ? position : Integer.MAX_VALUE;
+            }
+        });
+    }
+
+    /**
+     * Splits each JVM's running time evenly among its tests since the runner doesn't time tests individually.
+     */
+    private void recordDurations(TmcProjectInfo projectInfo, List<List<TestMethod>> shards, ProcessRunnerGroup group) {
+        Map<String, Long> measured = new HashMap<String, Long>();
+        for (int i = 0; i < shards.size(); ++i) {
+            List<TestMethod> shard = shards.get(i);
+            if (shard.isEmpty()) {
+                continue;
+            }
+            long perTest = group.getElapsedMillis(i) / shard.size();
+            for (TestMethod testMethod : shard) {
+                measured.put(testMethod.className + "." + testMethod.methodName, perTest);
+            }
+        }
+        durationHistory.record(projectInfo.getProjectDirAsFile(), measured);
+    }
+
+    private void deleteAll(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
     private void handleTestResults(final TmcProjectInfo projectInfo, File resultsFile) {
-        List<TestCaseResult> results;
+        List<TestCaseResult> results = readTestResults(resultsFile);
+        if (results != null) {
+            showTestResults(projectInfo, results);
+        }
+    }
+
+    /**
+     * Returns null and tells the user if the results can't be read.
+     */
+    private List<TestCaseResult> readTestResults(File resultsFile) {
         try {
             String resultJson = FileUtils.readFileToString(resultsFile, "UTF-8");
-            results = parseTestResults(resultJson);
+            return parseTestResults(resultJson);
         } catch (Exception ex) {
             log.log(Level.WARNING, "Failed to read test results: {0}", ex.getStackTrace());
             dialogDisplayer.displayError("Failed to read test results", ex);
-            return;
+            return null;
         }
+    }
+
+    private void showTestResults(final TmcProjectInfo projectInfo, List<TestCaseResult> results) {
         boolean canSubmit = submitAction.enable(projectInfo.getProject());
         resultDisplayer.showLocalRunResult(results, canSubmit, new Runnable() {
             @Override
@@ -487,10 +784,6 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
                 submitAction.performAction(projectInfo.getProject());
             }
         });
-
-
-
-
     }
 
     private List<TestCaseResult> parseTestResults(String json) {
@@ -512,7 +805,7 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         return results;
     }
 
-    private void runJavaProcessInProject(TmcProjectInfo projectInfo, ClassPath classPath, String taskName, List<String> args, InputOutput inOut, BgTaskListener<ProcessResult> listener) {
+    private ProcessRunner createJavaProcessRunner(TmcProjectInfo projectInfo, ClassPath classPath, List<String> args, InputOutput inOut) {
         FileObject projectDir = projectInfo.getProjectDir();
 
         JavaPlatform platform = JavaPlatform.getDefault(); // Should probably use project's configured platform instead
@@ -537,12 +830,7 @@ public class RunTestsLocallyAction extends AbstractExerciseSensitiveAction {
         System.arraycopy(args.toArray(new String[args.size()]), 0, command, 3, args.size());
 
         log.info(StringUtils.join(command, ' '));
-        ProcessRunner runner = new ProcessRunner(command, FileUtil.toFile(projectDir), inOut);
-        BgTask.start(taskName, runner, listener);
-
-
-
-
+        return new ProcessRunner(command, FileUtil.toFile(projectDir), inOut);
     }
 
     private ClassPath getTestClassPath(TmcProjectInfo projectInfo, FileObject testDir) {
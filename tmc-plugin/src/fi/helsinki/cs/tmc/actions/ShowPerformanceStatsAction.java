@@ -0,0 +1,25 @@
+package fi.helsinki.cs.tmc.actions;
+
+import fi.helsinki.cs.tmc.ui.PerformanceStatsDialog;
+import java.awt.event.ActionEvent;
+import javax.swing.AbstractAction;
+import org.openide.awt.ActionID;
+import org.openide.awt.ActionReference;
+import org.openide.awt.ActionReferences;
+import org.openide.awt.ActionRegistration;
+import org.openide.util.NbBundle.Messages;
+
+@ActionID(category = "TMC",
+id = "fi.helsinki.cs.tmc.actions.ShowPerformanceStatsAction")
+@ActionRegistration(displayName = "#CTL_ShowPerformanceStatsAction")
+@ActionReferences({
+    @ActionReference(path = "Menu/TM&C", position = 100, separatorBefore = 90)
+})
+@Messages("CTL_ShowPerformanceStatsAction=&Performance statistics")
+public final class ShowPerformanceStatsAction extends AbstractAction {
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        PerformanceStatsDialog.display();
+    }
+}
@@ -76,6 +76,11 @@ public class TmcModuleInstall extends ModuleInstall {
         } catch (Exception e) {
             log.log(Level.WARNING, "Failed to close SpywareFacade.", e);
         }
+        try {
+            PushEventListener.stop();
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Failed to stop PushEventListener.", e);
+        }
     }
     
     private void doFirstRun() {
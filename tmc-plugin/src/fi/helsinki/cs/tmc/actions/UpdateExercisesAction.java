@@ -2,22 +2,27 @@ package fi.helsinki.cs.tmc.actions;
 
 import fi.helsinki.cs.tmc.data.Exercise;
 import fi.helsinki.cs.tmc.model.CourseDb;
+import fi.helsinki.cs.tmc.model.ExerciseDelta;
+import fi.helsinki.cs.tmc.model.ExerciseManifestCache;
 import fi.helsinki.cs.tmc.model.ExerciseUpdateOverwritingDecider;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import fi.helsinki.cs.tmc.ui.ConvenientDialogDisplayer;
-import fi.helsinki.cs.tmc.utilities.AggregatingBgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BatchedBgTaskListener;
 import fi.helsinki.cs.tmc.utilities.BgTask;
+import fi.helsinki.cs.tmc.utilities.BgTaskBatch;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import fi.helsinki.cs.tmc.utilities.zip.NbProjectUnzipper;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class UpdateExercisesAction implements ActionListener {
@@ -26,6 +31,7 @@ public class UpdateExercisesAction implements ActionListener {
 
     private List<Exercise> exercisesToUpdate;
     private CourseDb courseDb;
+    private ExerciseManifestCache manifestCache;
     private ProjectMediator projectMediator;
     private ServerAccess serverAccess;
     private ConvenientDialogDisplayer dialogDisplayer;
@@ -33,6 +39,7 @@ public class UpdateExercisesAction implements ActionListener {
     public UpdateExercisesAction(List<Exercise> exercisesToUpdate) {
         this.exercisesToUpdate = exercisesToUpdate;
         this.courseDb = CourseDb.getInstance();
+        this.manifestCache = ExerciseManifestCache.getInstance();
         this.projectMediator = ProjectMediator.getInstance();
         this.serverAccess = new ServerAccess();
         this.dialogDisplayer = ConvenientDialogDisplayer.getDefault();
@@ -44,69 +51,142 @@ public class UpdateExercisesAction implements ActionListener {
     }
 
     public void run() {
-        final AggregatingBgTaskListener<TmcProjectInfo> projectOpener = new AggregatingBgTaskListener<TmcProjectInfo>(exercisesToUpdate.size(), new BgTaskListener<Collection<TmcProjectInfo>>() {
+        final BgTaskBatch<UpdatedProject> batch =
+                new BgTaskBatch<UpdatedProject>(new UpdateBatchListener(exercisesToUpdate.size()));
+        
+        for (final Exercise exercise : exercisesToUpdate) {
+            Map<String, String> oldFileHashes = manifestCache.getFileHashes(exercise.getKey());
+            if (exercise.getManifestUrl() != null && oldFileHashes != null) {
+                startDeltaUpdate(exercise, oldFileHashes, batch);
+            } else {
+                startFullUpdate(exercise, batch);
+            }
+        }
+    }
+    
+    /**
+     * Downloads only the files that changed since the last download.
+     * Falls back to a full update if that fails.
+     */
+    private void startDeltaUpdate(final Exercise exercise, Map<String, String> oldFileHashes, final BgTaskListener<UpdatedProject> listener) {
+        final File projectDir = projectMediator.getProjectDirForExercise(exercise);
+        
+        BgTask.start("Downloading changes to " + exercise.getName(), BgTaskScheduler.Lane.BULK, serverAccess.getDownloadingExerciseDeltaTask(exercise, oldFileHashes), new BgTaskListener<ExerciseDelta>() {
             @Override
-            public void bgTaskReady(Collection<TmcProjectInfo> result) {
-                result = new ArrayList<TmcProjectInfo>(result);
-                
-                // result may contain nulls since some downloads might fail
-                while (result.remove(null)) {
-                }
-                
-                projectMediator.scanForExternalChanges(result);
-                
-                // Open all at once. This is much faster.
-                projectMediator.openProjects(result);
+            public void bgTaskReady(final ExerciseDelta delta) {
+                BgTask.start("Applying changes to " + exercise.getName(), BgTaskScheduler.Lane.BULK, new Callable<UpdatedProject>() {
+                    @Override
+                    public UpdatedProject call() throws Exception {
+                        ExerciseUpdateOverwritingDecider overwriter = new ExerciseUpdateOverwritingDecider(projectDir);
+                        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriter);
+                        NbProjectUnzipper.Result result = unzipper.applyFileChanges(delta.getChangedFiles(), delta.getRemovedFiles(), projectDir);
+                        log.info("== Exercise delta update result ==\n" + result);
+                        manifestCache.setFileHashes(exercise.getKey(), delta.getManifest().getFileHashes());
+                        
+                        return new UpdatedProject(exercise, projectMediator.tryGetProjectForExercise(exercise));
+                    }
+                }, listener);
             }
 
-            // Cancelled and failed are never called since we only call bgTaskReady below manually
             @Override
             public void bgTaskCancelled() {
+                listener.bgTaskCancelled();
             }
+
             @Override
             public void bgTaskFailed(Throwable ex) {
+                log.log(Level.INFO, "Delta update of " + exercise.getName() + " failed. Doing a full update.", ex);
+                startFullUpdate(exercise, listener);
             }
         });
+    }
+    
+    private void startFullUpdate(final Exercise exercise, final BgTaskListener<UpdatedProject> listener) {
+        final File projectDir = projectMediator.getProjectDirForExercise(exercise);
         
-        
-        for (final Exercise exercise : exercisesToUpdate) {
-            final File projectDir = projectMediator.getProjectDirForExercise(exercise);
-            
-            BgTask.start("Downloading " + exercise.getName(), serverAccess.getDownloadingExerciseZipTask(exercise), new BgTaskListener<byte[]>() {
-
-                @Override
-                public void bgTaskReady(byte[] data) {
-                    TmcProjectInfo project = null;
-                    try {
-                        try {
-                            ExerciseUpdateOverwritingDecider overwriter = new ExerciseUpdateOverwritingDecider(projectDir);
-                            NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriter);
-                            NbProjectUnzipper.Result result = unzipper.unzipProject(data, projectDir);
-                            log.info("== Exercise unzip result ==\n" + result);
-                        } catch (IOException ex) {
-                            dialogDisplayer.displayError("Failed to update project.", ex);
-                            return;
+        BgTask.start("Downloading " + exercise.getName(), BgTaskScheduler.Lane.BULK, serverAccess.getDownloadingExerciseZipTask(exercise), new BgTaskListener<byte[]>() {
+            @Override
+            public void bgTaskReady(final byte[] data) {
+                BgTask.start("Extracting " + exercise.getName(), BgTaskScheduler.Lane.BULK, new Callable<UpdatedProject>() {
+                    @Override
+                    public UpdatedProject call() throws Exception {
+                        ExerciseUpdateOverwritingDecider overwriter = new ExerciseUpdateOverwritingDecider(projectDir);
+                        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriter);
+                        NbProjectUnzipper.Result result = unzipper.unzipProject(data, projectDir);
+                        log.info("== Exercise unzip result ==\n" + result);
+                        if (exercise.getManifestUrl() != null) {
+                            manifestCache.setFileHashes(exercise.getKey(), unzipper.computeFileHashes(data));
                         }
-                        courseDb.exerciseDownloaded(exercise);
                         
-                        project = projectMediator.tryGetProjectForExercise(exercise);
-                    } finally {
-                        projectOpener.bgTaskReady(project);
+                        return new UpdatedProject(exercise, projectMediator.tryGetProjectForExercise(exercise));
                     }
-                }
+                }, listener);
+            }
 
-                @Override
-                public void bgTaskCancelled() {
-                    projectOpener.bgTaskReady(null);
-                }
+            @Override
+            public void bgTaskCancelled() {
+                listener.bgTaskCancelled();
+            }
 
-                @Override
-                public void bgTaskFailed(Throwable ex) {
-                    projectOpener.bgTaskReady(null);
-                    String msg = ServerErrorHelper.getServerExceptionMsg(ex);
-                    dialogDisplayer.displayError("Failed to download updated exercises.\n" + msg, ex);
+            @Override
+            public void bgTaskFailed(Throwable ex) {
+                listener.bgTaskFailed(ex);
+            }
+        });
+    }
+    
+    private static class UpdatedProject {
+        public final Exercise exercise;
+        public final TmcProjectInfo project; // null if the project couldn't be opened
+
+        public UpdatedProject(Exercise exercise, TmcProjectInfo project) {
+            this.exercise = exercise;
+            this.project = project;
+        }
+    }
+    
+    /**
+     * Marks updated exercises in batches and opens the updated projects
+     * all at once when every update has finished or failed.
+     */
+    private class UpdateBatchListener implements BatchedBgTaskListener<UpdatedProject> {
+        private final int expectedCount;
+        private int finishedCount;
+        private List<TmcProjectInfo> projects;
+
+        public UpdateBatchListener(int expectedCount) {
+            this.expectedCount = expectedCount;
+            this.finishedCount = 0;
+            this.projects = new ArrayList<TmcProjectInfo>(expectedCount);
+        }
+        
+        @Override
+        public void bgTasksFinished(List<UpdatedProject> results, List<Throwable> failures, int cancelledCount) {
+            List<Exercise> exercises = new ArrayList<Exercise>(results.size());
+            for (UpdatedProject updated : results) {
+                exercises.add(updated.exercise);
+                if (updated.project != null) {
+                    projects.add(updated.project);
                 }
-            });
+            }
+            courseDb.exercisesDownloaded(exercises);
+            
+            finishedCount += results.size() + failures.size() + cancelledCount;
+            
+            for (Throwable ex : failures) {
+                log.log(Level.INFO, "Failed to update exercise.", ex);
+            }
+            if (!failures.isEmpty()) {
+                String msg = ServerErrorHelper.getServerExceptionMsg(failures.get(0));
+                dialogDisplayer.displayError("Failed to update exercises.\n" + msg);
+            }
+            
+            if (finishedCount == expectedCount) {
+                projectMediator.scanForExternalChanges(projects);
+                
+                // Open all at once. This is much faster.
+                projectMediator.openProjects(projects);
+            }
         }
     }
 }
@@ -14,6 +14,8 @@ public class Course {
     private String reviewsUrl;
     @SerializedName("comet_url")
     private String cometUrl;
+    @SerializedName("pushes_course_changes")
+    private boolean pushingCourseChanges; // Older servers don't say so and don't push them
     
     private List<Exercise> exercises;
     
@@ -62,6 +64,18 @@ public class Course {
         this.cometUrl = cometUrl;
     }
 
+    /**
+     * Whether the server publishes course changes on the comet channels
+     * PushEventListener subscribes to.
+     */
+    public boolean isPushingCourseChanges() {
+        return pushingCourseChanges;
+    }
+
+    public void setPushingCourseChanges(boolean pushingCourseChanges) {
+        this.pushingCourseChanges = pushingCourseChanges;
+    }
+
     public List<String> getUnlockables() {
         return unlockables;
     }
@@ -24,6 +24,13 @@ public class Exercise implements Serializable {
     @SerializedName("solution_zip_url")
     private String solutionDownloadUrl;
     
+    /**
+     * The URL of the per-file manifest of this exercise, if the server provides one.
+     * Allows updating only the files that have changed.
+     */
+    @SerializedName("zip_manifest_url")
+    private String manifestUrl;
+    
     /**
      * The URL where this exercise should be posted for review.
      */
@@ -142,6 +149,14 @@ public class Exercise implements Serializable {
         this.downloadUrl = downloadAddress;
     }
 
+    public String getManifestUrl() {
+        return manifestUrl;
+    }
+
+    public void setManifestUrl(String manifestUrl) {
+        this.manifestUrl = manifestUrl;
+    }
+
     public String getReturnUrl() {
         return this.returnUrl;
     }
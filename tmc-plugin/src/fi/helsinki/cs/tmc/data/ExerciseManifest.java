@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The list of files in an exercise as reported by the server, with their hashes.
+ */
+public class ExerciseManifest {
+
+    public static class FileEntry {
+        /**
+         * Path relative to the project directory, with '/' as the separator.
+         */
+        private String path;
+
+        /**
+         * Lowercase hex SHA-1 of the file's contents.
+         */
+        private String sha1;
+
+        /**
+         * The URL the file's contents can be downloaded from.
+         */
+        private String url;
+
+        public FileEntry() {
+        }
+
+        public FileEntry(String path, String sha1, String url) {
+            this.path = path;
+            this.sha1 = sha1;
+            this.url = url;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getSha1() {
+            return sha1;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    private List<FileEntry> files = new ArrayList<FileEntry>();
+
+    public List<FileEntry> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<FileEntry> files) {
+        this.files = files;
+    }
+
+    /**
+     * Returns a map from file paths to their hashes.
+     */
+    public Map<String, String> getFileHashes() {
+        Map<String, String> result = new HashMap<String, String>();
+        for (FileEntry entry : files) {
+            result.put(entry.getPath(), entry.getSha1());
+        }
+        return result;
+    }
+}
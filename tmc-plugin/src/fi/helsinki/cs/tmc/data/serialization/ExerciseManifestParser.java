@@ -0,0 +1,26 @@
+package fi.helsinki.cs.tmc.data.serialization;
+
+import com.google.gson.Gson;
+import fi.helsinki.cs.tmc.data.ExerciseManifest;
+
+public class ExerciseManifestParser {
+    public ExerciseManifest parseFromJson(String json) {
+        if (json == null) {
+            throw new NullPointerException("Json string is null");
+        }
+        if (json.trim().isEmpty()) {
+            throw new IllegalArgumentException("Empty input");
+        }
+        try {
+            ExerciseManifest manifest = new Gson().fromJson(json, ExerciseManifest.class);
+            for (ExerciseManifest.FileEntry entry : manifest.getFiles()) {
+                if (entry.getPath() == null || entry.getSha1() == null || entry.getUrl() == null) {
+                    throw new IllegalArgumentException("Incomplete file entry in manifest");
+                }
+            }
+            return manifest;
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Failed to parse exercise manifest: " + e.getMessage(), e);
+        }
+    }
+}
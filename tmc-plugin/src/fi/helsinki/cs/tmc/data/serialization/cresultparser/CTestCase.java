@@ -1,6 +1,7 @@
 package fi.helsinki.cs.tmc.data.serialization.cresultparser;
 
 import fi.helsinki.cs.tmc.data.TestCaseResult;
+import fi.helsinki.cs.tmc.utilities.valrindmemorytest.ValgrindSummary;
 
 public class CTestCase {
     private String name;
@@ -8,6 +9,7 @@ public class CTestCase {
     private String message;
     private String points;
     private String valgrindTrace;
+    private ValgrindSummary valgrindSummary;
     private boolean checkedForMemoryLeaks;
     private int maxBytesAllocated = -1;
 
@@ -72,6 +74,22 @@ public class CTestCase {
 
     public void setValgrindTrace(String valgrindTrace) {
         this.valgrindTrace = valgrindTrace;
+        this.valgrindSummary = null;
+    }
+    
+    /**
+     * Returns the summary given with the trace, or parses one from the trace.
+     */
+    public ValgrindSummary getValgrindSummary() {
+        if (valgrindSummary == null) {
+            valgrindSummary = ValgrindSummary.parse(valgrindTrace != null ? valgrindTrace : "");
+        }
+        return valgrindSummary;
+    }
+    
+    public void setValgrindTrace(String valgrindTrace, ValgrindSummary valgrindSummary) {
+        this.valgrindTrace = valgrindTrace;
+        this.valgrindSummary = valgrindSummary;
     }
     
     public boolean isCheckedForMemoryLeaks() {
@@ -2,19 +2,24 @@ package fi.helsinki.cs.tmc.data.serialization.cresultparser;
 
 import fi.helsinki.cs.tmc.data.TestCaseResult;
 import fi.helsinki.cs.tmc.utilities.valrindmemorytest.ValgrindMemoryTester;
+import fi.helsinki.cs.tmc.utilities.valrindmemorytest.ValgrindSummary;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Scanner;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.xml.sax.SAXException;
 
 public class CTestResultParser {
@@ -23,6 +28,7 @@ public class CTestResultParser {
     private File testResults;
     private File valgrindOutput;
     private ArrayList<CTestCase> tests;
+    private boolean warnIfNoValgrind = true;
 
     public CTestResultParser(File testResults, File valgrindOutput, File memoryOptions) {
         this.testResults = testResults;
@@ -31,6 +37,14 @@ public class CTestResultParser {
         this.tests = new ArrayList<CTestCase>();
     }
 
+    /**
+     * Whether tests parsed without a valgrind log should say that valgrind is missing.
+     * Turn off when valgrind is to be run separately later.
+     */
+    public void setWarnIfNoValgrind(boolean warnIfNoValgrind) {
+        this.warnIfNoValgrind = warnIfNoValgrind;
+    }
+
     public void parseTestOutput() throws Exception {
         this.tests = parseTestCases(testResults);
         if (valgrindOutput != null) {
@@ -40,7 +54,7 @@ public class CTestResultParser {
                 addMemoryTests();
                 ValgrindMemoryTester.analyzeMemory(tests);
             }
-        } else {
+        } else if (warnIfNoValgrind) {
             addWarningToValgrindOutput();
         }
 
@@ -58,27 +72,59 @@ public class CTestResultParser {
         return tcaseResults;
     }
 
+    /**
+     * Reads the <code>test</code> elements of Check's XML output in one pass.
+     */
     private ArrayList<CTestCase> parseTestCases(File testOutput) throws ParserConfigurationException, SAXException, IOException {
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-        dBuilder.setErrorHandler(null); // Silence logging
-        Document doc = dBuilder.parse(testOutput);
-
-        doc.getDocumentElement().normalize();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
 
-        NodeList nodeList = doc.getElementsByTagName("test");
         ArrayList<CTestCase> cases = new ArrayList<CTestCase>();
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Element node = (Element) nodeList.item(i);
-            String result = node.getAttribute("result");
-            String name = node.getElementsByTagName("description").item(0).getTextContent();
-            String message = node.getElementsByTagName("message").item(0).getTextContent();
-            cases.add(new CTestCase(name, result, message));
+        InputStream in = new BufferedInputStream(new FileInputStream(testOutput));
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("test")) {
+                        cases.add(parseTestCase(reader));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new SAXException(ex);
+        } finally {
+            in.close();
         }
 
         return cases;
     }
 
+    private CTestCase parseTestCase(XMLStreamReader reader) throws XMLStreamException {
+        String result = reader.getAttributeValue(null, "result");
+        String name = null;
+        String message = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String element = reader.getLocalName();
+                if (element.equals("description") && name == null) {
+                    name = reader.getElementText();
+                } else if (element.equals("message") && message == null) {
+                    message = reader.getElementText();
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return new CTestCase(name, result != null ? result : "", message);
+    }
+
     private void addMemoryTests() throws FileNotFoundException {
         HashMap<String, String> memoryInfoByName = new HashMap<String, String>();
         Scanner scanner = new Scanner(memoryOptions, "UTF-8");
@@ -128,55 +174,111 @@ public class CTestResultParser {
         }
     }
 
-    private void addValgrindOutput() throws FileNotFoundException {
-        Scanner scanner = new Scanner(valgrindOutput, "UTF-8");
-        String parentOutput = ""; // Contains total amount of memory used and such things. Useful if we later want to add support for testing memory usage
-        String[] outputs = new String[tests.size()];
-        int[] pids = new int[tests.size()];
+    /**
+     * Splits the valgrind log by process. The first process is the test runner itself
+     * and each test runs in a child process. Children are matched to tests in order of appearance.
+     */
+    private void addValgrindOutput() throws IOException {
+        ProcessOutput parentOutput = new ProcessOutput(); // Contains total amount of memory used and such things. Useful if we later want to add support for testing memory usage
+        ProcessOutput[] outputs = new ProcessOutput[tests.size()];
         for (int i = 0; i < outputs.length; i++) {
-            outputs[i] = "";
+            outputs[i] = new ProcessOutput();
         }
+        HashMap<Integer, ProcessOutput> outputsByPid = new HashMap<Integer, ProcessOutput>();
 
-        String line = scanner.nextLine();
-        int firstPID = parsePID(line);
-        parentOutput += "\n" + line;
-        while (scanner.hasNextLine()) {
-            line = scanner.nextLine();
-            int pid = parsePID(line);
-            if (pid == -1) {
-                continue;
-            }
-            if (pid == firstPID) {
-                parentOutput += "\n" + line;
-            } else {
-                outputs[findIndex(pid, pids)] += "\n" + line;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(valgrindOutput), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line != null) {
+                int firstPID = parsePID(line);
+                parentOutput.add(line);
+                while ((line = reader.readLine()) != null) {
+                    int pid = parsePID(line);
+                    if (pid == -1) {
+                        continue;
+                    }
+                    if (pid == firstPID) {
+                        parentOutput.add(line);
+                    } else {
+                        ProcessOutput output = outputsByPid.get(pid);
+                        if (output == null) {
+                            // Extra processes beyond the number of tests go to the first test
+                            int index = outputsByPid.size();
+                            output = (index < outputs.length) ? outputs[index] : outputs[0];
+                            outputsByPid.put(pid, output);
+                        }
+                        output.add(line);
+                    }
+                }
             }
+        } finally {
+            reader.close();
         }
-        scanner.close();
 
         for (int i = 0; i < outputs.length; i++) {
-            tests.get(i).setValgrindTrace(outputs[i]);
+            tests.get(i).setValgrindTrace(outputs[i].getTrace(), outputs[i].summary);
         }
     }
 
-    private int findIndex(int pid, int[] pids) {
-        for (int i = 0; i < pids.length; i++) {
-            if (pids[i] == pid) {
-                return i;
+    /**
+     * One process's part of the valgrind log.
+     * 
+     * <p>
+     * Summary lines are always kept but other lines only up to a limit.
+     */
+    private static class ProcessOutput {
+        private static final int MAX_TRACE_CHARS = 256 * 1024;
+
+        private final StringBuilder trace = new StringBuilder();
+        private final ValgrindSummary summary = new ValgrindSummary();
+        private int omittedLines = 0;
+
+        public void add(String line) {
+            boolean isSummary = summary.addLine(line);
+            if (isSummary || trace.length() < MAX_TRACE_CHARS) {
+                trace.append("\n").append(line);
+            } else {
+                omittedLines++;
             }
-            if (pids[i] == 0) {
-                pids[i] = pid;
-                return i;
+        }
+
+        public String getTrace() {
+            if (omittedLines > 0) {
+                return trace.toString() + "\n(" + omittedLines + " more lines omitted)";
+            } else {
+                return trace.toString();
             }
         }
-        return 0;
     }
 
-    private int parsePID(String line) {
-        try {
-            return Integer.parseInt(line.split(" ")[0].replaceAll("(==|--)", ""));
-        } catch (Exception e) {
+    /**
+     * Parses the PID in lines like <code>==1234== ...</code>. Returns -1 if there isn't one.
+     */
+    /*package*/ static int parsePID(String line) {
+        int end = line.indexOf(' ');
+        if (end == -1) {
+            end = line.length();
+        }
+
+        long pid = 0;
+        int digits = 0;
+        int i = 0;
+        while (i < end) {
+            char c = line.charAt(i);
+            if ((c == '=' || c == '-') && i + 1 < end && line.charAt(i + 1) == c) {
+                i += 2;
+            } else if (c >= '0' && c <= '9' && digits < 10) {
+                pid = pid * 10 + (c - '0');
+                digits++;
+                i++;
+            } else {
+                return -1;
+            }
+        }
+
+        if (digits == 0 || pid > Integer.MAX_VALUE) {
             return -1;
         }
+        return (int)pid;
     }
 }
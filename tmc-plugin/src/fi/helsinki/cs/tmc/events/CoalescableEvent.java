@@ -0,0 +1,17 @@
+package fi.helsinki.cs.tmc.events;
+
+/**
+ * An event that knows how to combine itself with a later event of the same type.
+ * 
+ * <p>
+ * Used when a listener asks for events to be coalesced.
+ * Events that don't implement this are coalesced by keeping the latest one.
+ * 
+ * @see TmcEventListener#getCoalescingWindowMillis(Class)
+ */
+public interface CoalescableEvent<E extends TmcEvent> extends TmcEvent {
+    /**
+     * Returns an event that represents both this event and the given later one.
+     */
+    public E mergeWith(E later);
+}
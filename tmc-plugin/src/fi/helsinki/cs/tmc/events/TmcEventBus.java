@@ -1,17 +1,29 @@
 package fi.helsinki.cs.tmc.events;
 
 import java.lang.ref.WeakReference;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
 
 public class TmcEventBus {
     private static final Logger log = Logger.getLogger(TmcEventBus.class.getName());
     private static final TmcEventBus instance = new TmcEventBus();
+    
+    private static final long SLOW_LISTENER_NANOS = 100L * 1000 * 1000;
 
     public static TmcEventBus getDefault() {
         return instance;
@@ -21,53 +33,255 @@ public class TmcEventBus {
     public static TmcEventBus createNewInstance() {
         return new TmcEventBus();
     }
+    
+    /**
+     * Timing statistics of the listeners of one class.
+     */
+    public static class ListenerStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        
+        private void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        /**
+         * The number of events delivered.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+        
+        public long getAverageNanos() {
+            long n = count.get();
+            return (n > 0) ? totalNanos.get() / n : 0;
+        }
+    }
+
+    // Weak references to listeners and dependencies of all buses get enqueued here when collected.
+    private static final ReferenceQueue<Object> collectedReferents = new ReferenceQueue<Object>();
+    
+    static {
+        Thread cleaner = new Thread("TmcEventBus cleaner") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ListenerRef ref = (ListenerRef) collectedReferents.remove();
+                        ref.bus.removeListener(ref.wrapper);
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Failed to remove a collected listener", t);
+                    }
+                }
+            }
+        };
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
 
-    private List<TmcEventListener> listeners;
+    /**
+     * An immutable list of listeners with a lazily filled index by event type.
+     * Replaced as a whole when subscriptions change, so posting never needs to lock it.
+     */
+    private static final class Registry {
+        public final TmcEventListener[] listeners;
+        private final ConcurrentHashMap<Class<?>, TmcEventListener[]> byEventType;
+
+        public Registry(TmcEventListener[] listeners) {
+            this.listeners = listeners;
+            this.byEventType = new ConcurrentHashMap<Class<?>, TmcEventListener[]>();
+        }
+        
+        public TmcEventListener[] listenersFor(Class<? extends TmcEvent> eventType) {
+            TmcEventListener[] result = byEventType.get(eventType);
+            if (result == null) {
+                ArrayList<TmcEventListener> matching = new ArrayList<TmcEventListener>();
+                for (TmcEventListener listener : listeners) {
+                    if (listener.handles(eventType)) {
+                        matching.add(listener);
+                    }
+                }
+                result = matching.toArray(new TmcEventListener[matching.size()]);
+                byEventType.put(eventType, result);
+            }
+            return result;
+        }
+        
+        public Registry with(TmcEventListener listener) {
+            TmcEventListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            return new Registry(newListeners);
+        }
+        
+        public Registry without(TmcEventListener listener) {
+            for (int i = 0; i < listeners.length; ++i) {
+                if (listeners[i] == listener) {
+                    TmcEventListener[] newListeners = new TmcEventListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, newListeners, 0, i);
+                    System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                    return new Registry(newListeners);
+                }
+            }
+            return this;
+        }
+    }
+    
+    private final Object registryLock = new Object();
+    private volatile Registry registry;
+    
+    private final Object dispatchLock = new Object();
     private Queue<TmcEvent> eventQueue;
+    private final Map<PendingKey, TmcEvent> pendingCoalescedEvents;
+    private ScheduledExecutorService coalescingTimer; // Created on first use
+    private ExecutorService backgroundExecutor; // Created on first use
+    private final Map<String, ListenerStats> listenerStats;
+
+    private static final class PendingKey {
+        public final TmcEventListener listener;
+        public final Class<?> eventType;
+
+        public PendingKey(TmcEventListener listener, Class<?> eventType) {
+            this.listener = listener;
+            this.eventType = eventType;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof PendingKey) {
+                PendingKey that = (PendingKey) obj;
+                return this.listener == that.listener && this.eventType == that.eventType;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(listener) * 31 + eventType.hashCode();
+        }
+    }
 
     private static interface Wrapper {
         public boolean wraps(TmcEventListener that);
     }
     
+    private static class ListenerRef extends WeakReference<Object> {
+        public final TmcEventBus bus;
+        public final TmcEventListener wrapper;
+        
+        public ListenerRef(Object referent, TmcEventBus bus, TmcEventListener wrapper) {
+            super(referent, collectedReferents);
+            this.bus = bus;
+            this.wrapper = wrapper;
+        }
+    }
+    
     private static class WeakListener extends TmcEventListener implements Wrapper {
-        private WeakReference<TmcEventListener> weakRef;
+        private ListenerRef weakRef;
+        private String name;
         
-        public WeakListener(TmcEventListener listener) {
-            this.weakRef = new WeakReference<TmcEventListener>(listener);
+        @SuppressWarnings("LeakingThisInConstructor")
+        public WeakListener(TmcEventListener listener, TmcEventBus bus) {
+            this.weakRef = new ListenerRef(listener, bus, this);
+            this.name = listener.getListenerName();
+        }
+        
+        private TmcEventListener get() {
+            return (TmcEventListener) weakRef.get();
         }
         
         @Override
         public void receive(TmcEvent event) throws Throwable {
-            TmcEventListener listener = weakRef.get();
+            TmcEventListener listener = get();
             if (listener != null) {
                 listener.receive(event);
             }
         }
         
+        @Override
+        public boolean handles(Class<? extends TmcEvent> eventType) {
+            TmcEventListener listener = get();
+            return listener != null && listener.handles(eventType);
+        }
+
+        @Override
+        public Delivery getDelivery() {
+            TmcEventListener listener = get();
+            return (listener != null) ? listener.getDelivery() : Delivery.IMMEDIATE;
+        }
+
+        @Override
+        public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+            TmcEventListener listener = get();
+            return (listener != null) ? listener.getCoalescingWindowMillis(eventType) : 0;
+        }
+
+        @Override
+        public String getListenerName() {
+            return name;
+        }
+        
         @Override
         public boolean mayBeUnsubscribed() {
-            return weakRef.get() == null;
+            return get() == null;
         }
 
         @Override
         public boolean wraps(TmcEventListener that) {
-            return that == weakRef.get();
+            return that == get();
         }
     }
     
     private static class DependentListener extends TmcEventListener implements Wrapper {
         private TmcEventListener listener;
-        private WeakReference<Object> weakRef;
+        private ListenerRef weakRef;
         
-        public DependentListener(TmcEventListener listener, Object dependency) {
+        @SuppressWarnings("LeakingThisInConstructor")
+        public DependentListener(TmcEventListener listener, Object dependency, TmcEventBus bus) {
             this.listener = listener;
-            this.weakRef = new WeakReference<Object>(dependency);
+            this.weakRef = new ListenerRef(dependency, bus, this);
         }
         
         @Override
         public void receive(TmcEvent event) throws Throwable {
             listener.receive(event);
         }
+        
+        @Override
+        public boolean handles(Class<? extends TmcEvent> eventType) {
+            return listener.handles(eventType);
+        }
+
+        @Override
+        public Delivery getDelivery() {
+            return listener.getDelivery();
+        }
+
+        @Override
+        public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+            return listener.getCoalescingWindowMillis(eventType);
+        }
+
+        @Override
+        public String getListenerName() {
+            return listener.getListenerName();
+        }
 
         @Override
         public boolean mayBeUnsubscribed() {
@@ -81,69 +295,221 @@ public class TmcEventBus {
     }
 
     private TmcEventBus() {
-        this.listeners = new ArrayList<TmcEventListener>();
+        this.registry = new Registry(new TmcEventListener[0]);
         this.eventQueue = new ArrayDeque<TmcEvent>();
+        this.pendingCoalescedEvents = new HashMap<PendingKey, TmcEvent>();
+        this.listenerStats = new HashMap<String, ListenerStats>();
     }
 
     /**
      * Subscribes a listener that is never unsubscribed automatically.
      */
-    public synchronized void subscribeStrongly(TmcEventListener listener) {
-        this.listeners.add(listener);
+    public void subscribeStrongly(TmcEventListener listener) {
+        addListener(listener);
     }
     
     /**
      * Subscribes a weak reference to a listener.
      * After all normal references to the listener disappear, it will eventually be unsubscribed.
      */
-    public synchronized void subscribeWeakly(TmcEventListener listener) {
-        this.listeners.add(new WeakListener(listener));
+    public void subscribeWeakly(TmcEventListener listener) {
+        addListener(new WeakListener(listener, this));
     }
     
     /**
      * Subscribes a listener that is eventually removed after a given dependency is garbage-collected.
      */
-    public synchronized void subscribeDependent(TmcEventListener listener, Object dependency) {
-        this.listeners.add(new DependentListener(listener, dependency));
-    }
-
-    public synchronized void unsubscribe(TmcEventListener toRemove) {
-        Iterator<TmcEventListener> iter = listeners.iterator();
-        while (iter.hasNext()) {
-            TmcEventListener listener = iter.next();
-            boolean remove =
-                    (listener == toRemove) ||
-                    (listener instanceof Wrapper && ((Wrapper)listener).wraps(toRemove));
-            if (remove) {
-                iter.remove();
-                break;
+    public void subscribeDependent(TmcEventListener listener, Object dependency) {
+        addListener(new DependentListener(listener, dependency, this));
+    }
+
+    public void unsubscribe(TmcEventListener toRemove) {
+        synchronized (registryLock) {
+            for (TmcEventListener listener : registry.listeners) {
+                boolean remove =
+                        (listener == toRemove) ||
+                        (listener instanceof Wrapper && ((Wrapper)listener).wraps(toRemove));
+                if (remove) {
+                    registry = registry.without(listener);
+                    break;
+                }
             }
         }
     }
+    
+    private void addListener(TmcEventListener listener) {
+        synchronized (registryLock) {
+            registry = registry.with(listener);
+        }
+    }
+    
+    private void removeListener(TmcEventListener listener) {
+        synchronized (registryLock) {
+            registry = registry.without(listener);
+        }
+    }
+    
+    /*package (for tests)*/ int getListenerCount() {
+        return registry.listeners.length;
+    }
 
-    public synchronized void post(TmcEvent event) {
-        eventQueue.add(event);
-        processEventQueue();
+    public void post(TmcEvent event) {
+        synchronized (dispatchLock) {
+            eventQueue.add(event);
+            processEventQueue();
+        }
+    }
+    
+    /**
+     * Returns a snapshot of the timing statistics of each listener class.
+     */
+    public Map<String, ListenerStats> getListenerStats() {
+        synchronized (listenerStats) {
+            return new HashMap<String, ListenerStats>(listenerStats);
+        }
     }
     
     private void processEventQueue() {
-        // This handles post() during post()
-        // but not yet subscribe*() during post().
+        // This handles post() during post().
+        // Subscriptions made during post() take effect from the next event on.
         while (!eventQueue.isEmpty()) {
             TmcEvent event = eventQueue.remove();
-            Iterator<TmcEventListener> iter = listeners.iterator();
-            while (iter.hasNext()) {
-                TmcEventListener listener = iter.next();
+            for (TmcEventListener listener : registry.listenersFor(event.getClass())) {
                 if (listener.mayBeUnsubscribed()) {
-                    iter.remove();
+                    // The cleaner thread would get to this soon too.
+                    removeListener(listener);
                 } else {
-                    try {
-                        listener.receive(event);
-                    } catch (Throwable ex) {
-                        log.log(Level.WARNING, ex.getMessage(), ex);
+                    deliverOrCoalesce(listener, event);
+                }
+            }
+        }
+    }
+    
+    private void deliverOrCoalesce(TmcEventListener listener, TmcEvent event) {
+        long window = listener.getCoalescingWindowMillis(event.getClass());
+        if (window <= 0) {
+            deliver(listener, event, listener.getDelivery());
+            return;
+        }
+        
+        final PendingKey key = new PendingKey(listener, event.getClass());
+        synchronized (pendingCoalescedEvents) {
+            TmcEvent pending = pendingCoalescedEvents.get(key);
+            if (pending != null) {
+                pendingCoalescedEvents.put(key, merge(pending, event));
+                return;
+            }
+            pendingCoalescedEvents.put(key, event);
+        }
+        
+        getCoalescingTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                TmcEvent merged;
+                synchronized (pendingCoalescedEvents) {
+                    merged = pendingCoalescedEvents.remove(key);
+                }
+                TmcEventListener listener = key.listener;
+                if (merged != null && !listener.mayBeUnsubscribed()) {
+                    TmcEventListener.Delivery delivery = listener.getDelivery();
+                    if (delivery == TmcEventListener.Delivery.IMMEDIATE) {
+                        delivery = TmcEventListener.Delivery.BACKGROUND;
                     }
+                    deliver(listener, merged, delivery);
                 }
             }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private TmcEvent merge(TmcEvent earlier, TmcEvent later) {
+        if (earlier instanceof CoalescableEvent) {
+            return ((CoalescableEvent<TmcEvent>) earlier).mergeWith(later);
+        } else {
+            return later;
+        }
+    }
+    
+    private void deliver(final TmcEventListener listener, final TmcEvent event, TmcEventListener.Delivery mode) {
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                deliverNow(listener, event);
+            }
+        };
+        
+        switch (mode) {
+            case BACKGROUND:
+                getBackgroundExecutor().execute(delivery);
+                break;
+            case EDT:
+                if (SwingUtilities.isEventDispatchThread()) {
+                    delivery.run();
+                } else {
+                    SwingUtilities.invokeLater(delivery);
+                }
+                break;
+            default:
+                delivery.run();
+                break;
+        }
+    }
+    
+    private void deliverNow(TmcEventListener listener, TmcEvent event) {
+        long start = System.nanoTime();
+        try {
+            listener.receive(event);
+        } catch (Throwable ex) {
+            log.log(Level.WARNING, ex.getMessage(), ex);
+        }
+        long elapsed = System.nanoTime() - start;
+        
+        getStatsFor(listener.getListenerName()).record(elapsed);
+        if (elapsed > SLOW_LISTENER_NANOS) {
+            log.log(Level.INFO, "Event listener {0} took {1} ms to handle {2}", new Object[] {
+                listener.getListenerName(),
+                elapsed / 1000000,
+                event.getClass().getName()
+            });
+        }
+    }
+    
+    private ListenerStats getStatsFor(String listenerName) {
+        synchronized (listenerStats) {
+            ListenerStats stats = listenerStats.get(listenerName);
+            if (stats == null) {
+                stats = new ListenerStats();
+                listenerStats.put(listenerName, stats);
+            }
+            return stats;
+        }
+    }
+    
+    private synchronized ExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TmcEventBus background delivery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+    
+    private synchronized ScheduledExecutorService getCoalescingTimer() {
+        if (coalescingTimer == null) {
+            coalescingTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TmcEventBus coalescing timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+        return coalescingTimer;
     }
 }
@@ -2,7 +2,9 @@ package fi.helsinki.cs.tmc.events;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Receives events related to the TMC plugin.
@@ -10,21 +12,75 @@ import java.util.HashMap;
  * Implement by overloading receive for different subclasses of {@link TmcEvent}.
  */
 public abstract class TmcEventListener {
-    private HashMap<Class<?>, Method> receiverMethods;
+    
+    /**
+     * Determines the thread in which a listener receives events.
+     */
+    public static enum Delivery {
+        /**
+         * In the posting thread, before {@link TmcEventBus#post} returns.
+         */
+        IMMEDIATE,
+        
+        /**
+         * In the event bus's background thread, in the order the events were posted.
+         */
+        BACKGROUND,
+        
+        /**
+         * In the AWT event dispatch thread.
+         */
+        EDT
+    }
+    
+    private static class ReceiverInfo {
+        public final Map<Class<?>, Method> methods;
+        public final boolean receivesAll;
 
-    public TmcEventListener() {
-        receiverMethods = new HashMap<Class<?>, Method>();
-        Method[] allMethods = this.getClass().getMethods();
-        for (Method m : allMethods) {
+        public ReceiverInfo(Map<Class<?>, Method> methods, boolean receivesAll) {
+            this.methods = methods;
+            this.receivesAll = receivesAll;
+        }
+    }
+    
+    // Looking up the receive methods is slow so we do it once per class.
+    private static final Map<Class<?>, ReceiverInfo> receiverInfoCache = new HashMap<Class<?>, ReceiverInfo>();
+    
+    private static ReceiverInfo getReceiverInfo(Class<?> cls) {
+        synchronized (receiverInfoCache) {
+            ReceiverInfo info = receiverInfoCache.get(cls);
+            if (info == null) {
+                info = findReceiverInfo(cls);
+                receiverInfoCache.put(cls, info);
+            }
+            return info;
+        }
+    }
+    
+    private static ReceiverInfo findReceiverInfo(Class<?> cls) {
+        HashMap<Class<?>, Method> methods = new HashMap<Class<?>, Method>();
+        boolean receivesAll = false;
+        for (Method m : cls.getMethods()) {
             if (m.getName().equals("receive") && m.getParameterTypes().length == 1) {
                 m.setAccessible(true);
-                receiverMethods.put(m.getParameterTypes()[0], m);
+                Class<?> paramType = m.getParameterTypes()[0];
+                methods.put(paramType, m);
+                if (paramType == TmcEvent.class && m.getDeclaringClass() != TmcEventListener.class) {
+                    receivesAll = true;
+                }
             }
         }
+        return new ReceiverInfo(Collections.unmodifiableMap(methods), receivesAll);
+    }
+    
+    private final ReceiverInfo receiverInfo;
+
+    public TmcEventListener() {
+        receiverInfo = getReceiverInfo(this.getClass());
     }
 
     public void receive(TmcEvent event) throws Throwable {
-        Method m = receiverMethods.get(event.getClass());
+        Method m = receiverInfo.methods.get(event.getClass());
         if (m != null) {
             try {
                 m.invoke(this, event);
@@ -34,10 +90,52 @@ public abstract class TmcEventListener {
         }
     }
     
+    /**
+     * Whether this listener wants to receive events of the given type.
+     * 
+     * <p>
+     * True if there is a receive method for exactly that type or if
+     * {@link #receive(TmcEvent)} has been overridden.
+     */
+    public boolean handles(Class<? extends TmcEvent> eventType) {
+        return receiverInfo.receivesAll || receiverInfo.methods.containsKey(eventType);
+    }
+    
     /**
      * Whether this listener may be unsubscribed at any point by the event bus.
      */
     public boolean mayBeUnsubscribed() {
         return false;
     }
+    
+    /**
+     * The thread in which this listener wants to receive events.
+     * 
+     * <p>
+     * Listeners that do slow work or UI updates should override this.
+     */
+    public Delivery getDelivery() {
+        return Delivery.IMMEDIATE;
+    }
+    
+    /**
+     * How long to collect events of the given type before delivering them as one.
+     * 
+     * <p>
+     * Zero (the default) means every event is delivered separately.
+     * When positive, events of the type arriving within the window are merged
+     * (see {@link CoalescableEvent}) and delivered once the window ends.
+     * Coalesced events are never delivered in the posting thread: a listener
+     * with {@link Delivery#IMMEDIATE} gets them in the background thread.
+     */
+    public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+        return 0;
+    }
+    
+    /**
+     * A name for the listener in statistics and log messages.
+     */
+    public String getListenerName() {
+        return this.getClass().getName();
+    }
 }
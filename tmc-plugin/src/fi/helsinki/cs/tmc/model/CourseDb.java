@@ -6,16 +6,19 @@ import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.data.CourseListUtils;
 import fi.helsinki.cs.tmc.data.Exercise;
 import fi.helsinki.cs.tmc.data.ExerciseKey;
-import fi.helsinki.cs.tmc.events.TmcEvent;
+import fi.helsinki.cs.tmc.events.CoalescableEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,7 +27,45 @@ import java.util.logging.Logger;
  */
 public class CourseDb {
 
-    public static class ChangedEvent implements TmcEvent {}
+    public static enum Change {
+        AVAILABLE_COURSES,
+        CURRENT_COURSE,
+        DOWNLOADED_EXERCISES
+    }
+    
+    /**
+     * Posted after the database is saved. Tells which parts may have changed.
+     */
+    public static class ChangedEvent implements CoalescableEvent<ChangedEvent> {
+        private final EnumSet<Change> changes;
+        
+        public ChangedEvent() {
+            this(EnumSet.allOf(Change.class));
+        }
+        
+        public ChangedEvent(Change change) {
+            this(EnumSet.of(change));
+        }
+        
+        private ChangedEvent(EnumSet<Change> changes) {
+            this.changes = changes;
+        }
+        
+        public boolean changed(Change change) {
+            return changes.contains(change);
+        }
+        
+        public Set<Change> getChanges() {
+            return Collections.unmodifiableSet(changes);
+        }
+
+        @Override
+        public ChangedEvent mergeWith(ChangedEvent later) {
+            EnumSet<Change> merged = EnumSet.copyOf(this.changes);
+            merged.addAll(later.changes);
+            return new ChangedEvent(merged);
+        }
+    }
     
     public static final Logger logger = Logger.getLogger(CourseDb.class.getName());
     private static CourseDb defaultInstance;
@@ -65,7 +106,7 @@ public class CourseDb {
 
     public void setAvailableCourses(List<Course> availableCourses) {
         this.availableCourses = availableCourses;
-        save();
+        save(new ChangedEvent(Change.AVAILABLE_COURSES));
     }
 
     public Course getCurrentCourse() {
@@ -79,7 +120,7 @@ public class CourseDb {
     public void setCurrentCourseName(String currentCourseName) {
         if (CourseListUtils.hasCourseByName(availableCourses, currentCourseName)) {
             this.currentCourseName = currentCourseName;
-            save();
+            save(new ChangedEvent(Change.CURRENT_COURSE));
         } else {
             logger.warning("Tried to set current course to one not in available courses");
         }
@@ -172,18 +213,35 @@ public class CourseDb {
      */
     public void exerciseDownloaded(Exercise ex) {
         downloadedExerciseChecksums.put(ex.getKey(), ex.getChecksum());
-        save();
+        save(new ChangedEvent(Change.DOWNLOADED_EXERCISES));
+    }
+    
+    /**
+     * Like {@link #exerciseDownloaded(Exercise)} but saves only once.
+     */
+    public void exercisesDownloaded(Collection<Exercise> exercises) {
+        if (exercises.isEmpty()) {
+            return;
+        }
+        for (Exercise ex : exercises) {
+            downloadedExerciseChecksums.put(ex.getKey(), ex.getChecksum());
+        }
+        save(new ChangedEvent(Change.DOWNLOADED_EXERCISES));
     }
     
     //TODO: arrange for downloadedExerciseChecksums.put(..., null) when a project is deleted!
     
     public void save() {
+        save(new ChangedEvent());
+    }
+    
+    private void save(ChangedEvent event) {
         try {
             saveToFile();
         } catch (Exception e) {
             logger.log(Level.WARNING, "Failed to save course database", e);
         }
-        eventBus.post(new ChangedEvent());
+        eventBus.post(event);
     }
     
     private static class StoredStuff {
@@ -0,0 +1,45 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.data.ExerciseManifest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes between a previously downloaded version of an exercise and
+ * the current one on the server.
+ * 
+ * <p>
+ * All paths are relative to the project directory and use '/' as the separator.
+ */
+public class ExerciseDelta {
+    private ExerciseManifest manifest;
+    private Map<String, byte[]> changedFiles = new HashMap<String, byte[]>();
+    private List<String> removedFiles = new ArrayList<String>();
+
+    public ExerciseDelta(ExerciseManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * The new manifest of the exercise.
+     */
+    public ExerciseManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * New and changed files with their (hash-verified) contents.
+     */
+    public Map<String, byte[]> getChangedFiles() {
+        return changedFiles;
+    }
+
+    /**
+     * Files that existed in the old version but no longer exist.
+     */
+    public List<String> getRemovedFiles() {
+        return removedFiles;
+    }
+}
@@ -0,0 +1,115 @@
+package fi.helsinki.cs.tmc.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import fi.helsinki.cs.tmc.data.ExerciseKey;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the file hashes of the exercise versions last downloaded from the server.
+ * 
+ * <p>
+ * Used to compute which files need to be fetched when updating an exercise.
+ */
+public class ExerciseManifestCache {
+    private static final Logger logger = Logger.getLogger(ExerciseManifestCache.class.getName());
+    private static ExerciseManifestCache defaultInstance;
+
+    public static synchronized ExerciseManifestCache getInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new ExerciseManifestCache(new ConfigFile("ExerciseManifests.json"));
+        }
+        return defaultInstance;
+    }
+
+    private ConfigFile configFile;
+    private Map<ExerciseKey, Map<String, String>> fileHashes;
+
+    public ExerciseManifestCache(ConfigFile configFile) {
+        this.configFile = configFile;
+        this.fileHashes = new HashMap<ExerciseKey, Map<String, String>>();
+        try {
+            loadFromFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load exercise manifest cache", e);
+        }
+    }
+
+    /**
+     * Returns the file hashes of the downloaded version of the exercise, or null if unknown.
+     * 
+     * <p>
+     * Paths use '/' as the separator.
+     */
+    public synchronized Map<String, String> getFileHashes(ExerciseKey key) {
+        Map<String, String> hashes = fileHashes.get(key);
+        if (hashes != null) {
+            return Collections.unmodifiableMap(new HashMap<String, String>(hashes));
+        } else {
+            return null;
+        }
+    }
+
+    public synchronized void setFileHashes(ExerciseKey key, Map<String, String> hashes) {
+        if (hashes != null) {
+            fileHashes.put(key, new HashMap<String, String>(hashes));
+        } else {
+            fileHashes.remove(key);
+        }
+        save();
+    }
+
+    private void save() {
+        try {
+            saveToFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to save exercise manifest cache", e);
+        }
+    }
+
+    private void saveToFile() throws IOException {
+        Writer w = configFile.getWriter();
+        try {
+            getGson().toJson(fileHashes, getStoredType(), w);
+        } finally {
+            w.close();
+        }
+    }
+
+    private void loadFromFile() throws IOException {
+        if (!configFile.exists()) {
+            return;
+        }
+
+        Reader reader = configFile.getReader();
+        Map<ExerciseKey, Map<String, String>> stored;
+        try {
+            stored = getGson().fromJson(reader, getStoredType());
+        } finally {
+            reader.close();
+        }
+        if (stored != null) {
+            fileHashes.clear();
+            fileHashes.putAll(stored);
+        }
+    }
+
+    private Type getStoredType() {
+        return new TypeToken<Map<ExerciseKey, Map<String, String>>>() {}.getType();
+    }
+
+    private Gson getGson() {
+        return new GsonBuilder()
+                .registerTypeAdapter(ExerciseKey.class, new ExerciseKey.GsonAdapter())
+                .create();
+    }
+}
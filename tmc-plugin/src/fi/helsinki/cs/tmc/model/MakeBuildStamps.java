@@ -0,0 +1,172 @@
+package fi.helsinki.cs.tmc.model;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import fi.helsinki.cs.tmc.utilities.HashUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Remembers the sources each Makefile project was last built from successfully.
+ *
+ * <p>
+ * A build may be skipped if the sources hash the same and the output is still there.
+ * Make itself goes by modification times, which change on every save.
+ */
+public class MakeBuildStamps {
+    private static final Logger logger = Logger.getLogger(MakeBuildStamps.class.getName());
+    private static MakeBuildStamps defaultInstance;
+
+    private static final List<String> SOURCE_EXTENSIONS = Arrays.asList("c", "h", "mk");
+    private static final List<String> MAKEFILE_NAMES = Arrays.asList("Makefile", "makefile", "GNUmakefile");
+
+    public static synchronized MakeBuildStamps getInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new MakeBuildStamps(new ConfigFile("MakeBuildStamps.json"));
+        }
+        return defaultInstance;
+    }
+
+    private static class Stamp {
+        public String sourceHash;
+        public long outputModified;
+    }
+
+    private ConfigFile configFile;
+    private Map<String, Stamp> stamps; // Keyed by absolute path of the project
+
+    public MakeBuildStamps(ConfigFile configFile) {
+        this.configFile = configFile;
+        this.stamps = new HashMap<String, Stamp>();
+        try {
+            loadFromFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load make build stamps", e);
+        }
+    }
+
+    /**
+     * Hashes the names and contents of the C sources, headers and Makefiles under the project.
+     */
+    public String hashSources(File projectDir) throws IOException {
+        List<File> sources = new ArrayList<File>();
+        findSources(projectDir, sources);
+
+        String prefix = projectDir.getAbsolutePath() + File.separator;
+        MessageDigest digest = HashUtils.newSha1();
+        for (File source : sources) {
+            digest.update(source.getAbsolutePath().substring(prefix.length()).getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(HashUtils.sha1Hex(FileUtils.readFileToByteArray(source)).getBytes("UTF-8"));
+        }
+        return HashUtils.toHex(digest.digest());
+    }
+
+    private void findSources(File dir, List<File> result) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().startsWith(".")) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                findSources(file, result);
+            } else if (isSource(file.getName())) {
+                result.add(file);
+            }
+        }
+    }
+
+    private boolean isSource(String name) {
+        if (MAKEFILE_NAMES.contains(name)) {
+            return true;
+        }
+        int dot = name.lastIndexOf('.');
+        return dot != -1 && SOURCE_EXTENSIONS.contains(name.substring(dot + 1));
+    }
+
+    /**
+     * Whether the output was built from sources with the given hash and hasn't been touched since.
+     */
+    public synchronized boolean isUpToDate(File projectDir, String sourceHash, File output) {
+        Stamp stamp = stamps.get(projectDir.getAbsolutePath());
+        return stamp != null
+                && stamp.sourceHash.equals(sourceHash)
+                && output.isFile()
+                && output.lastModified() == stamp.outputModified;
+    }
+
+    /**
+     * Records a successful build.
+     */
+    public synchronized void markBuilt(File projectDir, String sourceHash, File output) {
+        Stamp stamp = new Stamp();
+        stamp.sourceHash = sourceHash;
+        stamp.outputModified = output.lastModified();
+        stamps.put(projectDir.getAbsolutePath(), stamp);
+        save();
+    }
+
+    /**
+     * Forgets the last build, e.g. because a new one failed.
+     */
+    public synchronized void forget(File projectDir) {
+        if (stamps.remove(projectDir.getAbsolutePath()) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        try {
+            saveToFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to save make build stamps", e);
+        }
+    }
+
+    private void saveToFile() throws IOException {
+        Writer w = configFile.getWriter();
+        try {
+            new Gson().toJson(stamps, getStoredType(), w);
+        } finally {
+            w.close();
+        }
+    }
+
+    private void loadFromFile() throws IOException {
+        if (!configFile.exists()) {
+            return;
+        }
+
+        Reader reader = configFile.getReader();
+        Map<String, Stamp> stored;
+        try {
+            stored = new Gson().fromJson(reader, getStoredType());
+        } finally {
+            reader.close();
+        }
+        if (stored != null) {
+            stamps.clear();
+            stamps.putAll(stored);
+        }
+    }
+
+    private Type getStoredType() {
+        return new TypeToken<Map<String, Stamp>>() {}.getType();
+    }
+}
@@ -9,6 +9,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
@@ -42,16 +44,35 @@ public class ProjectMediator {
     private OpenProjects openProjects;
     private ProjectManager projectManager;
     
+    // The caches must not refer to the project or it would never be collected.
+    private final Map<Project, TmcProjectInfo.ProjectTypeCache> projectTypeCaches;
+    
     public ProjectMediator() {
         this.openProjects = OpenProjects.getDefault();
         this.projectManager = ProjectManager.getDefault();
+        this.projectTypeCaches = new WeakHashMap<Project, TmcProjectInfo.ProjectTypeCache>();
     }
     
+    /**
+     * Returns a TmcProjectInfo for the given project.
+     * 
+     * <p>
+     * All infos of the same project share cached information
+     * for as long as the project itself is in memory.
+     */
     public TmcProjectInfo wrapProject(Project p) {
         if (p == null) {
             throw new NullPointerException();
         }
-        return new TmcProjectInfo(p);
+        TmcProjectInfo.ProjectTypeCache cache;
+        synchronized (projectTypeCaches) {
+            cache = projectTypeCaches.get(p);
+            if (cache == null) {
+                cache = new TmcProjectInfo.ProjectTypeCache(p.getProjectDirectory());
+                projectTypeCaches.put(p, cache);
+            }
+        }
+        return new TmcProjectInfo(p, cache);
     }
     
     public List<TmcProjectInfo> wrapProjects(List<Project> projects) {
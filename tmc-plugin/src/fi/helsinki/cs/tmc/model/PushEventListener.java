@@ -4,9 +4,15 @@ import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import fi.helsinki.cs.tmc.events.TmcEventListener;
+import fi.helsinki.cs.tmc.utilities.ExponentialBackoff;
+import fi.helsinki.cs.tmc.utilities.metrics.Gauge;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.cometd.bayeux.Channel;
@@ -20,10 +26,18 @@ import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
 
 /**
  * Receives HTTP push events and fires the appropriate events.
+ *
+ * <p>
+ * The connection is checked periodically. It's restarted, with increasing delays
+ * between attempts, if it's down or the server hasn't answered a Bayeux connect
+ * message for a while.
  */
 public class PushEventListener {
     private static final Logger log = Logger.getLogger(PushEventListener.class.getName());
-    private static final long CONNECTION_CHECK_INTERVAL = 120*1000;
+    private static final long CONNECTION_CHECK_INTERVAL = 5*1000;
+    private static final long HEARTBEAT_TIMEOUT = 90*1000; // Bayeux connects every 30s by default
+    private static final long MIN_RECONNECT_DELAY = 15*1000;
+    private static final long MAX_RECONNECT_DELAY = 10*60*1000;
 
     public static class ReviewAvailableEvent implements TmcEvent {
         public final String exerciseName;
@@ -34,8 +48,45 @@ public class PushEventListener {
         }
     }
     
+    /**
+     * The server says something in a course changed, e.g. an exercise was added, updated or unlocked.
+     */
+    public static class CourseChangedEvent implements TmcEvent {
+        public final String courseName;
+        public final String exerciseName; // Null if not about a single exercise
+        public CourseChangedEvent(String courseName, String exerciseName) {
+            this.courseName = courseName;
+            this.exerciseName = exerciseName;
+        }
+    }
+    
     private static PushEventListener instance;
-    public static void start() {
+    
+    /**
+     * Whether push events have been arriving without a break since the given time
+     * (from {@link System#currentTimeMillis()}), so nothing pushed since then has been missed.
+     */
+    public static boolean hasBeenConnectedSince(long timeMillis) {
+        PushEventListener listener;
+        synchronized (PushEventListener.class) {
+            listener = instance;
+        }
+        return listener != null && listener.isConnectedSince(timeMillis);
+    }
+    
+    /**
+     * Like {@link #hasBeenConnectedSince(long)} but also requires that the server
+     * has been pushing changes to the current course.
+     */
+    public static boolean hasBeenReceivingCourseChangesSince(long timeMillis) {
+        PushEventListener listener;
+        synchronized (PushEventListener.class) {
+            listener = instance;
+        }
+        return listener != null && listener.isReceivingCourseChangesSince(timeMillis);
+    }
+    
+    public static synchronized void start() {
         if (instance == null) {
             instance = new PushEventListener();
         } else {
@@ -43,53 +94,170 @@ public class PushEventListener {
         }
     }
     
+    /**
+     * Disconnects and releases the WebSocket client threads.
+     */
+    public static void stop() {
+        // Don't hold the class lock while waiting for the instance lock
+        PushEventListener listener;
+        synchronized (PushEventListener.class) {
+            listener = instance;
+            instance = null;
+        }
+        if (listener != null) {
+            listener.shutdown();
+        }
+        stopWebSocketClientFactory();
+    }
+    
+    // Shared by all clients. Its threads live until stop().
+    private static final Object factoryLock = new Object();
+    private static WebSocketClientFactory webSocketClientFactory;
+    
     private TmcSettings settings;
     private CourseDb courseDb;
     private TmcEventBus eventBus;
     private BayeuxClient client;
-    private boolean shouldReconnect;
+    private String connectedCometUrl; // The URL the current client was created for
+    private String connectedCourseName; // The course whose channels the current client subscribes to
+    private boolean connectedCoursePushesChanges; // Whether the server said it pushes that course's changes
+    private java.util.Timer timer;
+    private ExponentialBackoff backoff;
+    private long nextAttemptTime; // When the supervisor may next restart the client
+    private long lastHeartbeatTime; // When the server last answered a connect message
+    private long connectedSince; // System.nanoTime() of the handshake, or -1 if not connected
+    private long connectedSinceMillis; // The same from System.currentTimeMillis()
 
     PushEventListener() {
         this.settings = TmcSettings.getDefault();
         this.courseDb = CourseDb.getInstance();
         this.eventBus = TmcEventBus.getDefault();
-        this.shouldReconnect = false;
+        this.backoff = new ExponentialBackoff(MIN_RECONNECT_DELAY, MAX_RECONNECT_DELAY);
+        this.connectedSince = -1;
         
         client = createDummyClient(); // To avoid client ever being null
         initClientIfPossible();
         
+        Metrics.getDefault().register("push.connected-millis", new Gauge() {
+            @Override
+            public long getValue() {
+                return getConnectedMillis();
+            }
+        });
+        
         this.eventBus.subscribeDependent(new TmcEventListener() {
             public void receive(TmcSettings.SavedEvent e) {
                 reconnect();
             }
             
             public void receive(CourseDb.ChangedEvent e) {
-                reconnect();
+                if (e.changed(CourseDb.Change.AVAILABLE_COURSES) || e.changed(CourseDb.Change.CURRENT_COURSE)) {
+                    reconnectIfCometUrlChanged();
+                }
+            }
+            
+            @Override
+            public Delivery getDelivery() {
+                return Delivery.BACKGROUND; // Reconnecting may block
+            }
+            
+            @Override
+            public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+                return 500;
             }
         }, this);
         
-        java.util.Timer timer = new java.util.Timer("PushEventListener reconnect", true);
+        timer = new java.util.Timer("PushEventListener supervisor", true);
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                ensureConnected();
+                try {
+                    superviseConnection();
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Comet connection check failed", e);
+                }
             }
-        }, CONNECTION_CHECK_INTERVAL);
+        }, CONNECTION_CHECK_INTERVAL, CONNECTION_CHECK_INTERVAL);
+    }
+    
+    /**
+     * Restarts the client if it's not healthy and the backoff delay has passed.
+     */
+    private synchronized void superviseConnection() {
+        if (isHealthy() || System.currentTimeMillis() < nextAttemptTime) {
+            return;
+        }
+        if (courseDb.getCurrentCourse() == null || !hasEnoughSettings()) {
+            return;
+        }
+        
+        log.log(Level.INFO, "Comet connection is down. Reconnecting (attempt {0}).", backoff.getFailures() + 1);
+        Metrics.getDefault().counter("push.reconnects").increment();
+        restartClient();
+    }
+    
+    private synchronized boolean isHealthy() {
+        return connectedSince != -1
+                && !client.isDisconnected()
+                && System.currentTimeMillis() - lastHeartbeatTime < HEARTBEAT_TIMEOUT;
+    }
+    
+    private synchronized boolean isConnectedSince(long timeMillis) {
+        return isHealthy() && connectedSinceMillis <= timeMillis;
+    }
+    
+    private synchronized boolean isReceivingCourseChangesSince(long timeMillis) {
+        return connectedCoursePushesChanges && isConnectedSince(timeMillis);
+    }
+    
+    private synchronized long getConnectedMillis() {
+        if (connectedSince == -1) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedSince);
+    }
+    
+    private synchronized void connectionEnded() {
+        if (connectedSince != -1) {
+            Metrics.getDefault().histogram("push.connection-uptime").record(System.nanoTime() - connectedSince);
+            connectedSince = -1;
+        }
+    }
+    
+    private synchronized void shutdown() {
+        timer.cancel();
+        connectionEnded();
+        if (!client.isDisconnected()) {
+            client.disconnect();
+        }
     }
     
-    private synchronized void ensureConnected() {
-        if (client.isDisconnected()) {
-            initClientIfPossible();
+    private synchronized void reconnectIfCometUrlChanged() {
+        Course course = courseDb.getCurrentCourse();
+        String cometUrl = (course != null) ? course.getCometUrl() : null;
+        String courseName = (course != null) ? course.getName() : null;
+        boolean pushesChanges = (course != null) && course.isPushingCourseChanges();
+        if (cometUrl != null && cometUrl.equals(connectedCometUrl) && courseName.equals(connectedCourseName)
+                && pushesChanges == connectedCoursePushesChanges && !client.isDisconnected()) {
+            return;
         }
+        reconnect();
     }
     
     private synchronized void reconnect() {
-        if (client.isConnected()) {
-            shouldReconnect = true;
+        backoff.reset();
+        restartClient();
+    }
+    
+    /**
+     * Drops the current client and starts a new one. Messages to the old client are ignored from now on.
+     */
+    private synchronized void restartClient() {
+        connectionEnded();
+        if (!client.isDisconnected()) {
             client.disconnect();
-        } else {
-            initClientIfPossible();
         }
+        initClientIfPossible();
     }
     
     private synchronized void initClientIfPossible() {
@@ -103,11 +271,17 @@ public class PushEventListener {
             return;
         }
         
+        nextAttemptTime = System.currentTimeMillis() + backoff.nextDelay();
+        
         String cometUrl = course.getCometUrl();
         WebSocketTransport transport = createWebSocketTransport();
 
         client = new BayeuxClient(cometUrl, transport);
+        connectedCometUrl = cometUrl;
+        connectedCourseName = course.getName();
+        connectedCoursePushesChanges = course.isPushingCourseChanges();
         client.getChannel(Channel.META_HANDSHAKE).addListener(handshakeListener);
+        client.getChannel(Channel.META_CONNECT).addListener(connectListener);
         client.getChannel(Channel.META_DISCONNECT).addListener(disconnectListener);
 
         client.addExtension(getAuthenticationExtension(getAuthFields()));
@@ -116,10 +290,43 @@ public class PushEventListener {
     
     private WebSocketTransport createWebSocketTransport() {
         Map<String, Object> transportOpts = new HashMap<String, Object>();
-        WebSocketTransport transport = WebSocketTransport.create(transportOpts, new WebSocketClientFactory());
+        WebSocketTransport transport = WebSocketTransport.create(transportOpts, getWebSocketClientFactory());
         return transport;
     }
-
+    
+    /**
+     * Returns the shared factory, starting it if needed.
+     * If it fails to start, it's returned anyway and started again next time.
+     */
+    private static WebSocketClientFactory getWebSocketClientFactory() {
+        synchronized (factoryLock) {
+            if (webSocketClientFactory == null) {
+                WebSocketClientFactory factory = new WebSocketClientFactory();
+                try {
+                    factory.start();
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Failed to start WebSocket client factory", e);
+                    return factory;
+                }
+                webSocketClientFactory = factory;
+            }
+            return webSocketClientFactory;
+        }
+    }
+    
+    private static void stopWebSocketClientFactory() {
+        synchronized (factoryLock) {
+            if (webSocketClientFactory != null) {
+                try {
+                    webSocketClientFactory.stop();
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Failed to stop WebSocket client factory", e);
+                }
+                webSocketClientFactory = null;
+            }
+        }
+    }
+    
     private BayeuxClient createDummyClient() {
         return new BayeuxClient("http://localhost/dummy-comet-url", createWebSocketTransport());
     }
@@ -167,7 +374,7 @@ public class PushEventListener {
         @Override
         public void onMessage(ClientSessionChannel csc, Message msg) {
             if (msg.isSuccessful()) {
-                subscribeToReviews();
+                handleHandshake(csc.getSession());
                 log.fine("Comet handshake successful.");
             } else {
                 log.warning("Comet handshake failed. Will retry.");
@@ -175,23 +382,50 @@ public class PushEventListener {
         }
     };
     
+    private MessageListener connectListener = new MessageListener() {
+        @Override
+        public void onMessage(ClientSessionChannel csc, Message msg) {
+            if (msg.isSuccessful()) {
+                handleHeartbeat(csc.getSession());
+            }
+        }
+    };
+    
     private MessageListener disconnectListener = new MessageListener() {
         @Override
         public void onMessage(ClientSessionChannel csc, Message msg) {
             if (msg.isSuccessful()) {
-                handleDisconnect();
+                handleDisconnect(csc.getSession());
             } else {
                 log.warning("WTF, received a failed comet disconnect msg.");
             }
         }
     };
     
-    private synchronized void handleDisconnect() {
-        if (shouldReconnect) {
-            shouldReconnect = false;
-            ensureConnected();
-        } else {
-            log.info("Comet disconnected without plans for immediate reconnect.");
+    private synchronized void handleHandshake(ClientSession session) {
+        if (session != client) {
+            return;
+        }
+        backoff.reset();
+        connectedSince = System.nanoTime();
+        connectedSinceMillis = System.currentTimeMillis();
+        lastHeartbeatTime = connectedSinceMillis;
+        subscribeToReviews();
+        if (connectedCoursePushesChanges) {
+            subscribeToCourseChanges();
+        }
+    }
+    
+    private synchronized void handleHeartbeat(ClientSession session) {
+        if (session == client) {
+            lastHeartbeatTime = System.currentTimeMillis();
+        }
+    }
+    
+    private synchronized void handleDisconnect(ClientSession session) {
+        if (session == client) {
+            connectionEnded();
+            log.info("Comet disconnected. The supervisor will reconnect.");
         }
     }
     
@@ -201,6 +435,24 @@ public class PushEventListener {
         client.getChannel(channel).subscribe(reviewAvailableListener);
     }
     
+    // Only if the course says the server pushes these
+    private synchronized void subscribeToCourseChanges() {
+        String username = settings.getUsername();
+        String courseChannelPrefix = "/broadcast/course/" + encodeChannelSegment(connectedCourseName);
+        client.getChannel(courseChannelPrefix + "/course-changed").subscribe(courseChangedListener);
+        client.getChannel(courseChannelPrefix + "/exercise-updated").subscribe(courseChangedListener);
+        client.getChannel("/broadcast/user/" + username + "/exercise-unlocked").subscribe(courseChangedListener);
+    }
+    
+    // Course names may contain characters that aren't allowed or mean something else in channel names
+    private static String encodeChannelSegment(String segment) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
     private MessageListener reviewAvailableListener = new MessageListener() {
         @Override
         public void onMessage(ClientSessionChannel csc, Message msg) {
@@ -212,4 +464,21 @@ public class PushEventListener {
                     ));
         }
     };
+    
+    private MessageListener courseChangedListener = new MessageListener() {
+        @Override
+        public void onMessage(ClientSessionChannel csc, Message msg) {
+            log.log(Level.INFO, "Comet message on {0}: {1}", new Object[] {csc.getId(), msg});
+            Map<String, Object> data = msg.getDataAsMap();
+            Object exerciseName = (data != null) ? data.get("exercise_name") : null;
+            String courseName;
+            synchronized (PushEventListener.this) {
+                courseName = connectedCourseName;
+            }
+            eventBus.post(new CourseChangedEvent(
+                    courseName,
+                    exerciseName != null ? exerciseName.toString() : null
+                    ));
+        }
+    };
 }
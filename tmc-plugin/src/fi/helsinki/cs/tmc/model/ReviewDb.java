@@ -1,19 +1,40 @@
 package fi.helsinki.cs.tmc.model;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
 import fi.helsinki.cs.tmc.data.Review;
 import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
 
 /**
  * Stores and periodically updates reviews.
- * 
+ *
  * <p>
- * Currently this is an in-memory-only store, so it's always initially empty when the program starts.
+ * The reviews, the ETag of the review list they came from and the reviews
+ * already notified about are saved, so a restart neither re-notifies nor
+ * re-downloads an unchanged list. They are saved along with the user and server
+ * they belong to, and forgotten when either changes.
  */
 public class ReviewDb {
 
@@ -23,62 +44,292 @@ public class ReviewDb {
             this.review = review;
         }
     }
-    
-    public static final Logger logger = Logger.getLogger(CourseDb.class.getName());
+
+    public static final Logger logger = Logger.getLogger(ReviewDb.class.getName());
     private static ReviewDb instance;
-    
-    private TmcEventBus eventBus; //TODO: send out an event on new unread reviews
-    
-    public static ReviewDb getInstance() {
+
+    private TmcEventBus eventBus;
+    private ConfigFile configFile;
+    private TmcSettings settings;
+
+    public static synchronized ReviewDb getInstance() {
         if (instance == null) {
-            instance = new ReviewDb();
+            instance = new ReviewDb(TmcEventBus.getDefault(), new ConfigFile("ReviewDb.json"), TmcSettings.getDefault());
         }
         return instance;
     }
-    
-    
+
     private ArrayList<Review> reviews;
     private HashSet<Integer> reviewIdsNotifiedAbout;
-    
-    private ReviewDb() {
-        this(TmcEventBus.getDefault());
+    private String reviewListUrl; // Where the reviews were downloaded from
+    private String reviewListETag; // Null if unknown
+    private String username; // Whose reviews these are
+    private String serverBaseUrl;
+
+    private Map<Integer, Review> reviewsById;
+    private Map<String, List<Review>> reviewsByExerciseName;
+
+    public ReviewDb(TmcEventBus eventBus, ConfigFile configFile, TmcSettings settings) {
+        this.eventBus = eventBus;
+        this.configFile = configFile;
+        this.settings = settings;
+        this.username = settings.getUsername();
+        this.serverBaseUrl = settings.getServerBaseUrl();
         this.reviews = new ArrayList<Review>();
         this.reviewIdsNotifiedAbout = new HashSet<Integer>();
+        this.reviewsById = new HashMap<Integer, Review>();
+        this.reviewsByExerciseName = new HashMap<String, List<Review>>();
+        try {
+            loadFromFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load review database", e);
+        }
+        rebuildIndexes();
     }
 
-    public ReviewDb(TmcEventBus eventBus) {
-        this.eventBus = eventBus;
-    }
-    
     /**
      * Updates the review store and fires an event if there is a new unread review.
-     * 
+     *
      * @return whether there were any new unread reviews (for which events were fired).
      */
     public boolean setReviews(List<Review> newReviews) {
-        boolean newUnreadReviewsSeen = false;
-        for (Review review : newReviews) {
+        return setReviews(newReviews, null, null);
+    }
+
+    /**
+     * Like {@link #setReviews(List)} but also remembers where the list came from and its ETag.
+     */
+    public boolean setReviews(List<Review> newReviews, String url, String etag) {
+        List<Review> toNotify;
+        synchronized (this) {
+            forgetIfAccountChanged();
+            this.reviews.clear();
+            this.reviews.addAll(newReviews);
+            this.reviewListUrl = url;
+            this.reviewListETag = etag;
+            rebuildIndexes();
+            toNotify = findUnreadNotNotifiedAbout();
+            save();
+        }
+        for (Review review : toNotify) {
+            eventBus.post(new NewUnreadReviewEvent(review));
+        }
+        return !toNotify.isEmpty();
+    }
+
+    /**
+     * Fires events for unread reviews not yet notified about, as {@link #setReviews(List)} would.
+     * Used when the server says the review list hasn't changed.
+     *
+     * @return whether there were any such reviews.
+     */
+    public boolean notifyAboutUnreadReviews() {
+        List<Review> toNotify;
+        synchronized (this) {
+            forgetIfAccountChanged();
+            toNotify = findUnreadNotNotifiedAbout();
+            if (!toNotify.isEmpty()) {
+                save();
+            }
+        }
+        for (Review review : toNotify) {
+            eventBus.post(new NewUnreadReviewEvent(review));
+        }
+        return !toNotify.isEmpty();
+    }
+
+    // Marks the returned reviews as notified about
+    private List<Review> findUnreadNotNotifiedAbout() {
+        List<Review> result = new ArrayList<Review>();
+        for (Review review : reviews) {
             if (!review.isMarkedAsRead() && !reviewIdsNotifiedAbout.contains(review.getId())) {
-                newUnreadReviewsSeen = true;
-                notifyAboutNewReview(review);
+                reviewIdsNotifiedAbout.add(review.getId());
+                result.add(review);
             }
         }
-        
-        this.reviews.clear();
-        this.reviews.addAll(newReviews);
-        return newUnreadReviewsSeen;
+        return result;
     }
-    
+
+    /**
+     * Returns the ETag of the review list last downloaded from the given URL, or null.
+     */
+    public synchronized String getReviewListETag(String url) {
+        forgetIfAccountChanged();
+        if (url != null && url.equals(reviewListUrl)) {
+            return reviewListETag;
+        }
+        return null;
+    }
+
+    public synchronized List<Review> getReviews() {
+        return new ArrayList<Review>(reviews);
+    }
+
+    /**
+     * Returns the review with the given ID, or null.
+     */
+    public synchronized Review getReviewById(int id) {
+        return reviewsById.get(id);
+    }
+
+    public synchronized List<Review> getReviewsForExercise(String exerciseName) {
+        List<Review> result = reviewsByExerciseName.get(exerciseName);
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Review>(result);
+    }
+
+    /**
+     * Whether the given review is known and its unread status has already been notified about.
+     */
+    public synchronized boolean isKnownAndNotifiedAbout(String exerciseName, String reviewUrl) {
+        List<Review> candidates = reviewsByExerciseName.get(exerciseName);
+        if (candidates == null) {
+            return false;
+        }
+        for (Review review : candidates) {
+            if (reviewUrl.equals(review.getUrl())) {
+                return review.isMarkedAsRead() || reviewIdsNotifiedAbout.contains(review.getId());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that a review was marked as read on the server.
+     * The ETag is forgotten since the server's list no longer matches it.
+     */
+    public synchronized void markAsRead(Review review) {
+        Review stored = reviewsById.get(review.getId());
+        if (stored != null) {
+            stored.setMarkedAsRead(true);
+        }
+        review.setMarkedAsRead(true);
+        reviewListETag = null;
+        save();
+    }
+
     /**
      * Makes it so that all unread reviews cause a notification again.
      * Normally an unread review is not notified about twice.
      */
-    public void forgetReviewsNotifiedAbout() {
+    public synchronized void forgetReviewsNotifiedAbout() {
         reviewIdsNotifiedAbout.clear();
+        save();
+    }
+
+    // The settings may change at any time
+    private void forgetIfAccountChanged() {
+        String currentUsername = settings.getUsername();
+        String currentServerBaseUrl = settings.getServerBaseUrl();
+        if (StringUtils.equals(username, currentUsername) && StringUtils.equals(serverBaseUrl, currentServerBaseUrl)) {
+            return;
+        }
+        logger.log(Level.INFO, "User or server changed. Forgetting reviews.");
+        reviews.clear();
+        reviewIdsNotifiedAbout.clear();
+        reviewListUrl = null;
+        reviewListETag = null;
+        username = currentUsername;
+        serverBaseUrl = currentServerBaseUrl;
+        rebuildIndexes();
+    }
+
+    private void rebuildIndexes() {
+        reviewsById.clear();
+        reviewsByExerciseName.clear();
+        for (Review review : reviews) {
+            reviewsById.put(review.getId(), review);
+            List<Review> forExercise = reviewsByExerciseName.get(review.getExerciseName());
+            if (forExercise == null) {
+                forExercise = new ArrayList<Review>();
+                reviewsByExerciseName.put(review.getExerciseName(), forExercise);
+            }
+            forExercise.add(review);
+        }
+    }
+
+    private void save() {
+        try {
+            saveToFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to save review database", e);
+        }
     }
-    
-    private void notifyAboutNewReview(Review review) {
-        reviewIdsNotifiedAbout.add(review.getId());
-        eventBus.post(new NewUnreadReviewEvent(review));
+
+    private static class StoredStuff {
+        public List<Review> reviews;
+        public List<Integer> reviewIdsNotifiedAbout;
+        public String reviewListUrl;
+        public String reviewListETag;
+        public String username;
+        public String serverBaseUrl;
+    }
+
+    private void saveToFile() throws IOException {
+        StoredStuff stuff = new StoredStuff();
+        stuff.reviews = this.reviews;
+        stuff.reviewIdsNotifiedAbout = new ArrayList<Integer>(this.reviewIdsNotifiedAbout);
+        stuff.reviewListUrl = this.reviewListUrl;
+        stuff.reviewListETag = this.reviewListETag;
+        stuff.username = this.username;
+        stuff.serverBaseUrl = this.serverBaseUrl;
+        Writer w = configFile.getWriter();
+        try {
+            getGson().toJson(stuff, w);
+        } finally {
+            w.close();
+        }
+    }
+
+    private void loadFromFile() throws IOException {
+        if (!configFile.exists()) {
+            return;
+        }
+
+        Reader reader = configFile.getReader();
+        StoredStuff stuff;
+        try {
+            stuff = getGson().fromJson(reader, StoredStuff.class);
+        } finally {
+            reader.close();
+        }
+        if (stuff != null && !(StringUtils.equals(stuff.username, username) && StringUtils.equals(stuff.serverBaseUrl, serverBaseUrl))) {
+            logger.log(Level.INFO, "Ignoring stored reviews of another user or server.");
+            return;
+        }
+        if (stuff != null) {
+            if (stuff.reviews != null) {
+                this.reviews.clear();
+                this.reviews.addAll(stuff.reviews);
+            }
+            if (stuff.reviewIdsNotifiedAbout != null) {
+                this.reviewIdsNotifiedAbout.clear();
+                this.reviewIdsNotifiedAbout.addAll(stuff.reviewIdsNotifiedAbout);
+            }
+            this.reviewListUrl = stuff.reviewListUrl;
+            this.reviewListETag = stuff.reviewListETag;
+        }
+    }
+
+    private Gson getGson() {
+        return new GsonBuilder()
+                .serializeNulls()
+                .registerTypeAdapter(Date.class, new DateAsMillisAdapter())
+                .create();
+    }
+
+    // The default format depends on the locale
+    private static class DateAsMillisAdapter implements JsonSerializer<Date>, JsonDeserializer<Date> {
+        @Override
+        public JsonElement serialize(Date date, Type type, JsonSerializationContext jsc) {
+            return new JsonPrimitive(date.getTime());
+        }
+
+        @Override
+        public Date deserialize(JsonElement json, Type type, JsonDeserializationContext jdc) throws JsonParseException {
+            return new Date(json.getAsLong());
+        }
     }
 }
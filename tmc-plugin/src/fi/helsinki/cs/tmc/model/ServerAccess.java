@@ -4,12 +4,15 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import fi.helsinki.cs.tmc.data.Course;
 import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.data.ExerciseManifest;
 import fi.helsinki.cs.tmc.data.FeedbackAnswer;
 import fi.helsinki.cs.tmc.data.Review;
 import fi.helsinki.cs.tmc.data.serialization.CourseListParser;
+import fi.helsinki.cs.tmc.data.serialization.ExerciseManifestParser;
 import fi.helsinki.cs.tmc.data.serialization.ReviewListParser;
 import fi.helsinki.cs.tmc.spyware.LoggableEvent;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.HashUtils;
 import fi.helsinki.cs.tmc.utilities.UriUtils;
 import fi.helsinki.cs.tmc.utilities.http.FailedHttpResponseException;
 import fi.helsinki.cs.tmc.utilities.http.HttpTasks;
@@ -27,6 +30,19 @@ import org.openide.modules.Modules;
 public class ServerAccess {
     public static final int API_VERSION = 5;
     
+    /**
+     * A review list from {@link ServerAccess#getDownloadingReviewListTask(Course, String)}.
+     */
+    public static class ReviewListDownload {
+        public final List<Review> reviews; // Null if the list hadn't changed
+        public final String etag;
+        
+        public ReviewListDownload(List<Review> reviews, String etag) {
+            this.reviews = reviews;
+            this.etag = etag;
+        }
+    }
+    
     private TmcSettings settings;
     private CourseListParser courseListParser;
     private ReviewListParser reviewListParser;
@@ -136,6 +152,58 @@ public class ServerAccess {
         return createHttpTasks().getForBinary(zipUrl);
     }
     
+    /**
+     * Returns a task that downloads only the files of the exercise that differ
+     * from the given previously downloaded file hashes.
+     * 
+     * <p>
+     * The exercise must have a manifest URL. Downloaded files are verified
+     * against the hashes in the manifest.
+     */
+    public CancellableCallable<ExerciseDelta> getDownloadingExerciseDeltaTask(Exercise exercise, final Map<String, String> oldFileHashes) {
+        final CancellableCallable<String> manifestDownload = createHttpTasks().getForText(exercise.getManifestUrl());
+        return new CancellableCallable<ExerciseDelta>() {
+            private volatile boolean cancelled = false;
+            private volatile CancellableCallable<?> currentTask = manifestDownload;
+
+            @Override
+            public ExerciseDelta call() throws Exception {
+                ExerciseManifest manifest = new ExerciseManifestParser().parseFromJson(manifestDownload.call());
+                ExerciseDelta delta = new ExerciseDelta(manifest);
+
+                Map<String, String> newFileHashes = manifest.getFileHashes();
+                for (String oldPath : oldFileHashes.keySet()) {
+                    if (!newFileHashes.containsKey(oldPath)) {
+                        delta.getRemovedFiles().add(oldPath);
+                    }
+                }
+
+                for (ExerciseManifest.FileEntry entry : manifest.getFiles()) {
+                    if (entry.getSha1().equals(oldFileHashes.get(entry.getPath()))) {
+                        continue;
+                    }
+                    if (cancelled) {
+                        throw new InterruptedException();
+                    }
+                    CancellableCallable<byte[]> fileDownload = createHttpTasks().getForBinary(entry.getUrl());
+                    currentTask = fileDownload;
+                    byte[] data = fileDownload.call();
+                    if (!HashUtils.sha1Hex(data).equalsIgnoreCase(entry.getSha1())) {
+                        throw new RuntimeException("Hash mismatch in downloaded file " + entry.getPath());
+                    }
+                    delta.getChangedFiles().put(entry.getPath(), data);
+                }
+                return delta;
+            }
+
+            @Override
+            public boolean cancel() {
+                cancelled = true;
+                return currentTask.cancel();
+            }
+        };
+    }
+    
     public CancellableCallable<byte[]> getDownloadingExerciseSolutionZipTask(Exercise exercise) {
         String zipUrl = exercise.getSolutionDownloadUrl();
         return createHttpTasks().getForBinary(zipUrl);
@@ -203,6 +271,33 @@ public class ServerAccess {
         };
     }
     
+    /**
+     * Downloads the review list unless it still has the given ETag.
+     */
+    public CancellableCallable<ReviewListDownload> getDownloadingReviewListTask(Course course, String etag) {
+        String url = addApiCallQueryParameters(course.getReviewsUrl());
+        final CancellableCallable<HttpTasks.ConditionalText> download = createHttpTasks().getForTextIfChanged(url, etag);
+        return new CancellableCallable<ReviewListDownload>() {
+            @Override
+            public ReviewListDownload call() throws Exception {
+                try {
+                    HttpTasks.ConditionalText result = download.call();
+                    if (!result.isModified()) {
+                        return new ReviewListDownload(null, result.etag);
+                    }
+                    return new ReviewListDownload(reviewListParser.parseFromJson(result.text), result.etag);
+                } catch (FailedHttpResponseException ex) {
+                    return checkForObsoleteClient(ex);
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return download.cancel();
+            }
+        };
+    }
+    
     public CancellableCallable<Void> getMarkingReviewAsReadTask(Review review, boolean read) {
         String url = addApiCallQueryParameters(review.getUpdateUrl() + ".json");
         Map<String, String> params = new HashMap<String, String>();
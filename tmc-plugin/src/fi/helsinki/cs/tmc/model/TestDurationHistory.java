@@ -0,0 +1,130 @@
+package fi.helsinki.cs.tmc.model;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers roughly how long each test took in previous local runs.
+ *
+ * <p>
+ * Used to balance tests across parallel test JVMs.
+ * Durations are kept per project since exercises often share test class names.
+ * Only the tests of a project's latest run are kept, and projects whose
+ * directory is gone are forgotten.
+ */
+public class TestDurationHistory {
+    private static final Logger logger = Logger.getLogger(TestDurationHistory.class.getName());
+    private static TestDurationHistory defaultInstance;
+
+    public static synchronized TestDurationHistory getInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new TestDurationHistory(new ConfigFile("TestDurationsByProject.json"));
+        }
+        return defaultInstance;
+    }
+
+    private ConfigFile configFile;
+    private Map<String, Map<String, Long>> durations; // Milliseconds by project directory and test name
+
+    public TestDurationHistory(ConfigFile configFile) {
+        this.configFile = configFile;
+        this.durations = new HashMap<String, Map<String, Long>>();
+        try {
+            loadFromFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load test durations", e);
+        }
+    }
+
+    /**
+     * Returns the estimated duration of each test in milliseconds, or null where unknown.
+     */
+    public synchronized List<Long> getEstimates(File projectDir, List<String> testNames) {
+        Map<String, Long> forProject = durations.get(projectDir.getAbsolutePath());
+        List<Long> result = new ArrayList<Long>(testNames.size());
+        for (String name : testNames) {
+            result.add(forProject != null ? forProject.get(name) : null);
+        }
+        return result;
+    }
+
+    /**
+     * Records the measurements of a run of all of the project's tests.
+     * They are averaged with the previous estimates. Tests not in the run are forgotten.
+     */
+    public synchronized void record(File projectDir, Map<String, Long> measuredMillis) {
+        Map<String, Long> old = durations.get(projectDir.getAbsolutePath());
+        Map<String, Long> forProject = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : measuredMillis.entrySet()) {
+            Long previous = (old != null) ? old.get(entry.getKey()) : null;
+            if (previous != null) {
+                forProject.put(entry.getKey(), (previous + entry.getValue()) / 2);
+            } else {
+                forProject.put(entry.getKey(), entry.getValue());
+            }
+        }
+        durations.put(projectDir.getAbsolutePath(), forProject);
+        forgetRemovedProjects();
+        save();
+    }
+
+    private void forgetRemovedProjects() {
+        Iterator<String> i = durations.keySet().iterator();
+        while (i.hasNext()) {
+            if (!new File(i.next()).isDirectory()) {
+                i.remove();
+            }
+        }
+    }
+
+    private void save() {
+        try {
+            saveToFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to save test durations", e);
+        }
+    }
+
+    private void saveToFile() throws IOException {
+        Writer w = configFile.getWriter();
+        try {
+            new Gson().toJson(durations, getStoredType(), w);
+        } finally {
+            w.close();
+        }
+    }
+
+    private void loadFromFile() throws IOException {
+        if (!configFile.exists()) {
+            return;
+        }
+
+        Reader reader = configFile.getReader();
+        Map<String, Map<String, Long>> stored;
+        try {
+            stored = new Gson().fromJson(reader, getStoredType());
+        } finally {
+            reader.close();
+        }
+        if (stored != null) {
+            durations.clear();
+            durations.putAll(stored);
+        }
+    }
+
+    private Type getStoredType() {
+        return new TypeToken<Map<String, Map<String, Long>>>() {}.getType();
+    }
+}
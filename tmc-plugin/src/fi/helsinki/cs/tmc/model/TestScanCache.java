@@ -0,0 +1,267 @@
+package fi.helsinki.cs.tmc.model;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import fi.helsinki.cs.tmc.testscanner.TestMethod;
+import fi.helsinki.cs.tmc.testscanner.TestScanner;
+import fi.helsinki.cs.tmc.utilities.HashUtils;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Remembers the test methods found in each test source file.
+ *
+ * <p>
+ * A file is rescanned only when its contents or the class path change.
+ * A scan that looks broken, i.e. finds no tests in a file that mentions
+ * <code>@Test</code>, is not remembered.
+ */
+public class TestScanCache {
+    private static final Logger logger = Logger.getLogger(TestScanCache.class.getName());
+    private static TestScanCache defaultInstance;
+
+    public static synchronized TestScanCache getInstance() {
+        if (defaultInstance == null) {
+            defaultInstance = new TestScanCache(new ConfigFile("TestScanCache.json"), new DefaultScanner());
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Finds the test methods in some source files.
+     * Other classes may be resolved from the sources under <code>sourceDir</code>.
+     */
+    public static interface Scanner {
+        public List<TestMethod> findTests(List<File> sources, File sourceDir, String classPath);
+    }
+
+    private static class DefaultScanner implements Scanner {
+        @Override
+        public List<TestMethod> findTests(List<File> sources, File sourceDir, String classPath) {
+            TestScanner scanner = new TestScanner();
+            // Without a source path javac also looks for sources in the class path
+            scanner.setClassPath(sourceDir.getAbsolutePath() + File.pathSeparator + classPath);
+            for (File source : sources) {
+                scanner.addSource(source);
+            }
+            return scanner.findTests();
+        }
+    }
+
+    private static class Entry {
+        public String sourceHash;
+        public String classPathHash;
+        public List<TestMethod> tests;
+    }
+
+    private ConfigFile configFile;
+    private Scanner scanner;
+    private Map<String, Entry> entries; // Keyed by absolute path
+
+    public TestScanCache(ConfigFile configFile, Scanner scanner) {
+        this.configFile = configFile;
+        this.scanner = scanner;
+        this.entries = new HashMap<String, Entry>();
+        try {
+            loadFromFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to load test scan cache", e);
+        }
+    }
+
+    /**
+     * Returns the test methods in the <code>.java</code> files under the given directory.
+     */
+    public synchronized List<TestMethod> findTests(File testDir, String classPath) throws IOException {
+        long startTime = System.nanoTime();
+
+        List<File> sources = new ArrayList<File>(FileUtils.listFiles(testDir, new String[] {"java"}, true));
+        Collections.sort(sources);
+        String classPathHash = classPathFingerprint(classPath);
+
+        Map<File, List<TestMethod>> testsByFile = new LinkedHashMap<File, List<TestMethod>>();
+        Map<File, String> changedFiles = new LinkedHashMap<File, String>();
+        for (File source : sources) {
+            String hash = HashUtils.sha1Hex(FileUtils.readFileToByteArray(source));
+            Entry entry = entries.get(source.getAbsolutePath());
+            if (entry != null && hash.equals(entry.sourceHash) && classPathHash.equals(entry.classPathHash)) {
+                testsByFile.put(source, entry.tests);
+            } else {
+                testsByFile.put(source, null);
+                changedFiles.put(source, hash);
+            }
+        }
+
+        boolean modified = forgetRemovedFiles(testDir, testsByFile);
+
+        List<TestMethod> unattributed = new ArrayList<TestMethod>();
+        if (!changedFiles.isEmpty()) {
+            List<File> changed = new ArrayList<File>(changedFiles.keySet());
+            List<TestMethod> found = scanner.findTests(changed, testDir, classPath);
+
+            for (File file : changed) {
+                testsByFile.put(file, new ArrayList<TestMethod>());
+            }
+            for (TestMethod test : found) {
+                File file = findSourceOf(test, testDir, changed);
+                if (file != null) {
+                    testsByFile.get(file).add(test);
+                } else {
+                    unattributed.add(test);
+                }
+            }
+
+            // We don't know which file a stray test came from so we can't trust any of them next time
+            if (unattributed.isEmpty()) {
+                for (File file : changed) {
+                    if (testsByFile.get(file).isEmpty() && mentionsTests(file)) {
+                        logger.log(Level.FINE, "Found no tests in {0}. Not caching it.", file);
+                        continue;
+                    }
+                    Entry entry = new Entry();
+                    entry.sourceHash = changedFiles.get(file);
+                    entry.classPathHash = classPathHash;
+                    entry.tests = testsByFile.get(file);
+                    entries.put(file.getAbsolutePath(), entry);
+                }
+                modified = true;
+            } else {
+                logger.log(Level.FINE, "Could not tell which files {0} tests came from", unattributed.size());
+            }
+        }
+
+        if (modified) {
+            save();
+        }
+
+        List<TestMethod> result = new ArrayList<TestMethod>();
+        for (List<TestMethod> tests : testsByFile.values()) {
+            result.addAll(tests);
+        }
+        result.addAll(unattributed);
+
+        Metrics metrics = Metrics.getDefault();
+        metrics.counter("testscan.cached-files").add(sources.size() - changedFiles.size());
+        metrics.counter("testscan.scanned-files").add(changedFiles.size());
+        metrics.recordSince("testscan.find-tests", startTime);
+
+        return result;
+    }
+
+    // The scan probably failed to compile the file, e.g. because the build output was incomplete
+    private boolean mentionsTests(File source) throws IOException {
+        return FileUtils.readFileToString(source, "UTF-8").contains("@Test");
+    }
+
+    private boolean forgetRemovedFiles(File testDir, Map<File, List<TestMethod>> existing) {
+        String prefix = testDir.getAbsolutePath() + File.separator;
+        boolean removed = false;
+        Iterator<String> i = entries.keySet().iterator();
+        while (i.hasNext()) {
+            String path = i.next();
+            if (path.startsWith(prefix) && !existing.containsKey(new File(path))) {
+                i.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Picks the file whose class name is the longest prefix of the test's class name.
+     */
+    private File findSourceOf(TestMethod test, File testDir, List<File> candidates) {
+        String prefix = testDir.getAbsolutePath() + File.separator;
+        File best = null;
+        int bestLength = -1;
+        for (File file : candidates) {
+            String path = file.getAbsolutePath();
+            if (!path.startsWith(prefix)) {
+                continue;
+            }
+            String className = path.substring(prefix.length(), path.length() - ".java".length()).replace(File.separatorChar, '.');
+            boolean matches = test.className.equals(className)
+                    || test.className.startsWith(className + ".")
+                    || test.className.startsWith(className + "$");
+            if (matches && className.length() > bestLength) {
+                best = file;
+                bestLength = className.length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Hashes the class path and the sizes and modification times of its jars.
+     *
+     * <p>
+     * Directories are left out since they include the output of each compilation.
+     */
+    private String classPathFingerprint(String classPath) {
+        StringBuilder sb = new StringBuilder(classPath);
+        for (String part : classPath.split(File.pathSeparator)) {
+            File file = new File(part);
+            if (file.isFile()) {
+                sb.append('\n').append(file.length()).append(':').append(file.lastModified());
+            }
+        }
+        try {
+            return HashUtils.sha1Hex(sb.toString().getBytes("UTF-8"));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void save() {
+        try {
+            saveToFile();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to save test scan cache", e);
+        }
+    }
+
+    private void saveToFile() throws IOException {
+        Writer w = configFile.getWriter();
+        try {
+            new Gson().toJson(entries, getStoredType(), w);
+        } finally {
+            w.close();
+        }
+    }
+
+    private void loadFromFile() throws IOException {
+        if (!configFile.exists()) {
+            return;
+        }
+
+        Reader reader = configFile.getReader();
+        Map<String, Entry> stored;
+        try {
+            stored = new Gson().fromJson(reader, getStoredType());
+        } finally {
+            reader.close();
+        }
+        if (stored != null) {
+            entries.clear();
+            entries.putAll(stored);
+        }
+    }
+
+    private Type getStoredType() {
+        return new TypeToken<Map<String, Entry>>() {}.getType();
+    }
+}
@@ -6,18 +6,35 @@ import java.util.regex.Pattern;
 import org.netbeans.api.project.Project;
 import org.netbeans.api.project.ProjectUtils;
 import org.netbeans.api.project.ui.OpenProjects;
+import org.openide.filesystems.FileAttributeEvent;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
 import org.openide.filesystems.FileUtil;
 
 /**
  * Carries information about a project used in TMC.
+ *
+ * <p>
+ * Instances should be obtained through {@link ProjectMediator#wrapProject(Project)},
+ * which makes all instances of the same project share cached information.
  */
 public class TmcProjectInfo {
 
+    private static final String[] PROJECT_TYPE_MARKER_FILES = { "pom.xml", "Makefile" };
+
     private Project project;
 
+    private final ProjectTypeCache projectTypeCache;
+
     /*package*/ TmcProjectInfo(Project project) {
+        this(project, new ProjectTypeCache(project.getProjectDirectory()));
+    }
+
+    /*package*/ TmcProjectInfo(Project project, ProjectTypeCache projectTypeCache) {
         this.project = project;
+        this.projectTypeCache = projectTypeCache;
     }
 
     public Project getProject() {
@@ -48,8 +65,25 @@ public class TmcProjectInfo {
         return TmcProjectFile.forProject(FileUtil.toFile(getProjectDir()));
     }
 
-    //TODO: a more robust/elegant/extensible project type recognition system
+    /**
+     * Returns the type of the project.
+     *
+     * <p>
+     * The result is cached until a file that affects it is
+     * created, deleted or renamed in the project directory.
+     */
     public TmcProjectType getProjectType() {
+        TmcProjectType type = projectTypeCache.get();
+        if (type == null) {
+            long generation = projectTypeCache.getGeneration();
+            type = detectProjectType();
+            projectTypeCache.set(generation, type);
+        }
+        return type;
+    }
+
+    //TODO: a more robust/elegant/extensible project type recognition system
+    private TmcProjectType detectProjectType() {
         String pd = getProjectDirAbsPath();
         if (new File(pd + File.separatorChar + "pom.xml").exists()) {
             return TmcProjectType.JAVA_MAVEN;
@@ -71,7 +105,7 @@ public class TmcProjectInfo {
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof TmcProjectInfo) {
-            return this.project.equals((TmcProjectInfo) obj);
+            return this.project.equals(((TmcProjectInfo) obj).project);
         } else {
             return false;
         }
@@ -82,6 +116,106 @@ public class TmcProjectInfo {
         return project.hashCode();
     }
 
+    /**
+     * Remembers the detected type of a project until a marker file is
+     * created, deleted or renamed in the project directory.
+     *
+     * <p>
+     * {@link ProjectMediator} keeps one of these per project and shares it
+     * between the TmcProjectInfos of that project. It must not refer to the
+     * project itself since it is held strongly in a map keyed weakly by it.
+     */
+    /*package*/ static class ProjectTypeCache implements FileChangeListener {
+        private final Object lock = new Object();
+        private TmcProjectType type;
+        private long generation;
+
+        public ProjectTypeCache(FileObject projectDir) {
+            this.type = null;
+            this.generation = 0;
+            if (projectDir != null) {
+                // The listener is kept alive by whoever keeps this cache alive
+                projectDir.addFileChangeListener(FileUtil.weakFileChangeListener(this, projectDir));
+            }
+        }
+
+        public TmcProjectType get() {
+            synchronized (lock) {
+                return type;
+            }
+        }
+
+        /**
+         * Returns a value to pass to {@link #set} after detecting the type.
+         */
+        public long getGeneration() {
+            synchronized (lock) {
+                return generation;
+            }
+        }
+
+        /**
+         * Caches a type detected after {@link #getGeneration()} returned the
+         * given value, unless the cache has been invalidated since.
+         */
+        public void set(long detectedInGeneration, TmcProjectType detectedType) {
+            synchronized (lock) {
+                if (generation == detectedInGeneration) {
+                    type = detectedType;
+                }
+            }
+        }
+
+        public void invalidate() {
+            synchronized (lock) {
+                type = null;
+                generation++;
+            }
+        }
+
+        @Override
+        public void fileFolderCreated(FileEvent fe) {
+            invalidateIfMarker(fe.getFile().getNameExt());
+        }
+
+        @Override
+        public void fileDataCreated(FileEvent fe) {
+            invalidateIfMarker(fe.getFile().getNameExt());
+        }
+
+        @Override
+        public void fileDeleted(FileEvent fe) {
+            invalidateIfMarker(fe.getFile().getNameExt());
+        }
+
+        @Override
+        public void fileRenamed(FileRenameEvent fe) {
+            invalidateIfMarker(fe.getFile().getNameExt());
+            String oldNameExt = fe.getName();
+            if (fe.getExt() != null && !fe.getExt().isEmpty()) {
+                oldNameExt += "." + fe.getExt();
+            }
+            invalidateIfMarker(oldNameExt);
+        }
+
+        @Override
+        public void fileChanged(FileEvent fe) {
+        }
+
+        @Override
+        public void fileAttributeChanged(FileAttributeEvent fe) {
+        }
+
+        private void invalidateIfMarker(String nameExt) {
+            for (String marker : PROJECT_TYPE_MARKER_FILES) {
+                if (marker.equals(nameExt)) {
+                    invalidate();
+                    return;
+                }
+            }
+        }
+    }
+
     private abstract static class AbstractZippingDecider implements RecursiveZipper.ZippingDecider {
         protected TmcProjectInfo projectInfo;
 
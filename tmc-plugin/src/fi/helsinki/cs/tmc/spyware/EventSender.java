@@ -3,7 +3,10 @@ package fi.helsinki.cs.tmc.spyware;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.metrics.Gauge;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TimerTask;
@@ -36,6 +39,15 @@ public class EventSender implements EventReceiver {
         this.buffer = new ArrayList<LoggableEvent>();
         this.sendTimer = new java.util.Timer("EventSender timer", true);
         this.sendTimer.schedule(sendTask, delay, delay);
+        
+        Metrics.getDefault().register("spyware.buffered-events", new Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (EventSender.this) {
+                    return buffer.size();
+                }
+            }
+        });
     }
     
     public synchronized void sendNow() {
@@ -84,6 +96,7 @@ public class EventSender implements EventReceiver {
         private final Object doneCondVar = new Object();
         private volatile boolean running = false;
         private boolean moreToSend = false;
+        private volatile Future<Object> currentSend;
         
         // run() is synchronized because it may be called by the timer as well as sendNow().
         @Override
@@ -113,12 +126,16 @@ public class EventSender implements EventReceiver {
             
             log.log(Level.INFO, "Sending {0} events", events.size());
             
+            final long startTime = System.nanoTime();
             CancellableCallable<Object> task = serverAccess.getSendEventLogJob(events);
             // If we fail, we add the events back to be tried again later
-            Future<Object> future = BgTask.start("Sending stats", task, new BgTaskListener<Object>() {
+            Future<Object> future = currentSend = BgTask.start("Sending stats", BgTaskScheduler.Lane.BACKGROUND, task, new BgTaskListener<Object>() {
                 @Override
                 public void bgTaskReady(Object result) {
                     log.info("Events sent");
+                    Metrics metrics = Metrics.getDefault();
+                    metrics.recordSince("spyware.send", startTime);
+                    metrics.counter("spyware.events-sent").add(events.size());
                 }
 
                 @Override
@@ -129,6 +146,7 @@ public class EventSender implements EventReceiver {
                 @Override
                 public void bgTaskFailed(Throwable ex) {
                     log.log(Level.INFO, "Sending events failed", ex);
+                    Metrics.getDefault().counter("spyware.send-failed").increment();
                     prependEvents(events);
                 }
             });
@@ -141,10 +159,17 @@ public class EventSender implements EventReceiver {
                 future.cancel(true);
             } catch (ExecutionException ex) {
                 throw new RuntimeException(ex.getCause());
+            } finally {
+                currentSend = null;
             }
         }
         
         public void waitUntilFinished(long timeout) throws InterruptedException {
+            // Someone is waiting for us now, so don't queue behind other background tasks.
+            Future<Object> send = currentSend;
+            if (send != null) {
+                BgTaskScheduler.getDefault().promote(send);
+            }
             synchronized (doneCondVar) {
                 if (running) {
                     doneCondVar.wait(timeout);
@@ -1,22 +1,28 @@
 package fi.helsinki.cs.tmc.ui;
 
 import fi.helsinki.cs.tmc.data.Exercise;
+import fi.helsinki.cs.tmc.events.TmcEvent;
 import fi.helsinki.cs.tmc.events.TmcEventBus;
 import fi.helsinki.cs.tmc.events.TmcEventListener;
 import fi.helsinki.cs.tmc.model.CourseDb;
 import fi.helsinki.cs.tmc.model.ProjectMediator;
 import fi.helsinki.cs.tmc.model.TmcProjectInfo;
 import java.awt.Image;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeListener;
 import org.apache.commons.lang3.StringUtils;
 import org.netbeans.api.project.Project;
@@ -25,16 +31,56 @@ import org.openide.util.ChangeSupport;
 import org.openide.util.ImageUtilities;
 import org.openide.util.lookup.ServiceProvider;
 
+/**
+ * Adds a status dot and a tooltip to the icons of the current course's exercises.
+ *
+ * <p>
+ * The annotation of each project is remembered, and NetBeans is asked to
+ * re-annotate only when some project's annotation has changed.
+ * Since the dot disappears when the deadline passes, the annotations are also
+ * rechecked at the next deadline of the current course.
+ * Composed icons are cached by base image and annotation.
+ */
 @ServiceProvider(service = ProjectIconAnnotator.class)
 public class ExerciseIconAnnotator implements ProjectIconAnnotator {
 
     private static final Logger log = Logger.getLogger(ExerciseIconAnnotator.class.getName());
 
+    private static final class Annotation {
+        private final String iconName; // Null if no dot is drawn
+        private final String tooltip;
+
+        public Annotation(String iconName, String tooltip) {
+            this.iconName = iconName;
+            this.tooltip = tooltip;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Annotation)) {
+                return false;
+            }
+            Annotation that = (Annotation) obj;
+            return StringUtils.equals(this.iconName, that.iconName) && StringUtils.equals(this.tooltip, that.tooltip);
+        }
+
+        @Override
+        public int hashCode() {
+            return (iconName != null ? iconName.hashCode() : 0) * 31 + (tooltip != null ? tooltip.hashCode() : 0);
+        }
+    }
+
+    // For projects that aren't exercises of the current course
+    private static final Annotation NO_ANNOTATION = new Annotation(null, null);
+
     private TmcEventBus eventBus;
     private ChangeSupport changeSupport;
     private CourseDb courses;
     private ProjectMediator projectMediator;
     private HashMap<String, Image> iconCache;
+    private final Map<String, Annotation> annotationsByProject; // Keyed by project directory
+    private final Map<Image, Map<Annotation, Image>> composedIcons; // Weak, identity-keyed base images
+    private Timer deadlineTimer; // Null if no deadline is coming up
 
     @SuppressWarnings("LeakingThisInConstructor")
     public ExerciseIconAnnotator() {
@@ -43,48 +89,87 @@ public class ExerciseIconAnnotator implements ProjectIconAnnotator {
         this.courses = CourseDb.getInstance();
         this.projectMediator = ProjectMediator.getInstance();
         this.iconCache = new HashMap<String, Image>();
+        this.annotationsByProject = new HashMap<String, Annotation>();
+        this.composedIcons = new WeakHashMap<Image, Map<Annotation, Image>>();
         
         eventBus.subscribeDependent(new TmcEventListener() {
             public void receive(CourseDb.ChangedEvent event) {
-                SwingUtilities.invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        updateAllIcons();
-                    }
-                });
+                updateChangedIcons();
+            }
+            
+            @Override
+            public Delivery getDelivery() {
+                return Delivery.EDT;
+            }
+            
+            @Override
+            public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+                return 200;
             }
         }, this);
+        
+        scheduleUpdateAtNextDeadline();
     }
 
     @Override
     public Image annotateIcon(Project nbProject, Image origImg, boolean openedNode) {
         TmcProjectInfo project = projectMediator.wrapProject(nbProject);
+        Annotation annotation;
+        synchronized (this) {
+            annotation = annotationsByProject.get(project.getProjectDirAbsPath());
+        }
+        if (annotation == null) {
+            annotation = annotationForProject(project);
+            synchronized (this) {
+                annotationsByProject.put(project.getProjectDirAbsPath(), annotation);
+            }
+        }
+        if (annotation == NO_ANNOTATION) {
+            return origImg;
+        }
+        return composedIcon(origImg, annotation);
+    }
+
+    private Annotation annotationForProject(TmcProjectInfo project) {
         Exercise exercise = projectMediator.tryGetExerciseForProject(project, courses);
         if (exercise == null || !exercise.getCourseName().equals(courses.getCurrentCourseName())) {
-            return origImg;
+            return NO_ANNOTATION;
         }
-        
+        return new Annotation(annotationIconNameForExercise(exercise), tooltipForExercise(exercise));
+    }
+
+    private synchronized Image composedIcon(Image origImg, Annotation annotation) {
+        Map<Annotation, Image> byAnnotation = composedIcons.get(origImg);
+        if (byAnnotation == null) {
+            byAnnotation = new HashMap<Annotation, Image>();
+            composedIcons.put(origImg, byAnnotation);
+        }
+        Image img = byAnnotation.get(annotation);
+        if (img == null) {
+            img = composeIcon(origImg, annotation);
+            byAnnotation.put(annotation, img);
+        }
+        return img;
+    }
+
+    private Image composeIcon(Image origImg, Annotation annotation) {
         //TODO: use ImageUtilities.createDisabledImage for expired exercises.
         //Had some very weird problems with that. Try again some day.
         
         Image img = origImg;
         try {
-            Image annotation = annotationIconForExericse(exercise);
-            if (annotation != null) {
-                img = ImageUtilities.mergeImages(img, annotation, 0, 0);
+            Image dot = annotationIcon(annotation.iconName);
+            if (dot != null) {
+                img = ImageUtilities.mergeImages(img, dot, 0, 0);
             }
         } catch (IOException e) {
             log.log(Level.WARNING, "Failed to load exercise icon annotation", e);
         }
         
-        String tooltip = tooltipForExercise(exercise);
-        img = ImageUtilities.assignToolTipToImage(img, tooltip);
-        
-        return img;
+        return ImageUtilities.assignToolTipToImage(img, annotation.tooltip);
     }
     
-    private Image annotationIconForExericse(Exercise exercise) throws IOException {
-        String name = annotationIconNameForExercise(exercise);
+    private Image annotationIcon(String name) throws IOException {
         if (name != null) {
             if (!iconCache.containsKey(name)) {
                 Image img = ImageIO.read(getClass().getClassLoader().getResource("fi/helsinki/cs/tmc/ui/" + name));
@@ -141,8 +226,77 @@ public class ExerciseIconAnnotator implements ProjectIconAnnotator {
         return StringUtils.capitalize(StringUtils.join(parts, " - "));
     }
     
+    /**
+     * Has NetBeans re-annotate the open projects if any of their annotations changed.
+     */
+    public void updateChangedIcons() {
+        boolean changed = false;
+        Map<String, Annotation> current = new HashMap<String, Annotation>();
+        for (TmcProjectInfo project : projectMediator.getOpenProjects()) {
+            String key = project.getProjectDirAbsPath();
+            Annotation previous;
+            synchronized (this) {
+                previous = annotationsByProject.get(key);
+            }
+            if (previous == null) {
+                continue; // Not annotated yet
+            }
+            Annotation annotation = annotationForProject(project);
+            current.put(key, annotation);
+            if (!annotation.equals(previous)) {
+                changed = true;
+            }
+        }
+
+        synchronized (this) {
+            annotationsByProject.clear();
+            annotationsByProject.putAll(current);
+        }
+        if (changed) {
+            changeSupport.fireChange();
+        }
+        scheduleUpdateAtNextDeadline();
+    }
+
+    /**
+     * Has NetBeans re-annotate all projects.
+     */
     public void updateAllIcons() {
+        synchronized (this) {
+            annotationsByProject.clear();
+        }
         changeSupport.fireChange();
+        scheduleUpdateAtNextDeadline();
+    }
+    
+    private synchronized void scheduleUpdateAtNextDeadline() {
+        if (deadlineTimer != null) {
+            deadlineTimer.stop();
+            deadlineTimer = null;
+        }
+        
+        Date now = new Date();
+        Date next = null;
+        for (Exercise exercise : courses.getCurrentCourseExercises()) {
+            Date deadline = exercise.getDeadline();
+            if (deadline != null && deadline.after(now) && (next == null || deadline.before(next))) {
+                next = deadline;
+            }
+        }
+        if (next == null) {
+            return;
+        }
+        
+        // Deadlines further away than the timer can wait just cause an early recheck
+        long delay = Math.min(next.getTime() - now.getTime() + 1000, Integer.MAX_VALUE);
+        deadlineTimer = new Timer((int) delay, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateChangedIcons();
+            }
+        });
+        deadlineTimer.setRepeats(false);
+        deadlineTimer.start();
     }
     
     @Override
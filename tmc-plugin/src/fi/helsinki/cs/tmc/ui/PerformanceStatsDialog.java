@@ -0,0 +1,212 @@
+package fi.helsinki.cs.tmc.ui;
+
+import fi.helsinki.cs.tmc.utilities.metrics.Counter;
+import fi.helsinki.cs.tmc.utilities.metrics.Gauge;
+import fi.helsinki.cs.tmc.utilities.metrics.LatencyHistogram;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Shows live values of the {@link Metrics} registry and can export them as JSON.
+ */
+public class PerformanceStatsDialog extends JDialog {
+    private static final int REFRESH_INTERVAL = 1000;
+    
+    private static PerformanceStatsDialog visibleDialog;
+    
+    public static void display() {
+        if (visibleDialog == null) {
+            visibleDialog = new PerformanceStatsDialog(Metrics.getDefault());
+            visibleDialog.setLocationRelativeTo(null);
+            visibleDialog.setVisible(true);
+        } else {
+            visibleDialog.toFront();
+        }
+    }
+    
+    private final Metrics metrics;
+    private final MetricsTableModel tableModel;
+    private final Timer refreshTimer;
+
+    public PerformanceStatsDialog(Metrics metrics) {
+        this.metrics = metrics;
+        this.tableModel = new MetricsTableModel();
+        this.setTitle("TMC performance statistics");
+        this.setModal(false);
+        this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        
+        JPanel contentPane = new JPanel(new BorderLayout(0, 8));
+        contentPane.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        setContentPane(contentPane);
+        
+        JTable table = new JTable(tableModel);
+        table.setAutoCreateRowSorter(true);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(640, 400));
+        contentPane.add(scrollPane, BorderLayout.CENTER);
+        contentPane.add(makeButtonPanel(), BorderLayout.SOUTH);
+        
+        this.refreshTimer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tableModel.refresh();
+            }
+        });
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                refreshTimer.stop();
+                if (visibleDialog == PerformanceStatsDialog.this) {
+                    visibleDialog = null;
+                }
+            }
+        });
+        
+        tableModel.refresh();
+        refreshTimer.start();
+        pack();
+    }
+    
+    private JPanel makeButtonPanel() {
+        JPanel panel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+        
+        JButton exportButton = new JButton("Export as JSON...");
+        exportButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                exportJson();
+            }
+        });
+        panel.add(exportButton);
+        
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        panel.add(closeButton);
+        
+        return panel;
+    }
+    
+    private void exportJson() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("tmc-metrics.json"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        try {
+            FileUtils.writeStringToFile(chooser.getSelectedFile(), metrics.toJson(), "UTF-8");
+        } catch (IOException ex) {
+            ConvenientDialogDisplayer.getDefault().displayError("Failed to export statistics.", ex);
+        }
+    }
+    
+    private static class Row {
+        public String name;
+        public long count;
+        public String p50 = "";
+        public String p99 = "";
+        public String max = "";
+    }
+    
+    private class MetricsTableModel extends AbstractTableModel {
+        private final String[] columns = { "Metric", "Count / value", "p50 (ms)", "p99 (ms)", "Max (ms)" };
+        private List<Row> rows = new ArrayList<Row>();
+        
+        public void refresh() {
+            List<Row> newRows = new ArrayList<Row>();
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+                LatencyHistogram h = entry.getValue();
+                Row row = new Row();
+                row.name = entry.getKey();
+                row.count = h.getCount();
+                row.p50 = formatMillis(h.getPercentileNanos(50));
+                row.p99 = formatMillis(h.getPercentileNanos(99));
+                row.max = formatMillis(h.getMaxNanos());
+                newRows.add(row);
+            }
+            for (Map.Entry<String, Counter> entry : metrics.getCounters().entrySet()) {
+                Row row = new Row();
+                row.name = entry.getKey();
+                row.count = entry.getValue().get();
+                newRows.add(row);
+            }
+            for (Map.Entry<String, Gauge> entry : metrics.getGauges().entrySet()) {
+                Row row = new Row();
+                row.name = entry.getKey();
+                row.count = entry.getValue().getValue();
+                newRows.add(row);
+            }
+            
+            if (newRows.size() == rows.size()) {
+                rows = newRows;
+                fireTableRowsUpdated(0, rows.size() - 1);
+            } else {
+                rows = newRows;
+                fireTableDataChanged();
+            }
+        }
+        
+        private String formatMillis(long nanos) {
+            return String.format("%.1f", Metrics.toMillis(nanos));
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return (column == 1) ? Long.class : String.class;
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            Row row = rows.get(rowIndex);
+            switch (columnIndex) {
+                case 0: return row.name;
+                case 1: return row.count;
+                case 2: return row.p50;
+                case 3: return row.p99;
+                case 4: return row.max;
+                default: throw new IllegalArgumentException();
+            }
+        }
+    }
+}
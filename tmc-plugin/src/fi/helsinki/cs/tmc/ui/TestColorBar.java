@@ -12,13 +12,26 @@ class TestColorBar extends JProgressBar {
     private static final Color FAIL_COLOR = new Color(0xE10000);
     private static final Color UNSET_COLOR = new Color(0xEEEEEE);
     
+    private int pendingTests = 0;
+    
     public TestColorBar() {
         setStringPainted(true);
     }
+    
+    /**
+     * Sets how many of the tests haven't finished yet. They're drawn last, in a neutral color.
+     */
+    public void setPendingTests(int pendingTests) {
+        this.pendingTests = pendingTests;
+        repaint();
+    }
 
     @Override
     public String getString() {
-        if (getMaximum() - getMinimum() > 0) {
+        if (pendingTests > 0) {
+            int range = getMaximum() - getMinimum();
+            return "Running tests... " + (range - pendingTests) + " of " + range + " done";
+        } else if (getMaximum() - getMinimum() > 0) {
             return super.getString();
         } else {
             return "(no tests)";
@@ -38,17 +51,22 @@ class TestColorBar extends JProgressBar {
             if (!isIndeterminate()) {
                 int range = (getMaximum() - getMinimum());
                 int filled;
+                int pending;
                 if (range > 0) {
                     filled = w * getValue() / range;
+                    pending = w * pendingTests / range;
                 } else {
                     filled = w;
+                    pending = 0;
                 }
-                int notFilled = w - filled;
+                int notFilled = w - filled - pending;
 
                 g.setColor(PASS_COLOR);
                 g.fillRect(0, 0, filled, h);
                 g.setColor(FAIL_COLOR);
                 g.fillRect(filled, 0, notFilled, h);
+                g.setColor(UNSET_COLOR);
+                g.fillRect(filled + notFilled, 0, pending, h);
 
                 if (isStringPainted()) {
                     g.setColor(Color.BLACK);
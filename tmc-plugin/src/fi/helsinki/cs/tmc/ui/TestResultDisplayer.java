@@ -8,6 +8,7 @@ import fi.helsinki.cs.tmc.data.TestCaseResult;
 import fi.helsinki.cs.tmc.model.ServerAccess;
 import fi.helsinki.cs.tmc.utilities.BgTask;
 import fi.helsinki.cs.tmc.utilities.BgTaskListener;
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler;
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
 import fi.helsinki.cs.tmc.utilities.ExceptionUtils;
 import java.awt.Dialog;
@@ -64,7 +65,7 @@ public class TestResultDisplayer {
                 List<FeedbackAnswer> answers = dialog.getFeedbackAnswers();
                 if (!answers.isEmpty()) {
                     CancellableCallable<String> task = new ServerAccess().getFeedbackAnsweringJob(result.getFeedbackAnswerUrl(), answers);
-                    BgTask.start("Sending feedback", task, new BgTaskListener<String>() {
+                    BgTask.start("Sending feedback", BgTaskScheduler.Lane.BACKGROUND, task, new BgTaskListener<String>() {
                         @Override
                         public void bgTaskReady(String result) {
                         }
@@ -143,6 +144,30 @@ public class TestResultDisplayer {
         }
     }
     
+    /**
+     * Prepares to show a local run whose results arrive in parts.
+     * 
+     * <p>
+     * Results given to {@link #showPartialLocalRunResult(List)} are shown as they come.
+     * The run ends with {@link #showLocalRunResult}.
+     */
+    public void startLocalRun(int expectedTests) {
+        TestResultWindow window = TestResultWindow.get();
+        window.startTestRun(expectedTests);
+        window.openAtTabPosition(0);
+    }
+    
+    public void showPartialLocalRunResult(List<TestCaseResult> results) {
+        TestResultWindow.get().addTestCaseResults(results);
+    }
+    
+    /**
+     * Clears the partial results of a run that won't finish.
+     */
+    public void abortLocalRun() {
+        clearTestCaseView();
+    }
+    
     private void displayError(String error) {
         String htmlError =
                 "<html><font face=\"monospaced\" color=\"red\">" +
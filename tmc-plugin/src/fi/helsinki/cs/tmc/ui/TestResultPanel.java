@@ -13,7 +13,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.AbstractAction;
@@ -40,6 +42,9 @@ import org.openide.text.Line.ShowVisibilityType;
 class TestResultPanel extends JPanel {
     private static final int PADDING_BETWEEN_BOXES = 4;
     
+    // Building a cell is slow so we show this many at first and more on request
+    private static final int CELLS_PER_PAGE = 50;
+    
     private static final Logger log = Logger.getLogger(TestResultPanel.class.getName());
     
     private final SourceFileLookup sourceFileLookup;
@@ -47,6 +52,8 @@ class TestResultPanel extends JPanel {
     private boolean passedTestsVisible = false;
     private boolean allFailuresVisible = false;
     private List<TestCaseResult> storedResults = new ArrayList<TestCaseResult>();
+    private Map<TestCaseResult, TestCaseResultCell> cellCache = new IdentityHashMap<TestCaseResult, TestCaseResultCell>();
+    private int maxCells = CELLS_PER_PAGE;
     
     public TestResultPanel() {
         this.sourceFileLookup = SourceFileLookup.getDefault();
@@ -54,12 +61,52 @@ class TestResultPanel extends JPanel {
     }
     
     public void setTestCaseResults(List<TestCaseResult> results) {
+        if (isShowingExactly(results)) {
+            // A streamed run finished. Keep the cells, what's expanded and the scroll position.
+            if (!storedResults.equals(results)) {
+                storedResults.clear();
+                storedResults.addAll(results);
+                rebuildCells(false);
+            }
+            return;
+        }
         this.clear();
         storedResults.addAll(results);
         rebuildCells();
     }
     
+    /**
+     * Whether the given result objects are the ones shown, possibly in another order.
+     */
+    private boolean isShowingExactly(List<TestCaseResult> results) {
+        if (results.isEmpty() || results.size() != storedResults.size()) {
+            return false;
+        }
+        Map<TestCaseResult, Boolean> shown = new IdentityHashMap<TestCaseResult, Boolean>();
+        for (TestCaseResult result : storedResults) {
+            shown.put(result, Boolean.TRUE);
+        }
+        for (TestCaseResult result : results) {
+            if (shown.remove(result) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Appends results without scrolling back to the top.
+     */
+    public void addTestCaseResults(List<TestCaseResult> results) {
+        storedResults.addAll(results);
+        rebuildCells(false);
+    }
+    
     private void rebuildCells() {
+        rebuildCells(true);
+    }
+    
+    private void rebuildCells(boolean scrollToTop) {
         this.removeAll();
         
         GridBagConstraints gbc = new GridBagConstraints();
@@ -71,27 +118,64 @@ class TestResultPanel extends JPanel {
         gbc.weighty = 0.0;
         gbc.insets.bottom = PADDING_BETWEEN_BOXES;
         
+        int cellCount = 0;
+        int hiddenCount = 0;
         for (TestCaseResult result : storedResults) {
             if (!result.isSuccessful() || passedTestsVisible) {
-                this.add(new TestCaseResultCell(result, sourceFileLookup), gbc);
+                if (cellCount == maxCells) {
+                    hiddenCount++;
+                } else {
+                    this.add(getCell(result), gbc);
+                    cellCount++;
+                }
                 
+                // Results after the first failure wouldn't be shown even if there were room
                 if (!allFailuresVisible && !result.isSuccessful()) {
                     break;
                 }
             }
         }
+        if (hiddenCount > 0) {
+            this.add(new JButton(new ShowMoreAction(hiddenCount)), gbc);
+        }
         gbc.weighty = 1.0;
         this.add(Box.createVerticalGlue(), gbc); // Minimize component heights
         
         this.revalidate();
         this.repaint();
         
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                scrollToTop();
-            }
-        });
+        if (scrollToTop) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    scrollToTop();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Cells are kept so that toggling visibility doesn't rebuild them and expanded details stay expanded.
+     */
+    private TestCaseResultCell getCell(TestCaseResult result) {
+        TestCaseResultCell cell = cellCache.get(result);
+        if (cell == null) {
+            cell = new TestCaseResultCell(result, sourceFileLookup);
+            cellCache.put(result, cell);
+        }
+        return cell;
+    }
+    
+    private class ShowMoreAction extends AbstractAction {
+        public ShowMoreAction(int hiddenCount) {
+            super("Show " + Math.min(hiddenCount, CELLS_PER_PAGE) + " more (" + hiddenCount + " not shown)");
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            maxCells += CELLS_PER_PAGE;
+            rebuildCells(false);
+        }
     }
     
     private void scrollToTop() {
@@ -100,6 +184,8 @@ class TestResultPanel extends JPanel {
     
     public void clear() {
         storedResults.clear();
+        cellCache.clear();
+        maxCells = CELLS_PER_PAGE;
         this.removeAll();
         this.revalidate();
     }
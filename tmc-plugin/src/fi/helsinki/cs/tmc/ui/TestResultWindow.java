@@ -29,6 +29,8 @@ class TestResultWindow extends TopComponent {
     private final JCheckBox showAllCheckbox;
     private final TestColorBar testColorBar;
     private final TestResultPanel resultPanel;
+    private int expectedTests = 0;
+    private int receivedTests = 0;
     
     public TestResultWindow() {
         this.setName("TMC Test Results");
@@ -89,6 +91,7 @@ class TestResultWindow extends TopComponent {
     
     public void clear() {
         resultPanel.clear();
+        testColorBar.setPendingTests(0);
         testColorBar.setIndeterminate(true);
     }
 
@@ -96,7 +99,37 @@ class TestResultWindow extends TopComponent {
         resultPanel.setTestCaseResults(results);
         testColorBar.setMaximum(results.size());
         testColorBar.setValue(countSuccessfulTests(results));
+        testColorBar.setPendingTests(0);
         testColorBar.setIndeterminate(false);
+        this.expectedTests = 0;
+        this.receivedTests = 0;
+    }
+    
+    /**
+     * Clears the window for a run whose results will arrive in parts.
+     */
+    public void startTestRun(int expectedTests) {
+        resultPanel.clear();
+        this.expectedTests = expectedTests;
+        this.receivedTests = 0;
+        testColorBar.setMaximum(expectedTests);
+        testColorBar.setValue(0);
+        testColorBar.setPendingTests(expectedTests);
+        testColorBar.setIndeterminate(false);
+    }
+    
+    /**
+     * Adds results from a run started with {@link #startTestRun(int)}.
+     */
+    public void addTestCaseResults(List<TestCaseResult> results) {
+        resultPanel.addTestCaseResults(results);
+        receivedTests += results.size();
+        if (receivedTests > expectedTests) {
+            expectedTests = receivedTests;
+            testColorBar.setMaximum(expectedTests);
+        }
+        testColorBar.setValue(testColorBar.getValue() + countSuccessfulTests(results));
+        testColorBar.setPendingTests(expectedTests - receivedTests);
     }
 
     private int countSuccessfulTests(List<TestCaseResult> results) {
@@ -0,0 +1,20 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.List;
+
+/**
+ * Gets notified in the Swing thread when a group of background tasks have finished.
+ * 
+ * @see BgTaskBatch
+ */
+public interface BatchedBgTaskListener<V> {
+    
+    /**
+     * Called with everything that finished since the previous call.
+     * 
+     * @param results Results of successful tasks in the order they finished.
+     * @param failures Exceptions of failed tasks.
+     * @param cancelledCount The number of tasks that were cancelled.
+     */
+    public void bgTasksFinished(List<V> results, List<Throwable> failures, int cancelledCount);
+}
@@ -1,25 +1,27 @@
 package fi.helsinki.cs.tmc.utilities;
 
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import javax.swing.SwingUtilities;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.openide.util.Cancellable;
-import org.openide.util.RequestProcessor;
 
 /**
  * A future that calls {@link BgTaskListener} when finished and
  * displays a progress indicator in NetBeans. It cancels by
  * sending a thread interrupt unless the given {@link Callable} is
  * also {@link Cancellable}.
+ * 
+ * <p>
+ * Tasks run in the {@link BgTaskScheduler.Lane#INTERACTIVE interactive lane}
+ * unless another lane is given.
  */
 public class BgTask<V> implements CancellableCallable<V> {
     
-    private static RequestProcessor defaultRequestProcessor =
-            new RequestProcessor("BgTask processor", 5, true);
-    
     private String label;
+    private BgTaskScheduler.Lane lane;
     private BgTaskListener<V> listener;
     private Callable<V> callable;
     private ProgressHandle progressHandle;
@@ -32,6 +34,10 @@ public class BgTask<V> implements CancellableCallable<V> {
         return new BgTask<V>(label, callable, listener).start();
     }
     
+    public static <V> Future<V> start(String label, BgTaskScheduler.Lane lane, Callable<V> callable, BgTaskListener<V> listener) {
+        return new BgTask<V>(label, lane, callable, listener).start();
+    }
+    
     public static Future<Object> start(String label, Runnable runnable, BgTaskListener<Object> listener) {
         Callable<Object> callable = runnableToCallable(runnable);
         return start(label, callable, listener);
@@ -63,21 +69,26 @@ public class BgTask<V> implements CancellableCallable<V> {
     }
     
     public BgTask(String label, Callable<V> callable, BgTaskListener<V> listener) {
+        this(label, BgTaskScheduler.Lane.INTERACTIVE, callable, listener);
+    }
+    
+    public BgTask(String label, BgTaskScheduler.Lane lane, Callable<V> callable, BgTaskListener<V> listener) {
         this.label = label;
+        this.lane = lane;
         this.listener = listener;
         this.callable = callable;
         this.progressHandle = null;
     }
     
     public Future<V> start() {
-        return defaultRequestProcessor.submit(this);
+        return BgTaskScheduler.getDefault().submit(lane, this);
     }
     
     @Override
     public V call() {
         synchronized (cancelLock) {
             if (cancelled) {
-                SwingUtilities.invokeLater(new Runnable() {
+                notifyListener(new Runnable() {
                     @Override
                     public void run() {
                         listener.bgTaskCancelled();
@@ -94,9 +105,12 @@ public class BgTask<V> implements CancellableCallable<V> {
         }
         
         progressHandle.start();
+        Metrics metrics = Metrics.getDefault();
+        long startTime = System.nanoTime();
         try {
             final V result = callable.call();
-            SwingUtilities.invokeLater(new Runnable() {
+            metrics.counter("bgtask.succeeded").increment();
+            notifyListener(new Runnable() {
                 @Override
                 public void run() {
                     listener.bgTaskReady(result);
@@ -104,7 +118,8 @@ public class BgTask<V> implements CancellableCallable<V> {
             });
             return result;
         } catch (InterruptedException e) {
-            SwingUtilities.invokeLater(new Runnable() {
+            metrics.counter("bgtask.cancelled").increment();
+            notifyListener(new Runnable() {
                 @Override
                 public void run() {
                     listener.bgTaskCancelled();
@@ -112,7 +127,8 @@ public class BgTask<V> implements CancellableCallable<V> {
             });
             return null;
         } catch (final Throwable t) {
-            SwingUtilities.invokeLater(new Runnable() {
+            metrics.counter("bgtask.failed").increment();
+            notifyListener(new Runnable() {
                 @Override
                 public void run() {
                     listener.bgTaskFailed(t);
@@ -120,6 +136,7 @@ public class BgTask<V> implements CancellableCallable<V> {
             });
             return null;
         } finally {
+            metrics.recordSince("bgtask.run", startTime);
             synchronized (cancelLock) {
                 executingThread = null;
             }
@@ -127,6 +144,14 @@ public class BgTask<V> implements CancellableCallable<V> {
         }
     }
 
+    private void notifyListener(Runnable notification) {
+        if (listener instanceof BgTaskBatch) {
+            notification.run(); // Batches do their own Swing thread dispatch
+        } else {
+            SwingUtilities.invokeLater(notification);
+        }
+    }
+
     @Override
     public boolean cancel() {
         synchronized (cancelLock) {
@@ -0,0 +1,101 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import javax.swing.SwingUtilities;
+
+/**
+ * Collects the outcomes of many background tasks and delivers those that
+ * finish close together to a {@link BatchedBgTaskListener} in one Swing event.
+ * 
+ * <p>
+ * Give the same batch as the listener of each {@link BgTask}.
+ * Unlike other listeners, its methods may be called from any thread,
+ * and BgTask calls them directly from the task's thread.
+ */
+public class BgTaskBatch<V> implements BgTaskListener<V> {
+    public static final long DEFAULT_WINDOW = 100;
+    
+    private static final java.util.Timer flushTimer = new java.util.Timer("BgTaskBatch timer", true);
+    
+    private final BatchedBgTaskListener<V> listener;
+    private final long windowMillis;
+    
+    private final Object lock = new Object();
+    private List<V> results;
+    private List<Throwable> failures;
+    private int cancelledCount;
+    private boolean flushScheduled;
+    
+    public BgTaskBatch(BatchedBgTaskListener<V> listener) {
+        this(DEFAULT_WINDOW, listener);
+    }
+    
+    public BgTaskBatch(long windowMillis, BatchedBgTaskListener<V> listener) {
+        this.listener = listener;
+        this.windowMillis = windowMillis;
+        this.results = new ArrayList<V>();
+        this.failures = new ArrayList<Throwable>();
+        this.cancelledCount = 0;
+        this.flushScheduled = false;
+    }
+
+    @Override
+    public void bgTaskReady(V result) {
+        synchronized (lock) {
+            results.add(result);
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void bgTaskCancelled() {
+        synchronized (lock) {
+            cancelledCount++;
+            scheduleFlush();
+        }
+    }
+
+    @Override
+    public void bgTaskFailed(Throwable ex) {
+        synchronized (lock) {
+            failures.add(ex);
+            scheduleFlush();
+        }
+    }
+    
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, windowMillis);
+    }
+    
+    private void flush() {
+        List<V> readyResults;
+        List<Throwable> readyFailures;
+        int readyCancelledCount;
+        synchronized (lock) {
+            readyResults = results;
+            readyFailures = failures;
+            readyCancelledCount = cancelledCount;
+            results = new ArrayList<V>();
+            failures = new ArrayList<Throwable>();
+            cancelledCount = 0;
+            flushScheduled = false;
+        }
+        listener.bgTasksFinished(readyResults, readyFailures, readyCancelledCount);
+    }
+}
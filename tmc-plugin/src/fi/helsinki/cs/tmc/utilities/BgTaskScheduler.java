@@ -0,0 +1,212 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import fi.helsinki.cs.tmc.utilities.metrics.Gauge;
+import fi.helsinki.cs.tmc.utilities.metrics.LatencyHistogram;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Runs {@link BgTask}s in separate lanes so that bulk work and background
+ * chatter don't hold up things the user is waiting for.
+ * 
+ * <p>
+ * Each lane has its own thread limit. A task queued in a lower lane can be
+ * {@linkplain #promote(Future) promoted} when the user starts waiting for it,
+ * after which it runs in whichever lane gets to it first.
+ */
+public class BgTaskScheduler {
+    private static final Logger log = Logger.getLogger(BgTaskScheduler.class.getName());
+    
+    public static enum Lane {
+        /** Things the user just asked for, such as submitting or running tests. */
+        INTERACTIVE("interactive", 4),
+        /** Large downloads and extractions. */
+        BULK("bulk", 2),
+        /** Periodic checks and statistics that nobody is waiting for. */
+        BACKGROUND("background", 1);
+        
+        private final String name;
+        private final int maxThreads;
+
+        private Lane(String name, int maxThreads) {
+            this.name = name;
+            this.maxThreads = maxThreads;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+    }
+    
+    public static class LaneStats {
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram runTime = new LatencyHistogram();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+
+        /**
+         * Time from submission to start, recorded in the lane the task ran in.
+         */
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        public LatencyHistogram getRunTime() {
+            return runTime;
+        }
+
+        public int getQueuedCount() {
+            return queued.get();
+        }
+
+        public int getRunningCount() {
+            return running.get();
+        }
+    }
+    
+    private static BgTaskScheduler defaultInstance;
+    
+    public static synchronized BgTaskScheduler getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new BgTaskScheduler();
+            defaultInstance.registerMetrics(Metrics.getDefault());
+        }
+        return defaultInstance;
+    }
+    
+    private final Map<Lane, RequestProcessor> processors;
+    private final Map<Lane, LaneStats> stats;
+    
+    public BgTaskScheduler() {
+        this.processors = new EnumMap<Lane, RequestProcessor>(Lane.class);
+        this.stats = new EnumMap<Lane, LaneStats>(Lane.class);
+        for (Lane lane : Lane.values()) {
+            processors.put(lane, new RequestProcessor("BgTask " + lane.getName() + " lane", lane.getMaxThreads(), true));
+            stats.put(lane, new LaneStats());
+        }
+    }
+    
+    public <V> Future<V> submit(Lane lane, Callable<V> callable) {
+        Job<V> job = new Job<V>(lane, callable);
+        stats.get(lane).queued.incrementAndGet();
+        post(job, lane);
+        return job;
+    }
+    
+    /**
+     * Lets a task that hasn't started yet run in the interactive lane.
+     * 
+     * <p>
+     * Call this when the user starts waiting for the task.
+     * Returns false if the future is not from this scheduler or
+     * the task has already started.
+     *
+     * <p>
+     * Dialogs and progress indicators don't block on BgTask futures - they
+     * get their results through {@link BgTaskListener}s and things the user
+     * asks for go straight to the interactive lane. Currently only flushing
+     * statistics at shutdown waits on a lower-lane task.
+     */
+    public boolean promote(Future<?> future) {
+        if (!(future instanceof Job)) {
+            return false;
+        }
+        Job<?> job = (Job<?>)future;
+        if (job.getScheduler() != this || job.lane == Lane.INTERACTIVE || job.started.get()) {
+            return false;
+        }
+        log.log(Level.FINE, "Promoting a task from the {0} lane", job.lane.getName());
+        post(job, Lane.INTERACTIVE);
+        return true;
+    }
+    
+    public LaneStats getLaneStats(Lane lane) {
+        return stats.get(lane);
+    }
+    
+    private void registerMetrics(Metrics metrics) {
+        for (Lane lane : Lane.values()) {
+            final LaneStats laneStats = stats.get(lane);
+            String prefix = "bgtask.lane." + lane.getName() + ".";
+            metrics.register(prefix + "queue-wait", laneStats.getQueueWait());
+            metrics.register(prefix + "run", laneStats.getRunTime());
+            metrics.register(prefix + "queued", new Gauge() {
+                @Override
+                public long getValue() {
+                    return laneStats.getQueuedCount();
+                }
+            });
+            metrics.register(prefix + "running", new Gauge() {
+                @Override
+                public long getValue() {
+                    return laneStats.getRunningCount();
+                }
+            });
+        }
+    }
+    
+    private void post(final Job<?> job, final Lane lane) {
+        processors.get(lane).post(new Runnable() {
+            @Override
+            public void run() {
+                job.runIn(lane);
+            }
+        });
+    }
+    
+    private class Job<V> extends FutureTask<V> {
+        private final Lane lane;
+        private final long submittedAt;
+        private final AtomicBoolean started;
+
+        public Job(Lane lane, Callable<V> callable) {
+            super(callable);
+            this.lane = lane;
+            this.submittedAt = System.nanoTime();
+            this.started = new AtomicBoolean(false);
+        }
+        
+        public BgTaskScheduler getScheduler() {
+            return BgTaskScheduler.this;
+        }
+        
+        public void runIn(Lane runningLane) {
+            if (!started.compareAndSet(false, true)) {
+                return; // Already run (or cancelled) via another lane
+            }
+            stats.get(lane).queued.decrementAndGet();
+            
+            LaneStats laneStats = stats.get(runningLane);
+            long start = System.nanoTime();
+            laneStats.queueWait.record(start - submittedAt);
+            laneStats.running.incrementAndGet();
+            try {
+                run();
+            } finally {
+                laneStats.running.decrementAndGet();
+                laneStats.runTime.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (started.compareAndSet(false, true)) {
+                // Cancelled before it started
+                stats.get(lane).queued.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.Random;
+
+/**
+ * Delays between retries that double after each failure, up to a maximum.
+ *
+ * <p>
+ * Each delay is picked at random from the upper half of its range so that
+ * clients that failed together don't all retry at the same moment.
+ */
+public class ExponentialBackoff {
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int failures;
+
+    public ExponentialBackoff(long initialDelay, long maxDelay) {
+        this(initialDelay, maxDelay, new Random());
+    }
+
+    public ExponentialBackoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid delays: " + initialDelay + ", " + maxDelay);
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+        this.failures = 0;
+    }
+
+    /**
+     * Returns the delay to wait before the next attempt and counts a failure.
+     */
+    public synchronized long nextDelay() {
+        long ceiling = initialDelay;
+        for (int i = 0; i < failures && ceiling < maxDelay; ++i) {
+            ceiling = (ceiling > maxDelay / 2) ? maxDelay : ceiling * 2;
+        }
+        failures++;
+
+        long half = ceiling / 2;
+        return ceiling - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Starts again from the initial delay, e.g. after a success.
+     */
+    public synchronized void reset() {
+        failures = 0;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,32 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HashUtils {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Returns the SHA-1 hash of the given data as a lowercase hex string.
+     */
+    public static String sha1Hex(byte[] data) {
+        return toHex(newSha1().digest(data));
+    }
+
+    public static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("SHA-1 not supported", ex);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            result[2*i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            result[2*i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+}
@@ -0,0 +1,179 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides how to split a test run across several JVMs.
+ */
+public class TestShardPlanner {
+    /**
+     * Sharding is off unless this system property is set. "auto" picks the number of test JVMs
+     * and a number sets it.
+     *
+     * <p>
+     * All shards run in the project directory, so tests in different classes that use
+     * the same files may interfere with each other. Hence this is opt-in.
+     */
+    public static final String SHARD_COUNT_PROPERTY = "tmc.test.shards";
+    public static final String AUTO_SHARD_COUNT = "auto";
+
+    // A JVM costs about as much to start as running a few quick tests
+    private static final int MIN_TESTS_PER_SHARD = 3;
+
+    private static final int MEMORY_BUDGET_MB = 2048;
+    private static final int DEFAULT_JVM_MEMORY_MB = 256;
+
+    private static final long DEFAULT_ESTIMATE = 1;
+
+    /**
+     * Picks the number of JVMs to use.
+     *
+     * @param memoryLimitMb The heap size of each JVM, or null if not limited.
+     */
+    public static int chooseShardCount(int testCount, int cores, Integer memoryLimitMb) {
+        String setting = System.getProperty(SHARD_COUNT_PROPERTY);
+        if (setting == null) {
+            return 1;
+        }
+        if (!setting.trim().equals(AUTO_SHARD_COUNT)) {
+            try {
+                return Math.max(1, Math.min(Integer.parseInt(setting.trim()), testCount));
+            } catch (NumberFormatException e) {
+                return 1;
+            }
+        }
+
+        int perJvm = (memoryLimitMb != null && memoryLimitMb > 0) ? memoryLimitMb : DEFAULT_JVM_MEMORY_MB;
+        int byMemory = MEMORY_BUDGET_MB / perJvm;
+        int byTests = testCount / MIN_TESTS_PER_SHARD;
+        return Math.max(1, Math.min(cores, Math.min(byMemory, byTests)));
+    }
+
+    /**
+     * Splits items into at most <code>shardCount</code> non-empty groups of roughly equal estimated duration.
+     *
+     * <p>
+     * The longest items are placed first, each into the group with the least work so far.
+     * Unknown (null) estimates are taken to be the average of the known ones.
+     * Items keep their original relative order within a group.
+     */
+    public static <T> List<List<T>> partition(final List<T> items, List<Long> estimates, int shardCount) {
+        if (items.size() != estimates.size()) {
+            throw new IllegalArgumentException("Need an estimate for every item");
+        }
+        shardCount = Math.max(1, Math.min(shardCount, items.size()));
+
+        final long[] durations = fillInUnknown(estimates);
+
+        List<Integer> order = new ArrayList<Integer>(items.size());
+        for (int i = 0; i < items.size(); ++i) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (durations[a] != durations[b]) {
+                    return durations[a] > durations[b] ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+
+        List<List<Integer>> assigned = new ArrayList<List<Integer>>(shardCount);
+        long[] loads = new long[shardCount];
+        for (int i = 0; i < shardCount; ++i) {
+            assigned.add(new ArrayList<Integer>());
+        }
+        for (int index : order) {
+            int lightest = 0;
+            for (int i = 1; i < shardCount; ++i) {
+                if (loads[i] < loads[lightest]) {
+                    lightest = i;
+                }
+            }
+            assigned.get(lightest).add(index);
+            loads[lightest] += durations[index];
+        }
+
+        List<List<T>> result = new ArrayList<List<T>>(shardCount);
+        for (List<Integer> indices : assigned) {
+            if (indices.isEmpty()) {
+                continue;
+            }
+            Collections.sort(indices);
+            List<T> shard = new ArrayList<T>(indices.size());
+            for (int index : indices) {
+                shard.add(items.get(index));
+            }
+            result.add(shard);
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #partition(List, List, int)} but never splits items with the same group key
+     * (e.g. tests of the same class) across groups.
+     *
+     * <p>
+     * Each group is estimated to take the sum of its items' estimates.
+     * Groups are ordered by their first item and keep their items' original relative order.
+     */
+    public static <T> List<List<T>> partitionByGroup(List<T> items, List<String> groupKeys, List<Long> estimates, int shardCount) {
+        if (items.size() != groupKeys.size() || items.size() != estimates.size()) {
+            throw new IllegalArgumentException("Need a group key and an estimate for every item");
+        }
+
+        long[] durations = fillInUnknown(estimates);
+
+        Map<String, List<T>> groupsByKey = new LinkedHashMap<String, List<T>>();
+        Map<String, Long> groupDurations = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < items.size(); ++i) {
+            String key = groupKeys.get(i);
+            List<T> group = groupsByKey.get(key);
+            if (group == null) {
+                group = new ArrayList<T>();
+                groupsByKey.put(key, group);
+                groupDurations.put(key, 0L);
+            }
+            group.add(items.get(i));
+            groupDurations.put(key, groupDurations.get(key) + durations[i]);
+        }
+
+        List<List<T>> groups = new ArrayList<List<T>>(groupsByKey.values());
+        List<Long> groupEstimates = new ArrayList<Long>(groupDurations.values());
+
+        List<List<T>> result = new ArrayList<List<T>>();
+        for (List<List<T>> groupsOfShard : partition(groups, groupEstimates, shardCount)) {
+            List<T> shard = new ArrayList<T>();
+            for (List<T> group : groupsOfShard) {
+                shard.addAll(group);
+            }
+            result.add(shard);
+        }
+        return result;
+    }
+
+    private static long[] fillInUnknown(List<Long> estimates) {
+        long knownTotal = 0;
+        int knownCount = 0;
+        for (Long estimate : estimates) {
+            if (estimate != null) {
+                knownTotal += estimate;
+                knownCount++;
+            }
+        }
+        long fallback = (knownCount > 0) ? Math.max(DEFAULT_ESTIMATE, knownTotal / knownCount) : DEFAULT_ESTIMATE;
+
+        long[] result = new long[estimates.size()];
+        for (int i = 0; i < result.length; ++i) {
+            Long estimate = estimates.get(i);
+            result[i] = (estimate != null) ? Math.max(DEFAULT_ESTIMATE, estimate) : fallback;
+        }
+        return result;
+    }
+}
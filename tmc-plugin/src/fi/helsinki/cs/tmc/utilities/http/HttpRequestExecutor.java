@@ -1,8 +1,11 @@
 package fi.helsinki.cs.tmc.utilities.http;
 
 import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import java.io.IOException;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.auth.params.AuthPNames;
 import org.apache.http.client.CookieStore;
@@ -12,6 +15,7 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -25,6 +29,8 @@ import org.apache.http.util.EntityUtils;
  * 
  * If the response was not a successful one (status code 2xx) then a
  * {@link FailedHttpResponseException} with a preloaded buffered entity is thrown.
+ * The exception is 304 Not Modified, which only comes to conditional requests
+ * and gives an empty entity.
  */
 /*package*/ class HttpRequestExecutor implements CancellableCallable<BufferedHttpEntity> {
     private static final int DEFAULT_TIMEOUT = 30 * 1000;
@@ -35,6 +41,8 @@ import org.apache.http.util.EntityUtils;
     private HttpUriRequest request;
     private CookieStore cookieStore;
     private UsernamePasswordCredentials credentials; // May be null
+    private int statusCode;
+    private String responseETag;
     
     /*package*/ HttpRequestExecutor(String url) {
         this(new HttpGet(url));
@@ -65,12 +73,45 @@ import org.apache.http.util.EntityUtils;
         return this;
     }
     
+    /**
+     * Sets a request header. Must be called before {@link #call()}.
+     */
+    public HttpRequestExecutor setHeader(String name, String value) {
+        request.setHeader(name, value);
+        return this;
+    }
+    
+    /**
+     * The status code of the response once {@link #call()} has returned.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+    
+    /**
+     * The ETag of the response once {@link #call()} has returned, or null if there was none.
+     */
+    public String getResponseETag() {
+        return responseETag;
+    }
+    
     @Override
     public BufferedHttpEntity call() throws IOException, InterruptedException, FailedHttpResponseException {
+        Metrics metrics = Metrics.getDefault();
+        long startTime = System.nanoTime();
         HttpClient httpClient = makeHttpClient();
         try {
-            return executeRequest(httpClient);
+            BufferedHttpEntity entity = executeRequest(httpClient);
+            metrics.counter("http.bytes-received").add(Math.max(0, entity.getContentLength()));
+            return entity;
+        } catch (FailedHttpResponseException ex) {
+            metrics.counter("http.failed").increment();
+            throw ex;
+        } catch (IOException ex) {
+            metrics.counter("http.failed").increment();
+            throw ex;
         } finally {
+            metrics.recordSince("http.request", startTime);
             synchronized (shutdownLock) {
                 request = null;
                 disposeOfHttpClient(httpClient);
@@ -119,6 +160,15 @@ import org.apache.http.util.EntityUtils;
     
     private BufferedHttpEntity handleResponse(HttpResponse response) throws IOException, InterruptedException, FailedHttpResponseException {
         int responseCode = response.getStatusLine().getStatusCode();
+        statusCode = responseCode;
+        Header etag = response.getFirstHeader("ETag");
+        responseETag = (etag != null) ? etag.getValue() : null;
+        
+        if (responseCode == HttpStatus.SC_NOT_MODIFIED) {
+            EntityUtils.consume(response.getEntity());
+            Metrics.getDefault().counter("http.not-modified").increment();
+            return new BufferedHttpEntity(new ByteArrayEntity(new byte[0]));
+        }
         if (response.getEntity() == null) {
             throw new IOException("HTTP " + responseCode + " with no response");
         }
@@ -5,10 +5,12 @@ import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Map;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.ByteArrayBody;
@@ -23,6 +25,23 @@ import org.apache.http.util.EntityUtils;
  * with a non-successful status code.
  */
 public class HttpTasks {
+    /**
+     * The result of {@link #getForTextIfChanged(String, String)}.
+     */
+    public static class ConditionalText {
+        public final String text; // Null if not modified
+        public final String etag; // Null if the server didn't give one
+        
+        public ConditionalText(String text, String etag) {
+            this.text = text;
+            this.etag = etag;
+        }
+        
+        public boolean isModified() {
+            return text != null;
+        }
+    }
+    
     private UsernamePasswordCredentials credentials = null;
 
     public HttpTasks setCredentials(String username, String password) {
@@ -46,6 +65,33 @@ public class HttpTasks {
         return downloadToText(createExecutor(url));
     }
     
+    /**
+     * Downloads text unless the server says it still has the given ETag.
+     * 
+     * @param etag The ETag of an earlier download, or null to download unconditionally.
+     */
+    public CancellableCallable<ConditionalText> getForTextIfChanged(String url, final String etag) {
+        final HttpRequestExecutor download = createExecutor(url);
+        if (etag != null) {
+            download.setHeader("If-None-Match", etag);
+        }
+        return new CancellableCallable<ConditionalText>() {
+            @Override
+            public ConditionalText call() throws Exception {
+                BufferedHttpEntity entity = download.call();
+                if (download.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    return new ConditionalText(null, etag);
+                }
+                return new ConditionalText(EntityUtils.toString(entity, "UTF-8"), download.getResponseETag());
+            }
+
+            @Override
+            public boolean cancel() {
+                return download.cancel();
+            }
+        };
+    }
+    
     public CancellableCallable<byte[]> postForBinary(String url, Map<String, String> params) {
         return downloadToBinary(createExecutor(makePostRequest(url, params)));
     }
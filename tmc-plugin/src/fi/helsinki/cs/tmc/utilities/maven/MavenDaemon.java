@@ -0,0 +1,366 @@
+package fi.helsinki.cs.tmc.utilities.maven;
+
+import fi.helsinki.cs.tmc.maven.wrapper.MavenDaemonProtocol;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import fi.helsinki.cs.tmc.utilities.process.ProcessRunner;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.netbeans.api.java.classpath.ClassPath;
+import org.netbeans.api.java.platform.JavaPlatform;
+import org.openide.filesystems.FileObject;
+
+/**
+ * A warm JVM that runs Maven builds so that each build needn't start Maven from scratch.
+ *
+ * <p>
+ * The daemon is started on first use and reused until it dies.
+ * Builds run one at a time. Cancelling a running build kills the daemon
+ * since Maven can't be interrupted cleanly. The next build starts a new one.
+ *
+ * @see MavenDaemonProtocol
+ */
+public class MavenDaemon {
+    private static final Logger log = Logger.getLogger(MavenDaemon.class.getName());
+
+    private static final long STARTUP_TIMEOUT = 30000;
+
+    private static MavenDaemon defaultInstance;
+
+    public static synchronized MavenDaemon getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new MavenDaemon(null);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Thrown when the daemon can't be started or reached.
+     * The build has not begun and may be run some other way.
+     */
+    public static class UnavailableException extends IOException {
+        public UnavailableException(String msg) {
+            super(msg);
+        }
+
+        public UnavailableException(String msg, Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    private final String[] command;
+
+    private final Object buildLock = new Object(); // Held while a build runs
+    private final Object stateLock = new Object();
+    private Process process;
+    private String processTreeIdentifier;
+    private int port;
+    private String token;
+    private Build currentBuild;
+    private boolean broken;
+
+    /**
+     * @param command The command that starts the daemon, or null to use the bundled Maven.
+     */
+    /*package*/ MavenDaemon(String[] command) {
+        this.command = command;
+    }
+
+    /**
+     * Prepares a build. Arguments are as to <code>mvn</code>.
+     */
+    public Build newBuild(File workDir, List<String> args) {
+        return new Build(workDir, args);
+    }
+
+    /**
+     * Whether a previous attempt to start the daemon failed.
+     */
+    public boolean isBroken() {
+        synchronized (stateLock) {
+            return broken;
+        }
+    }
+
+    /**
+     * Stops the daemon and the test JVMs forked by its build. It is restarted by the next build.
+     */
+    public void shutdown() {
+        synchronized (stateLock) {
+            if (process != null) {
+                ProcessRunner.destroyProcessTree(process, processTreeIdentifier);
+                process = null;
+                processTreeIdentifier = null;
+            }
+        }
+    }
+
+    public class Build {
+        private final File workDir;
+        private final List<String> args;
+        private boolean cancelled;
+
+        private Build(File workDir, List<String> args) {
+            this.workDir = workDir;
+            this.args = new ArrayList<String>(args);
+        }
+
+        /**
+         * Runs the build, writing its output to the given streams, and returns its exit status.
+         */
+        public int run(OutputStream out, OutputStream err) throws IOException, InterruptedException {
+            synchronized (buildLock) {
+                synchronized (stateLock) {
+                    if (cancelled) {
+                        throw new InterruptedException();
+                    }
+                    currentBuild = this;
+                }
+
+                Socket socket = null;
+                try {
+                    socket = connect();
+                    synchronized (stateLock) {
+                        if (cancelled) {
+                            throw new InterruptedException();
+                        }
+                    }
+                    return runOn(socket, out, err);
+                } catch (UnavailableException e) {
+                    throw e;
+                } catch (IOException e) {
+                    synchronized (stateLock) {
+                        if (cancelled) {
+                            throw new InterruptedException();
+                        }
+                    }
+                    shutdown();
+                    throw e;
+                } finally {
+                    synchronized (stateLock) {
+                        currentBuild = null;
+                    }
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Cancels the build. If it's running, the daemon is killed.
+         */
+        public void cancel() {
+            synchronized (stateLock) {
+                cancelled = true;
+                if (currentBuild == this) {
+                    shutdown();
+                }
+            }
+        }
+
+        private int runOn(Socket socket, OutputStream out, OutputStream err) throws IOException {
+            DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+            request.writeUTF(token);
+            request.writeUTF(workDir.getAbsolutePath());
+            request.writeInt(args.size());
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] buf = new byte[8192];
+            while (true) {
+                byte type;
+                try {
+                    type = response.readByte();
+                } catch (EOFException e) {
+                    throw new IOException("Maven daemon disconnected in the middle of a build");
+                }
+
+                if (type == MavenDaemonProtocol.FRAME_EXIT) {
+                    out.flush();
+                    err.flush();
+                    return response.readInt();
+                }
+
+                OutputStream target;
+                if (type == MavenDaemonProtocol.FRAME_STDOUT) {
+                    target = out;
+                } else if (type == MavenDaemonProtocol.FRAME_STDERR) {
+                    target = err;
+                } else {
+                    throw new IOException("Unknown frame type from Maven daemon: " + type);
+                }
+
+                int remaining = response.readInt();
+                while (remaining > 0) {
+                    int n = response.read(buf, 0, Math.min(buf.length, remaining));
+                    if (n == -1) {
+                        throw new IOException("Maven daemon disconnected in the middle of a build");
+                    }
+                    target.write(buf, 0, n);
+                    remaining -= n;
+                }
+            }
+        }
+    }
+
+    // Called with buildLock held
+    private Socket connect() throws UnavailableException, InterruptedException {
+        Process proc;
+        synchronized (stateLock) {
+            proc = process;
+        }
+        if (proc != null && isAlive(proc)) {
+            try {
+                return new Socket(InetAddress.getByName("127.0.0.1"), port);
+            } catch (IOException e) {
+                log.log(Level.INFO, "Failed to connect to Maven daemon. Restarting it.", e);
+                shutdown();
+            }
+        }
+
+        start();
+        try {
+            return new Socket(InetAddress.getByName("127.0.0.1"), port);
+        } catch (IOException e) {
+            throw new UnavailableException("Failed to connect to Maven daemon", e);
+        }
+    }
+
+    private void start() throws UnavailableException, InterruptedException {
+        long startTime = System.nanoTime();
+        String newToken = UUID.randomUUID().toString();
+        String treeId = UUID.randomUUID().toString();
+        Process proc;
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command != null ? command : buildCommand());
+            builder.environment().put(ProcessRunner.PROCESS_TREE_IDENTIFIER_NAME, treeId);
+            proc = builder.start();
+        } catch (Exception e) {
+            synchronized (stateLock) {
+                broken = true;
+            }
+            throw new UnavailableException("Failed to start Maven daemon", e);
+        }
+
+        BlockingQueue<Integer> portQueue = new LinkedBlockingQueue<Integer>();
+        startOutputReader(proc.getInputStream(), portQueue);
+        startOutputReader(proc.getErrorStream(), null);
+
+        Integer newPort = null;
+        try {
+            // The daemon exits when this stream closes, i.e. when we die
+            Writer stdin = new OutputStreamWriter(proc.getOutputStream(), "UTF-8");
+            stdin.write(newToken + "\n");
+            stdin.flush();
+
+            newPort = portQueue.poll(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            log.log(Level.INFO, "Failed to talk to Maven daemon", e);
+        } finally {
+            if (newPort == null || newPort < 0) {
+                ProcessRunner.destroyProcessTree(proc, treeId);
+            }
+        }
+
+        synchronized (stateLock) {
+            if (newPort == null || newPort < 0) {
+                broken = true;
+                throw new UnavailableException("Maven daemon did not start");
+            }
+            this.process = proc;
+            this.processTreeIdentifier = treeId;
+            this.port = newPort;
+            this.token = newToken;
+            this.broken = false;
+        }
+
+        Metrics metrics = Metrics.getDefault();
+        metrics.counter("maven.daemon.starts").increment();
+        metrics.recordSince("maven.daemon.startup", startTime);
+        log.log(Level.INFO, "Maven daemon listening on port {0}", port);
+    }
+
+    private String[] buildCommand() {
+        JavaPlatform platform = JavaPlatform.getDefault();
+        FileObject javaExe = platform.findTool("java");
+        if (javaExe == null) {
+            throw new RuntimeException("Java executable not found");
+        }
+
+        return new String[] {
+            javaExe.getPath(),
+            "-cp",
+            MavenLibs.getDaemonClassPath().toString(ClassPath.PathConversionMode.WARN),
+            MavenDaemonProtocol.MAIN_CLASS
+        };
+    }
+
+    /**
+     * Logs the daemon's own output. The port is taken from the first matching line.
+     */
+    private void startOutputReader(final InputStream is, final BlockingQueue<Integer> portQueue) {
+        Thread thread = new Thread("Maven daemon output reader") {
+            @Override
+            public void run() {
+                boolean portFound = false;
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (portQueue != null && !portFound && line.startsWith(MavenDaemonProtocol.LISTENING_PREFIX)) {
+                            try {
+                                portQueue.add(Integer.parseInt(line.substring(MavenDaemonProtocol.LISTENING_PREFIX.length()).trim()));
+                                portFound = true;
+                                continue;
+                            } catch (NumberFormatException e) {
+                            }
+                        }
+                        log.log(Level.FINE, "Maven daemon: {0}", line);
+                    }
+                } catch (IOException e) {
+                } finally {
+                    if (portQueue != null && !portFound) {
+                        portQueue.add(-1);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean isAlive(Process proc) {
+        try {
+            proc.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package fi.helsinki.cs.tmc.utilities.maven;
+
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
+import fi.helsinki.cs.tmc.utilities.process.ProcessResult;
+import fi.helsinki.cs.tmc.utilities.process.ProcessRunner;
+import fi.helsinki.cs.tmc.utilities.process.TailCaptureOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.io.output.WriterOutputStream;
+import org.openide.windows.InputOutput;
+
+/**
+ * Runs a Maven build in the {@link MavenDaemon}.
+ *
+ * <p>
+ * Falls back to a separate Maven process if the daemon can't be used.
+ */
+public class MavenDaemonRunner implements CancellableCallable<ProcessResult> {
+    private static final Logger log = Logger.getLogger(MavenDaemonRunner.class.getName());
+
+    private final MavenDaemon daemon;
+    private final File workDir;
+    private final List<String> args;
+    private final InputOutput inOut;
+    private final ProcessRunner fallback;
+
+    private final Object cancelLock = new Object();
+    private MavenDaemon.Build build;
+    private boolean cancelled;
+
+    public MavenDaemonRunner(MavenDaemon daemon, File workDir, List<String> args, InputOutput inOut, ProcessRunner fallback) {
+        this.daemon = daemon;
+        this.workDir = workDir;
+        this.args = args;
+        this.inOut = inOut;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public ProcessResult call() throws Exception {
+        if (daemon.isBroken()) {
+            return runFallback();
+        }
+
+        synchronized (cancelLock) {
+            if (cancelled) {
+                throw new InterruptedException();
+            }
+            build = daemon.newBuild(workDir, args);
+        }
+
+        TailCaptureOutputStream stdoutBuf = new TailCaptureOutputStream(ProcessRunner.DEFAULT_MAX_CAPTURED_BYTES);
+        TailCaptureOutputStream stderrBuf = new TailCaptureOutputStream(ProcessRunner.DEFAULT_MAX_CAPTURED_BYTES);
+        OutputStream out = stdoutBuf;
+        OutputStream err = stderrBuf;
+        if (inOut != null) {
+            out = new TeeOutputStream(out, new WriterOutputStream(inOut.getOut(), "UTF-8"));
+            err = new TeeOutputStream(err, new WriterOutputStream(inOut.getErr(), "UTF-8"));
+        }
+
+        long startTime = System.nanoTime();
+        int statusCode;
+        try {
+            statusCode = build.run(out, err);
+        } catch (MavenDaemon.UnavailableException e) {
+            log.log(Level.WARNING, "Maven daemon unavailable. Running Maven in a separate process.", e);
+            return runFallback();
+        } finally {
+            try {
+                out.close();
+            } finally {
+                err.close();
+            }
+        }
+
+        Metrics.getDefault().recordSince("maven.daemon.run", startTime);
+        return new ProcessResult(statusCode, stdoutBuf.toString("UTF-8"), stderrBuf.toString("UTF-8"));
+    }
+
+    private ProcessResult runFallback() throws Exception {
+        Metrics.getDefault().counter("maven.daemon.fallbacks").increment();
+        synchronized (cancelLock) {
+            if (cancelled) {
+                throw new InterruptedException();
+            }
+        }
+        return fallback.call();
+    }
+
+    @Override
+    public boolean cancel() {
+        synchronized (cancelLock) {
+            cancelled = true;
+            if (build != null) {
+                build.cancel();
+            }
+        }
+        fallback.cancel();
+        return true;
+    }
+}
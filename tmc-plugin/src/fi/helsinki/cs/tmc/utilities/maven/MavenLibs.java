@@ -12,6 +12,7 @@ import org.openide.modules.InstalledFileLocator;
 
 public class MavenLibs {
     private static ClassPath mavenClassPath;
+    private static ClassPath daemonClassPath;
     
     public static ClassPath getMavenClassPath() {
         if (mavenClassPath == null) {
@@ -30,4 +31,19 @@ public class MavenLibs {
         }
         return mavenClassPath;
     }
+    
+    /**
+     * Maven and the wrapper module's own jar, which contains the Maven daemon.
+     */
+    public static ClassPath getDaemonClassPath() {
+        if (daemonClassPath == null) {
+            File wrapperJar = InstalledFileLocator.getDefault().locate("modules/fi-helsinki-cs-tmc-maven-wrapper.jar", "fi.helsinki.cs.tmc.maven.wrapper", false);
+            if (wrapperJar == null) {
+                throw new IllegalStateException("Maven wrapper module jar not found");
+            }
+            ClassPath wrapperClassPath = ClassPathSupport.createClassPath(FileUtil.urlForArchiveOrDir(wrapperJar));
+            daemonClassPath = ClassPathSupport.createProxyClassPath(getMavenClassPath(), wrapperClassPath);
+        }
+        return daemonClassPath;
+    }
 }
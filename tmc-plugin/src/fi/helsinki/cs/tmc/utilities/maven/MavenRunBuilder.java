@@ -1,5 +1,7 @@
 package fi.helsinki.cs.tmc.utilities.maven;
 
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.process.ProcessResult;
 import fi.helsinki.cs.tmc.utilities.process.ProcessRunner;
 import java.io.File;
 import java.util.ArrayList;
@@ -12,6 +14,11 @@ import org.openide.filesystems.FileObject;
 import org.openide.windows.InputOutput;
 
 public class MavenRunBuilder {
+    /**
+     * Setting this system property to "false" makes every build start a new Maven process.
+     */
+    public static final String USE_DAEMON_PROPERTY = "tmc.maven.daemon";
+    
     private File projectDir = null;
     private List<String> goals = new ArrayList<String>();
     private Map<String, String> props = new HashMap<String, String>();
@@ -45,6 +52,17 @@ public class MavenRunBuilder {
         return this;
     }
     
+    /**
+     * Creates a runner that uses the {@link MavenDaemon} when possible.
+     */
+    public CancellableCallable<ProcessResult> createRunner() {
+        ProcessRunner processRunner = createProcessRunner();
+        if ("false".equals(System.getProperty(USE_DAEMON_PROPERTY))) {
+            return processRunner;
+        }
+        return new MavenDaemonRunner(MavenDaemon.getDefault(), projectDir, buildArgs(), io, processRunner);
+    }
+    
     public ProcessRunner createProcessRunner() {
         if (projectDir == null) {
             throw new IllegalStateException("Project dir not set");
@@ -73,11 +91,17 @@ public class MavenRunBuilder {
         command.add("-cp");
         command.add(classPath.toString(ClassPath.PathConversionMode.WARN));
         command.add("org.apache.maven.cli.MavenCli");
-        for (String key : props.keySet()) {
-            command.add("-D" + key + "=" + props.get(key));
-        }
-        command.addAll(goals);
+        command.addAll(buildArgs());
         
         return command.toArray(new String[command.size()]);
     }
+    
+    private List<String> buildArgs() {
+        List<String> args = new ArrayList<String>();
+        for (String key : props.keySet()) {
+            args.add("-D" + key + "=" + props.get(key));
+        }
+        args.addAll(goals);
+        return args;
+    }
 }
@@ -0,0 +1,22 @@
+package fi.helsinki.cs.tmc.utilities.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe count of something.
+ */
+public class Counter {
+    private final AtomicLong value = new AtomicLong();
+    
+    public void increment() {
+        value.incrementAndGet();
+    }
+    
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+    
+    public long get() {
+        return value.get();
+    }
+}
@@ -0,0 +1,11 @@
+package fi.helsinki.cs.tmc.utilities.metrics;
+
+/**
+ * A value that is read when metrics are displayed.
+ * 
+ * <p>
+ * May be called from any thread.
+ */
+public interface Gauge {
+    public long getValue();
+}
@@ -0,0 +1,87 @@
+package fi.helsinki.cs.tmc.utilities.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations with power-of-two microsecond buckets.
+ * 
+ * <p>
+ * Percentiles are approximate: they return the upper bound of the bucket
+ * the percentile falls in.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 40;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+    
+    public long getCount() {
+        return count.get();
+    }
+    
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+    
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+    
+    public long getAverageNanos() {
+        long n = count.get();
+        return (n > 0) ? totalNanos.get() / n : 0;
+    }
+    
+    /**
+     * Returns an upper bound for the given percentile (0-100) in nanoseconds.
+     */
+    public long getPercentileNanos(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        
+        long threshold = (long)Math.ceil(n * percentile / 100.0);
+        if (threshold < 1) {
+            threshold = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets.get(i);
+            if (seen >= threshold) {
+                return Math.min(bucketUpperBoundNanos(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+    
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros); // 0 for <1us, 1 for 1us, 2 for 2-3us, ...
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+    
+    private static long bucketUpperBoundNanos(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) * 1000;
+    }
+}
@@ -0,0 +1,129 @@
+package fi.helsinki.cs.tmc.utilities.metrics;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A registry of named counters, gauges and latency histograms.
+ * 
+ * <p>
+ * Metrics are created on first use, so instrumented code can simply do
+ * <code>Metrics.getDefault().histogram("foo").record(nanos)</code>.
+ * Names are dot-separated, e.g. <code>http.request</code>.
+ */
+public class Metrics {
+    private static final Metrics defaultInstance = new Metrics();
+    
+    public static Metrics getDefault() {
+        return defaultInstance;
+    }
+    
+    private final ConcurrentMap<String, Counter> counters;
+    private final ConcurrentMap<String, Gauge> gauges;
+    private final ConcurrentMap<String, LatencyHistogram> histograms;
+    
+    public Metrics() {
+        this.counters = new ConcurrentHashMap<String, Counter>();
+        this.gauges = new ConcurrentHashMap<String, Gauge>();
+        this.histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+    
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+    
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+    
+    /**
+     * Records the time elapsed since <code>startNanos</code> (from {@link System#nanoTime()}).
+     */
+    public void recordSince(String histogramName, long startNanos) {
+        histogram(histogramName).record(System.nanoTime() - startNanos);
+    }
+    
+    /**
+     * Registers a histogram that is owned by someone else. Replaces any previous one.
+     */
+    public void register(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+    
+    /**
+     * Registers a gauge. Replaces any previous one.
+     */
+    public void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    public SortedMap<String, Counter> getCounters() {
+        return new TreeMap<String, Counter>(counters);
+    }
+    
+    public SortedMap<String, Gauge> getGauges() {
+        return new TreeMap<String, Gauge>(gauges);
+    }
+    
+    public SortedMap<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+    
+    /**
+     * Returns a snapshot of all metrics as JSON. Times are in milliseconds.
+     */
+    public String toJson() {
+        JsonObject counterJson = new JsonObject();
+        for (Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+            counterJson.addProperty(entry.getKey(), entry.getValue().get());
+        }
+        
+        JsonObject gaugeJson = new JsonObject();
+        for (Map.Entry<String, Gauge> entry : getGauges().entrySet()) {
+            gaugeJson.addProperty(entry.getKey(), entry.getValue().getValue());
+        }
+        
+        JsonObject histogramJson = new JsonObject();
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            JsonObject obj = new JsonObject();
+            obj.addProperty("count", h.getCount());
+            obj.addProperty("avg_ms", toMillis(h.getAverageNanos()));
+            obj.addProperty("p50_ms", toMillis(h.getPercentileNanos(50)));
+            obj.addProperty("p99_ms", toMillis(h.getPercentileNanos(99)));
+            obj.addProperty("max_ms", toMillis(h.getMaxNanos()));
+            histogramJson.add(entry.getKey(), obj);
+        }
+        
+        JsonObject toplevel = new JsonObject();
+        toplevel.add("counters", counterJson);
+        toplevel.add("gauges", gaugeJson);
+        toplevel.add("histograms", histogramJson);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(toplevel);
+    }
+    
+    public static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
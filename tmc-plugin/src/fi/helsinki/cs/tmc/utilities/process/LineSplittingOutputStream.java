@@ -0,0 +1,76 @@
+package fi.helsinki.cs.tmc.utilities.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Decodes written bytes as UTF-8 and passes them on a line at a time.
+ * 
+ * <p>
+ * Overlong lines are split to keep memory use bounded.
+ */
+/*package*/ class LineSplittingOutputStream extends OutputStream {
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    
+    private final ProcessRunner.LineListener listener;
+    private final boolean errorOutput;
+    private final ByteArrayOutputStream line;
+
+    public LineSplittingOutputStream(ProcessRunner.LineListener listener, boolean errorOutput) {
+        this.listener = listener;
+        this.errorOutput = errorOutput;
+        this.line = new ByteArrayOutputStream(256);
+    }
+
+    @Override
+    public void write(int b) {
+        if (b == '\n') {
+            emitLine();
+        } else {
+            line.write(b);
+            if (line.size() >= MAX_LINE_BYTES) {
+                emitLine();
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        int end = off + len;
+        int lineStart = off;
+        for (int i = off; i < end; ++i) {
+            if (b[i] == '\n') {
+                line.write(b, lineStart, i - lineStart);
+                emitLine();
+                lineStart = i + 1;
+            } else if (line.size() + (i - lineStart) >= MAX_LINE_BYTES) {
+                line.write(b, lineStart, i - lineStart);
+                emitLine();
+                lineStart = i;
+            }
+        }
+        line.write(b, lineStart, end - lineStart);
+    }
+
+    @Override
+    public void close() {
+        if (line.size() > 0) {
+            emitLine();
+        }
+    }
+    
+    private void emitLine() {
+        String text;
+        try {
+            text = line.toString("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        line.reset();
+        if (text.endsWith("\r")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        listener.lineRead(text, errorOutput);
+    }
+}
@@ -1,6 +1,7 @@
 package fi.helsinki.cs.tmc.utilities.process;
 
-import java.io.ByteArrayOutputStream;
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,25 +9,50 @@ import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.io.output.WriterOutputStream;
 import org.netbeans.api.extexecution.ExternalProcessSupport;
-import org.openide.filesystems.FileUtil;
 import org.openide.windows.InputOutput;
 
 /**
- * Used to run subprocesses with a timeout and capture their output.
+ * Used to run subprocesses and capture their output.
  * 
  * <p>
- * TODO: make cancellable
+ * Only the last {@link #setMaxCapturedBytes(int) few bytes} of each output
+ * stream are kept in the result. Complete output can be followed line by line
+ * with a {@link LineListener}. Cancelling kills the whole process tree.
  */
-public class ProcessRunner implements Callable<ProcessResult> {
-    private static final String PROCESS_TREE_IDENTIFIER_NAME = "PROCESS_TREE_IDENTIFIER_FOR_NB";
+public class ProcessRunner implements CancellableCallable<ProcessResult> {
+    private static final Logger log = Logger.getLogger(ProcessRunner.class.getName());
+    /**
+     * The environment variable whose value identifies the processes started by one process and its children.
+     */
+    public static final String PROCESS_TREE_IDENTIFIER_NAME = "PROCESS_TREE_IDENTIFIER_FOR_NB";
+    
+    public static final int DEFAULT_MAX_CAPTURED_BYTES = 1024 * 1024;
+    
+    // Grandchildren may keep the pipes open after the process exits
+    private static final long OUTPUT_DRAIN_TIMEOUT = 5000;
+    
+    /**
+     * Receives process output a line at a time in a background thread.
+     */
+    public static interface LineListener {
+        public void lineRead(String line, boolean errorOutput);
+    }
     
     private final String[] command;
     private final File workDir;
     private final InputOutput inOut;
+    private int maxCapturedBytes = DEFAULT_MAX_CAPTURED_BYTES;
+    private LineListener lineListener;
+    
+    private final Object processLock = new Object();
+    private Process process;
+    private String processTreeIdentifier;
+    private boolean cancelled;
     
     public ProcessRunner(String[] command, File workDir, InputOutput inOut) {
         this.command = command;
@@ -34,43 +60,112 @@ public class ProcessRunner implements Callable<ProcessResult> {
         this.inOut = inOut;
     }
     
+    /**
+     * Sets how many bytes at the end of each output stream are kept in the {@link ProcessResult}.
+     */
+    public ProcessRunner setMaxCapturedBytes(int maxCapturedBytes) {
+        this.maxCapturedBytes = maxCapturedBytes;
+        return this;
+    }
+    
+    public ProcessRunner setLineListener(LineListener lineListener) {
+        this.lineListener = lineListener;
+        return this;
+    }
+    
     @Override
     public ProcessResult call() throws Exception {
-        String processTreeIdentifier = UUID.randomUUID().toString();
+        String treeId = UUID.randomUUID().toString();
         
         @SuppressWarnings("unchecked")
-        String[] envp = makeEnvp(System.getenv(), Collections.singletonMap(PROCESS_TREE_IDENTIFIER_NAME, processTreeIdentifier));
+        String[] envp = makeEnvp(System.getenv(), Collections.singletonMap(PROCESS_TREE_IDENTIFIER_NAME, treeId));
         
-        Process process = Runtime.getRuntime().exec(command, envp, workDir);
+        long startTime = System.nanoTime();
+        Process proc;
+        synchronized (processLock) {
+            if (cancelled) {
+                throw new InterruptedException();
+            }
+            proc = Runtime.getRuntime().exec(command, envp, workDir);
+            this.process = proc;
+            this.processTreeIdentifier = treeId;
+        }
         
-        int statusCode;
-        ByteArrayOutputStream stdoutBuf = new ByteArrayOutputStream();
-        ByteArrayOutputStream stderrBuf = new ByteArrayOutputStream();
+        TailCaptureOutputStream stdoutBuf = new TailCaptureOutputStream(maxCapturedBytes);
+        TailCaptureOutputStream stderrBuf = new TailCaptureOutputStream(maxCapturedBytes);
         
-        OutputStream out;
-        OutputStream err;
+        OutputStream out = stdoutBuf;
+        OutputStream err = stderrBuf;
         if (inOut != null) {
-            out = new TeeOutputStream(stdoutBuf, new WriterOutputStream(inOut.getOut()));
-            err = new TeeOutputStream(stdoutBuf, new WriterOutputStream(inOut.getErr()));
-        } else {
-            out = stdoutBuf;
-            err = stderrBuf;
+            out = new TeeOutputStream(out, new WriterOutputStream(inOut.getOut()));
+            err = new TeeOutputStream(err, new WriterOutputStream(inOut.getErr()));
+        }
+        if (lineListener != null) {
+            out = new TeeOutputStream(out, new LineSplittingOutputStream(lineListener, false));
+            err = new TeeOutputStream(err, new LineSplittingOutputStream(lineListener, true));
         }
         
+        int statusCode;
         try {
-            startReaderThread(process.getInputStream(), out);
-            startReaderThread(process.getErrorStream(), err);
+            Thread stdoutPump = startPump(proc.getInputStream(), out);
+            Thread stderrPump = startPump(proc.getErrorStream(), err);
 
-            statusCode = process.waitFor();
+            statusCode = proc.waitFor();
+            
+            synchronized (processLock) {
+                this.process = null;
+                if (cancelled) {
+                    throw new InterruptedException();
+                }
+            }
+            
+            waitForPump(stdoutPump, proc.getInputStream());
+            waitForPump(stderrPump, proc.getErrorStream());
         } catch (InterruptedException e) {
-            Map<String, String> destroyEnv = Collections.singletonMap(PROCESS_TREE_IDENTIFIER_NAME, processTreeIdentifier);
-            ExternalProcessSupport.destroy(process, destroyEnv);
+            destroyProcessTree(proc, treeId);
             throw e;
+        } finally {
+            synchronized (processLock) {
+                this.process = null;
+            }
+        }
+        
+        Metrics metrics = Metrics.getDefault();
+        metrics.recordSince("process.run", startTime);
+        if (statusCode != 0) {
+            metrics.counter("process.nonzero-exit").increment();
+        }
+        if (stdoutBuf.isTruncated() || stderrBuf.isTruncated()) {
+            log.log(Level.INFO, "Process output was truncated. It wrote {0} bytes to stdout and {1} bytes to stderr.",
+                    new Object[] { stdoutBuf.getTotalBytes(), stderrBuf.getTotalBytes() });
         }
         
         return new ProcessResult(statusCode, stdoutBuf.toString("UTF-8"), stderrBuf.toString("UTF-8"));
     }
 
+    /**
+     * Kills the process and its children. The call then throws {@link InterruptedException}.
+     */
+    @Override
+    public boolean cancel() {
+        synchronized (processLock) {
+            cancelled = true;
+            if (process != null) {
+                destroyProcessTree(process, processTreeIdentifier);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Kills the process and all processes started with the given value of
+     * {@link #PROCESS_TREE_IDENTIFIER_NAME} in their environment.
+     */
+    public static void destroyProcessTree(Process proc, String treeId) {
+        Map<String, String> destroyEnv = Collections.singletonMap(PROCESS_TREE_IDENTIFIER_NAME, treeId);
+        ExternalProcessSupport.destroy(proc, destroyEnv);
+    }
+
     private String[] makeEnvp(Map<String, String>... envs) {
         int totalEntries = 0;
         for (Map<String, String> env : envs) {
@@ -88,23 +183,48 @@ public class ProcessRunner implements Callable<ProcessResult> {
         return envp;
     }
     
-    private Thread startReaderThread(final InputStream is, final OutputStream os) {
-        Thread thread = new Thread() {
+    // Each pump gets its own thread. A pump may stay blocked in a read for as
+    // long as a grandchild keeps the pipe open, so it mustn't hold up others.
+    private Thread startPump(final InputStream is, final OutputStream os) {
+        Thread pump = new Thread(new Runnable() {
             @Override
             public void run() {
+                byte[] buf = new byte[8192];
                 try {
-                    FileUtil.copy(is, os);
-                } catch (IOException e) {
-                }
-                try {
-                    os.close();
+                    int n;
+                    while ((n = is.read(buf)) != -1) {
+                        os.write(buf, 0, n);
+                    }
                 } catch (IOException e) {
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Failed to read process output", e);
+                } finally {
+                    try {
+                        os.close();
+                    } catch (IOException e) {
+                    }
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                    }
                 }
             }
-        };
-        thread.setDaemon(true);
-        thread.start();
-        return thread;
+        }, "ProcessRunner output pump");
+        pump.setDaemon(true);
+        pump.start();
+        return pump;
     }
     
+    private void waitForPump(Thread pump, InputStream is) throws InterruptedException {
+        pump.join(OUTPUT_DRAIN_TIMEOUT);
+        if (pump.isAlive()) {
+            log.info("Gave up waiting for process output to end");
+            // A thread blocked in a pipe read ignores interrupts. Closing the pipe ends the read.
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            pump.interrupt();
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package fi.helsinki.cs.tmc.utilities.process;
+
+import fi.helsinki.cs.tmc.utilities.CancellableCallable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs several processes at once and waits for all of them.
+ *
+ * <p>
+ * If any of them exits with a non-zero status or throws, or the group is cancelled,
+ * the rest are killed.
+ */
+public class ProcessRunnerGroup implements CancellableCallable<List<ProcessResult>> {
+    /**
+     * Told about each process as soon as it finishes, in a background thread.
+     */
+    public static interface Listener {
+        public void processFinished(int index, ProcessResult result);
+    }
+    
+    private final List<ProcessRunner> runners;
+    private final long[] elapsedMillis;
+    private Listener listener;
+    private volatile ProcessResult firstFailure; // The first result with a non-zero status
+
+    public ProcessRunnerGroup(List<ProcessRunner> runners) {
+        this.runners = new ArrayList<ProcessRunner>(runners);
+        this.elapsedMillis = new long[runners.size()];
+    }
+
+    public ProcessRunnerGroup setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Returns the results in the order the runners were given.
+     * If a process exits with a non-zero status, the others are killed
+     * and only the result of the failed one is returned.
+     */
+    @Override
+    public List<ProcessResult> call() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(runners.size());
+        try {
+            List<Future<ProcessResult>> futures = new ArrayList<Future<ProcessResult>>(runners.size());
+            for (int i = 0; i < runners.size(); ++i) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<ProcessResult>() {
+                    @Override
+                    public ProcessResult call() throws Exception {
+                        long startTime = System.nanoTime();
+                        ProcessResult result;
+                        try {
+                            result = runners.get(index).call();
+                        } finally {
+                            elapsedMillis[index] = (System.nanoTime() - startTime) / 1000000L;
+                        }
+                        if (result.statusCode != 0) {
+                            failed(index, result);
+                        }
+                        if (listener != null) {
+                            listener.processFinished(index, result);
+                        }
+                        return result;
+                    }
+                }));
+            }
+
+            List<ProcessResult> results = new ArrayList<ProcessResult>(runners.size());
+            try {
+                for (Future<ProcessResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (ExecutionException ex) {
+                if (firstFailure != null) {
+                    return Collections.singletonList(firstFailure); // The others were killed because of it
+                }
+                cancel();
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception)ex.getCause();
+                }
+                throw ex;
+            } catch (InterruptedException ex) {
+                cancel();
+                throw ex;
+            }
+            if (firstFailure != null) {
+                return Collections.singletonList(firstFailure);
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void failed(int index, ProcessResult result) {
+        synchronized (this) {
+            if (firstFailure != null) {
+                return;
+            }
+            firstFailure = result;
+        }
+        for (int i = 0; i < runners.size(); ++i) {
+            if (i != index) {
+                runners.get(i).cancel();
+            }
+        }
+    }
+
+    /**
+     * How long the given runner took. Valid after {@link #call()} returns.
+     */
+    public long getElapsedMillis(int index) {
+        return elapsedMillis[index];
+    }
+
+    @Override
+    public boolean cancel() {
+        for (ProcessRunner runner : runners) {
+            runner.cancel();
+        }
+        return true;
+    }
+}
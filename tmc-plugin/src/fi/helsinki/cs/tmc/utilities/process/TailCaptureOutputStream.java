@@ -0,0 +1,89 @@
+package fi.helsinki.cs.tmc.utilities.process;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Keeps only the last <code>capacity</code> bytes written to it.
+ */
+public class TailCaptureOutputStream extends OutputStream {
+    private final byte[] buf;
+    private int start; // Index of the oldest byte
+    private int size;
+    private long totalBytes;
+
+    public TailCaptureOutputStream(int capacity) {
+        this.buf = new byte[capacity];
+        this.start = 0;
+        this.size = 0;
+        this.totalBytes = 0;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        totalBytes++;
+        if (buf.length == 0) {
+            return;
+        }
+        int end = (start + size) % buf.length;
+        buf[end] = (byte)b;
+        if (size < buf.length) {
+            size++;
+        } else {
+            start = (start + 1) % buf.length;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        totalBytes += len;
+        if (len >= buf.length) {
+            // Only the end of the input fits
+            System.arraycopy(b, off + len - buf.length, buf, 0, buf.length);
+            start = 0;
+            size = buf.length;
+            return;
+        }
+        
+        int end = (start + size) % buf.length;
+        int firstPart = Math.min(len, buf.length - end);
+        System.arraycopy(b, off, buf, end, firstPart);
+        System.arraycopy(b, off + firstPart, buf, 0, len - firstPart);
+        
+        int overflow = size + len - buf.length;
+        if (overflow > 0) {
+            start = (start + overflow) % buf.length;
+            size = buf.length;
+        } else {
+            size += len;
+        }
+    }
+    
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+    
+    public synchronized boolean isTruncated() {
+        return totalBytes > size;
+    }
+    
+    public synchronized byte[] toByteArray() {
+        byte[] result = new byte[size];
+        int firstPart = Math.min(size, buf.length - start);
+        System.arraycopy(buf, start, result, 0, firstPart);
+        System.arraycopy(buf, 0, result, firstPart, size - firstPart);
+        return result;
+    }
+    
+    /**
+     * Returns the captured text, prefixed with a note if some of it was dropped.
+     */
+    public synchronized String toString(String charset) throws UnsupportedEncodingException {
+        String text = new String(toByteArray(), charset);
+        if (isTruncated()) {
+            return "[" + (totalBytes - size) + " bytes of earlier output omitted]\n" + text;
+        } else {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package fi.helsinki.cs.tmc.utilities.valrindmemorytest;
+
+import fi.helsinki.cs.tmc.utilities.process.ProcessResult;
+import fi.helsinki.cs.tmc.utilities.process.ProcessRunner;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds out once whether valgrind can be run.
+ *
+ * <p>
+ * The answer is kept until the IDE is restarted.
+ */
+public class ValgrindProbe {
+    private static final Logger log = Logger.getLogger(ValgrindProbe.class.getName());
+
+    private static ValgrindProbe defaultInstance;
+
+    public static synchronized ValgrindProbe getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new ValgrindProbe(new ProcessRunner(new String[] {"valgrind", "--version"}, null, null));
+        }
+        return defaultInstance;
+    }
+
+    private final Callable<ProcessResult> versionCommand;
+    private Boolean available;
+
+    /*package*/ ValgrindProbe(Callable<ProcessResult> versionCommand) {
+        this.versionCommand = versionCommand;
+    }
+
+    /**
+     * Whether valgrind is installed. Runs it the first time, so don't call from the EDT.
+     */
+    public synchronized boolean isAvailable() {
+        if (available == null) {
+            available = probe();
+        }
+        return available;
+    }
+
+    private boolean probe() {
+        try {
+            ProcessResult result = versionCommand.call();
+            if (result.statusCode == 0) {
+                log.log(Level.INFO, "Found {0}", result.output.trim());
+                return true;
+            }
+            log.log(Level.INFO, "valgrind --version exited with status {0}", result.statusCode);
+        } catch (Exception e) {
+            log.log(Level.INFO, "Valgrind not available", e);
+        }
+        return false;
+    }
+}
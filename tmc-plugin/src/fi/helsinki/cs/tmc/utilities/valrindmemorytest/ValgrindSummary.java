@@ -0,0 +1,127 @@
+package fi.helsinki.cs.tmc.utilities.valrindmemorytest;
+
+/**
+ * The figures from the summary lines of one process's valgrind output.
+ * 
+ * <p>
+ * Lines are fed in one at a time as the log is read. Values not seen are -1.
+ */
+public class ValgrindSummary {
+    private static final String ERROR_SUMMARY = "ERROR SUMMARY:";
+    private static final String DEFINITELY_LOST = "definitely lost:";
+    private static final String INDIRECTLY_LOST = "indirectly lost:";
+    private static final String HEAP_USAGE = "total heap usage:";
+    
+    private long errors = -1;
+    private long definitelyLostBytes = -1;
+    private long indirectlyLostBytes = -1;
+    private long allocs = -1;
+    private long frees = -1;
+    private long bytesAllocated = -1;
+    
+    /**
+     * Builds a summary from a whole trace.
+     */
+    public static ValgrindSummary parse(String trace) {
+        ValgrindSummary summary = new ValgrindSummary();
+        int start = 0;
+        while (start < trace.length()) {
+            int end = trace.indexOf('\n', start);
+            if (end == -1) {
+                end = trace.length();
+            }
+            summary.addLine(trace.substring(start, end));
+            start = end + 1;
+        }
+        return summary;
+    }
+    
+    /**
+     * Takes the figures from the line if it's a summary line. Later lines override earlier ones.
+     * 
+     * @return Whether the line was a summary line.
+     */
+    public boolean addLine(String line) {
+        int i;
+        if ((i = line.indexOf(ERROR_SUMMARY)) != -1) {
+            long[] numbers = readNumbers(line, i + ERROR_SUMMARY.length(), 1);
+            if (numbers != null) {
+                errors = numbers[0];
+                return true;
+            }
+        } else if ((i = line.indexOf(DEFINITELY_LOST)) != -1) {
+            long[] numbers = readNumbers(line, i + DEFINITELY_LOST.length(), 1);
+            if (numbers != null) {
+                definitelyLostBytes = numbers[0];
+                return true;
+            }
+        } else if ((i = line.indexOf(INDIRECTLY_LOST)) != -1) {
+            long[] numbers = readNumbers(line, i + INDIRECTLY_LOST.length(), 1);
+            if (numbers != null) {
+                indirectlyLostBytes = numbers[0];
+                return true;
+            }
+        } else if ((i = line.indexOf(HEAP_USAGE)) != -1) {
+            long[] numbers = readNumbers(line, i + HEAP_USAGE.length(), 3);
+            if (numbers != null) {
+                allocs = numbers[0];
+                frees = numbers[1];
+                bytesAllocated = numbers[2];
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reads the next <code>count</code> numbers, which may have ',' as a thousands separator.
+     */
+    private static long[] readNumbers(String line, int from, int count) {
+        long[] result = new long[count];
+        int i = from;
+        for (int n = 0; n < count; ++n) {
+            while (i < line.length() && !Character.isDigit(line.charAt(i))) {
+                i++;
+            }
+            if (i == line.length()) {
+                return null;
+            }
+            long value = 0;
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                } else if (c != ',') {
+                    break;
+                }
+                i++;
+            }
+            result[n] = value;
+        }
+        return result;
+    }
+    
+    public long getErrors() {
+        return errors;
+    }
+    
+    public long getDefinitelyLostBytes() {
+        return definitelyLostBytes;
+    }
+    
+    public long getIndirectlyLostBytes() {
+        return indirectlyLostBytes;
+    }
+    
+    public long getAllocs() {
+        return allocs;
+    }
+    
+    public long getFrees() {
+        return frees;
+    }
+    
+    public long getBytesAllocated() {
+        return bytesAllocated;
+    }
+}
@@ -0,0 +1,85 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the CRC32 of files we've written or verified, so that
+ * unchanged files need not be read again.
+ * 
+ * <p>
+ * An entry is only trusted while the file's length and modification time
+ * are the same as when the entry was recorded. Like git's "racily clean"
+ * index entries, an entry recorded within {@link #RACY_WINDOW_MILLIS} of
+ * the file's modification time is not trusted at all, since the file may
+ * have changed again without its timestamp changing.
+ */
+class FileCrcIndex {
+    private static final FileCrcIndex defaultInstance = new FileCrcIndex();
+    
+    /**
+     * Covers the timestamp resolution of common file systems (2s on FAT).
+     */
+    public static final long RACY_WINDOW_MILLIS = 2000;
+    
+    public static FileCrcIndex getDefault() {
+        return defaultInstance;
+    }
+    
+    private static class Entry {
+        public final long length;
+        public final long lastModified;
+        public final long crc;
+        public final long recordedAt;
+
+        public Entry(long length, long lastModified, long crc, long recordedAt) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.crc = crc;
+            this.recordedAt = recordedAt;
+        }
+        
+        public boolean isRacy() {
+            return recordedAt - lastModified < RACY_WINDOW_MILLIS;
+        }
+    }
+    
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    
+    /**
+     * Returns true if the file is known to have the given length and CRC.
+     */
+    public boolean matches(File file, long length, long crc) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(file.getAbsolutePath());
+        }
+        return entry != null &&
+                !entry.isRacy() &&
+                entry.length == length &&
+                entry.crc == crc &&
+                file.length() == length &&
+                file.lastModified() == entry.lastModified;
+    }
+    
+    /**
+     * Records the CRC of the file as it currently is on disk.
+     * 
+     * <p>
+     * Recording it again after verifying the contents later
+     * makes an entry that was racy trusted.
+     */
+    public void put(File file, long crc) {
+        Entry entry = new Entry(file.length(), file.lastModified(), crc, System.currentTimeMillis());
+        synchronized (entries) {
+            entries.put(file.getAbsolutePath(), entry);
+        }
+    }
+    
+    public void remove(File file) {
+        synchronized (entries) {
+            entries.remove(file.getAbsolutePath());
+        }
+    }
+}
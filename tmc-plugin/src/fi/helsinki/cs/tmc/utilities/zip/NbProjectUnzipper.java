@@ -1,5 +1,7 @@
 package fi.helsinki.cs.tmc.utilities.zip;
 
+import fi.helsinki.cs.tmc.utilities.HashUtils;
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -8,12 +10,31 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -117,7 +138,30 @@ public class NbProjectUnzipper {
         }
     };
     
+    private static final int EXTRACTION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService extractionPool = createExtractionPool();
+    
+    private static ExecutorService createExtractionPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                EXTRACTION_THREADS,
+                EXTRACTION_THREADS,
+                5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NbProjectUnzipper-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+    
     private OverwritingDecider overwriting;
+    private FileCrcIndex crcIndex;
 
     
     public NbProjectUnzipper() {
@@ -125,7 +169,12 @@ public class NbProjectUnzipper {
     }
     
     public NbProjectUnzipper(OverwritingDecider overwriting) {
+        this(overwriting, FileCrcIndex.getDefault());
+    }
+    
+    /*package*/ NbProjectUnzipper(OverwritingDecider overwriting, FileCrcIndex crcIndex) {
         this.overwriting = overwriting;
+        this.crcIndex = crcIndex;
     }
     
     public Result unzipProject(byte[] data, File projectDir) throws IOException {
@@ -133,17 +182,44 @@ public class NbProjectUnzipper {
     }
     
     public Result unzipProject(byte[] data, File projectDir, boolean reallyWriteFiles) throws IOException {
+        // ZipFile gives us random access to the entries but needs a real file.
+        File tempFile = File.createTempFile("tmc-project", ".zip");
+        try {
+            FileUtils.writeByteArrayToFile(tempFile, data);
+            return unzipProject(tempFile, projectDir, reallyWriteFiles);
+        } finally {
+            tempFile.delete();
+        }
+    }
+    
+    public Result unzipProject(File zip, File projectDir, boolean reallyWriteFiles) throws IOException {
+        long startTime = System.nanoTime();
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            Result result = unzipProject(zipFile, projectDir, reallyWriteFiles);
+            Metrics metrics = Metrics.getDefault();
+            metrics.recordSince("zip.unzip-project", startTime);
+            metrics.counter("zip.unzipped-files").add(result.newFiles.size() + result.overwrittenFiles.size());
+            return result;
+        } finally {
+            zipFile.close();
+        }
+    }
+    
+    private Result unzipProject(ZipFile zipFile, File projectDir, boolean reallyWriteFiles) throws IOException {
         Result result = new Result(projectDir);
         Set<String> pathsInZip = new HashSet<String>();
         
-        String projectDirInZip = findProjectDirInZip(data);
+        String projectDirInZip = findProjectDirInZip(zipFile);
         if (projectDirInZip == null) {
             throw new IllegalArgumentException("No project directory in zip");
         }
         
-        ZipInputStream zis = readZip(data);
-        ZipEntry zent;
-        while ((zent = zis.getNextEntry()) != null) {
+        List<FileToExtract> files = new ArrayList<FileToExtract>();
+        Set<File> dirs = new LinkedHashSet<File>();
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry zent = entries.nextElement();
             if (zent.getName().startsWith(projectDirInZip)) {
                 String restOfPath = zent.getName().substring(projectDirInZip.length());
                 restOfPath = trimSlashes(restOfPath);
@@ -155,60 +231,333 @@ public class NbProjectUnzipper {
                         );
                 
                 if (zent.isDirectory()) {
-                    if (reallyWriteFiles) {
-                        FileUtils.forceMkdir(destFile);
-                    }
+                    dirs.add(destFile);
                 } else {
-                    byte[] entryData = IOUtils.toByteArray(zis);
-
-                    boolean shouldWrite;
-                    if (destFile.exists()) {
-                        if (fileContentEquals(destFile, entryData)) {
-                            shouldWrite = false;
-                            result.unchangedFiles.add(destFileRelativePath);
-                        } else if (overwriting.mayOverwrite(destFileRelativePath)) {
-                            shouldWrite = true;
-                            result.overwrittenFiles.add(destFileRelativePath);
-                        } else {
-                            shouldWrite = false;
-                            result.skippedFiles.add(destFileRelativePath);
+                    dirs.add(destFile.getParentFile());
+                    files.add(new FileToExtract(zent, destFileRelativePath, destFile));
+                }
+            }
+        }
+        
+        if (reallyWriteFiles) {
+            for (File dir : dirs) {
+                FileUtils.forceMkdir(dir);
+            }
+        }
+        
+        // Compare against existing files and extract new ones in parallel.
+        List<Callable<Void>> checkTasks = new ArrayList<Callable<Void>>(files.size());
+        for (FileToExtract file : files) {
+            checkTasks.add(new CheckingTask(zipFile, file, reallyWriteFiles));
+        }
+        runInParallel(checkTasks);
+        
+        // Consult the OverwritingDecider in this thread, in zip order.
+        List<Callable<Void>> overwriteTasks = new ArrayList<Callable<Void>>();
+        for (FileToExtract file : files) {
+            switch (file.status) {
+                case NEW:
+                    result.newFiles.add(file.relPath);
+                    break;
+                case UNCHANGED:
+                    result.unchangedFiles.add(file.relPath);
+                    break;
+                case CHANGED:
+                    if (overwriting.mayOverwrite(file.relPath)) {
+                        result.overwrittenFiles.add(file.relPath);
+                        if (reallyWriteFiles) {
+                            overwriteTasks.add(new ExtractingTask(zipFile, file));
                         }
                     } else {
-                        shouldWrite = true;
-                        result.newFiles.add(destFileRelativePath);
-                    }
-                    if (shouldWrite && reallyWriteFiles) {
-                        FileUtils.forceMkdir(destFile.getParentFile());
-                        OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
-                        IOUtils.write(entryData, out);
-                        out.close();
+                        result.skippedFiles.add(file.relPath);
                     }
-                }
+                    break;
+                default:
+                    throw new IllegalStateException("Unchecked zip entry: " + file.relPath);
             }
         }
+        runInParallel(overwriteTasks);
         
         deleteFilesNotInZip(projectDir, projectDir, result, pathsInZip, overwriting, reallyWriteFiles);
         
         return result;
     }
     
-    private void deleteFilesNotInZip(File projectDir, File curDir, Result result, Set<String> pathsInZip, OverwritingDecider overwriting, boolean reallyWriteFiles) throws IOException {
-        for (File file : curDir.listFiles()) {
+    private static enum FileStatus { NEW, UNCHANGED, CHANGED }
+    
+    private static class FileToExtract {
+        public final ZipEntry entry;
+        public final String relPath;
+        public final File destFile;
+        public FileStatus status; // Set by a CheckingTask
+        
+        public FileToExtract(ZipEntry entry, String relPath, File destFile) {
+            this.entry = entry;
+            this.relPath = relPath;
+            this.destFile = destFile;
+        }
+    }
+    
+    private class CheckingTask implements Callable<Void> {
+        private final ZipFile zipFile;
+        private final FileToExtract file;
+        private final boolean reallyWriteFiles;
+
+        public CheckingTask(ZipFile zipFile, FileToExtract file, boolean reallyWriteFiles) {
+            this.zipFile = zipFile;
+            this.file = file;
+            this.reallyWriteFiles = reallyWriteFiles;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (!file.destFile.exists()) {
+                file.status = FileStatus.NEW;
+                if (reallyWriteFiles) {
+                    extract(zipFile, file);
+                }
+            } else if (entryContentEquals(zipFile, file.entry, file.destFile)) {
+                file.status = FileStatus.UNCHANGED;
+            } else {
+                file.status = FileStatus.CHANGED;
+            }
+            return null;
+        }
+    }
+    
+    private class ExtractingTask implements Callable<Void> {
+        private final ZipFile zipFile;
+        private final FileToExtract file;
+
+        public ExtractingTask(ZipFile zipFile, FileToExtract file) {
+            this.zipFile = zipFile;
+            this.file = file;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            extract(zipFile, file);
+            return null;
+        }
+    }
+    
+    private void extract(ZipFile zipFile, FileToExtract file) throws IOException {
+        InputStream in = zipFile.getInputStream(file.entry);
+        try {
+            streamToFile(in, file.destFile);
+        } finally {
+            in.close();
+        }
+    }
+    
+    private boolean entryContentEquals(ZipFile zipFile, ZipEntry entry, File file) throws IOException {
+        if (file.length() != entry.getSize()) {
+            return false;
+        }
+        if (entry.getCrc() >= 0 && crcIndex.matches(file, entry.getSize(), entry.getCrc())) {
+            return true;
+        }
+        
+        InputStream fileIs = new BufferedInputStream(new FileInputStream(file));
+        CheckedInputStream entryIs = new CheckedInputStream(zipFile.getInputStream(entry), new CRC32());
+        boolean eq;
+        try {
+            eq = IOUtils.contentEquals(fileIs, entryIs);
+        } finally {
+            fileIs.close();
+            entryIs.close();
+        }
+        if (eq) {
+            crcIndex.put(file, entryIs.getChecksum().getValue());
+        }
+        return eq;
+    }
+    
+    private void runInParallel(List<Callable<Void>> tasks) throws IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        
+        List<Future<Void>> futures;
+        try {
+            futures = extractionPool.invokeAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting project");
+        }
+        
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while extracting project");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IOException(cause);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies a set of file changes to an existing project directory.
+     * 
+     * <p>
+     * Used for updates where only the changed files were downloaded.
+     * The {@code OverwritingDecider} is consulted exactly as in {@link #unzipProject}.
+     * Paths are relative to the project directory and use '/' as the separator.
+     * If any path points outside the project directory, nothing is changed.
+     */
+    public Result applyFileChanges(Map<String, byte[]> changedFiles, Collection<String> removedFiles, File projectDir) throws IOException {
+        Result result = new Result(projectDir);
+        
+        for (String path : changedFiles.keySet()) {
+            checkInsideProject(projectDir, path);
+        }
+        for (String path : removedFiles) {
+            checkInsideProject(projectDir, path);
+        }
+        
+        for (Map.Entry<String, byte[]> change : changedFiles.entrySet()) {
+            String relPath = trimSlashes(change.getKey().replace("/", File.separator));
+            File destFile = new File(projectDir, relPath);
+            writeFile(result, destFile, relPath, change.getValue(), true);
+        }
+        
+        for (String removed : removedFiles) {
+            String relPath = trimSlashes(removed.replace("/", File.separator));
+            File file = new File(projectDir, relPath);
+            if (!file.isFile()) {
+                continue;
+            }
+            if (overwriting.mayDelete(relPath)) {
+                file.delete();
+                crcIndex.remove(file);
+                result.deletedFiles.add(relPath);
+            } else {
+                result.skippedDeletingFiles.add(relPath);
+            }
+        }
+        
+        return result;
+    }
+    
+    // The paths come from the server and mustn't be trusted to stay inside the project
+    private void checkInsideProject(File projectDir, String path) throws IOException {
+        String relPath = trimSlashes(path.replace("/", File.separator));
+        String dirPath = projectDir.getCanonicalPath() + File.separator;
+        if (relPath.isEmpty()
+                || new File(relPath).isAbsolute()
+                || Arrays.asList(path.split("[/\\\\]")).contains("..")
+                || !new File(projectDir, relPath).getCanonicalPath().startsWith(dirPath)) {
+            throw new IOException("File path outside the project directory: " + path);
+        }
+    }
+    
+    /**
+     * Returns the SHA-1 hashes of the files of the project in the zip.
+     * 
+     * <p>
+     * The keys are paths relative to the project directory with '/' as the separator.
+     */
+    public Map<String, String> computeFileHashes(byte[] data) throws IOException {
+        String projectDirInZip = findProjectDirInZip(data);
+        if (projectDirInZip == null) {
+            throw new IllegalArgumentException("No project directory in zip");
+        }
+        
+        Map<String, String> result = new HashMap<String, String>();
+        ZipInputStream zis = readZip(data);
+        ZipEntry zent;
+        while ((zent = zis.getNextEntry()) != null) {
+            if (!zent.isDirectory() && zent.getName().startsWith(projectDirInZip)) {
+                String relPath = trimSlashes(zent.getName().substring(projectDirInZip.length()));
+                result.put(relPath, HashUtils.sha1Hex(IOUtils.toByteArray(zis)));
+            }
+        }
+        return result;
+    }
+    
+    private void writeFile(Result result, File destFile, String destFileRelativePath, byte[] entryData, boolean reallyWriteFiles) throws IOException {
+        boolean shouldWrite;
+        if (destFile.exists()) {
+            if (fileContentEquals(destFile, entryData)) {
+                shouldWrite = false;
+                result.unchangedFiles.add(destFileRelativePath);
+            } else if (overwriting.mayOverwrite(destFileRelativePath)) {
+                shouldWrite = true;
+                result.overwrittenFiles.add(destFileRelativePath);
+            } else {
+                shouldWrite = false;
+                result.skippedFiles.add(destFileRelativePath);
+            }
+        } else {
+            shouldWrite = true;
+            result.newFiles.add(destFileRelativePath);
+        }
+        if (shouldWrite && reallyWriteFiles) {
+            FileUtils.forceMkdir(destFile.getParentFile());
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
+            try {
+                IOUtils.write(entryData, out);
+            } finally {
+                out.close();
+            }
+            crcIndex.put(destFile, crc32(entryData));
+        }
+    }
+    
+    private void streamToFile(InputStream in, File destFile) throws IOException {
+        FileUtils.forceMkdir(destFile.getParentFile());
+        CheckedInputStream checkedIn = new CheckedInputStream(in, new CRC32());
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
+        try {
+            IOUtils.copy(checkedIn, out);
+        } finally {
+            out.close();
+        }
+        crcIndex.put(destFile, checkedIn.getChecksum().getValue());
+    }
+    
+    /**
+     * Returns whether {@code curDir} still has contents afterwards.
+     * In a dry run nothing is deleted, so a non-empty directory is never
+     * reported as deleted.
+     */
+    private boolean deleteFilesNotInZip(File projectDir, File curDir, Result result, Set<String> pathsInZip, OverwritingDecider overwriting, boolean reallyWriteFiles) throws IOException {
+        File[] children = curDir.listFiles();
+        if (children == null) {
+            return false;
+        }
+        
+        int remaining = children.length;
+        for (File file : children) {
             String relPath = file.getPath().substring(projectDir.getPath().length());
             relPath = trimSlashes(relPath);
             
-            if (file.isDirectory()) {
-                deleteFilesNotInZip(projectDir, file, result, pathsInZip, overwriting, reallyWriteFiles);
+            boolean isDirectory = file.isDirectory();
+            boolean hasContents = false;
+            if (isDirectory) {
+                hasContents = deleteFilesNotInZip(projectDir, file, result, pathsInZip, overwriting, reallyWriteFiles);
             }
             
             if (!pathsInZip.contains(relPath)) {
                 if (overwriting.mayDelete(relPath)) {
-                    if (file.isDirectory() && file.listFiles().length > 0) {
+                    if (isDirectory && hasContents) {
                         // Won't delete directories if they still have contents
                         result.skippedDeletingFiles.add(relPath);
                     } else {
                         if (reallyWriteFiles) {
-                            file.delete();
+                            if (file.delete()) {
+                                remaining--;
+                            }
+                            crcIndex.remove(file);
                         }
                         result.deletedFiles.add(relPath);
                     }
@@ -217,6 +566,7 @@ public class NbProjectUnzipper {
                 }
             }
         }
+        return remaining > 0;
     }
     
     private String trimSlashes(String s) {
@@ -229,18 +579,32 @@ public class NbProjectUnzipper {
         return s;
     }
     
+    private String findProjectDirInZip(ZipFile zipFile) {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (isProjectMarker(name)) {
+                return dirname(name);
+            }
+        }
+        return null;
+    }
+    
     private String findProjectDirInZip(byte[] data) throws IOException {
         ZipInputStream zis = readZip(data);
         ZipEntry zent;
         while ((zent = zis.getNextEntry()) != null) {
-            String name = zent.getName();
-            if (name.endsWith("/nbproject/") || name.endsWith("/pom.xml") || name.endsWith(".universal/")) {
+            if (isProjectMarker(zent.getName())) {
                 return dirname(zent.getName());
             }
         }
         return null;
     }
     
+    private boolean isProjectMarker(String name) {
+        return name.endsWith("/nbproject/") || name.endsWith("/pom.xml") || name.endsWith(".universal/");
+    }
+    
     private String dirname(String zipPath) {
         while (zipPath.endsWith("/")) {
             zipPath = zipPath.substring(0, zipPath.length() - 1);
@@ -253,11 +617,32 @@ public class NbProjectUnzipper {
     }
     
     private boolean fileContentEquals(File file, byte[] data) throws IOException {
+        if (file.length() != data.length) {
+            return false;
+        }
+        
+        long crc = crc32(data);
+        if (crcIndex.matches(file, data.length, crc)) {
+            return true;
+        }
+        
         InputStream fileIs = new BufferedInputStream(new FileInputStream(file));
         InputStream dataIs = new ByteArrayInputStream(data);
-        boolean eq = IOUtils.contentEquals(fileIs, dataIs);
-        fileIs.close();
-        dataIs.close();
+        boolean eq;
+        try {
+            eq = IOUtils.contentEquals(fileIs, dataIs);
+        } finally {
+            fileIs.close();
+        }
+        if (eq) {
+            crcIndex.put(file, crc);
+        }
         return eq;
     }
+    
+    private long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
 }
@@ -1,5 +1,6 @@
 package fi.helsinki.cs.tmc.utilities.zip;
 
+import fi.helsinki.cs.tmc.utilities.metrics.Metrics;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -43,6 +44,7 @@ public class RecursiveZipper {
             throw new FileNotFoundException("Root directory " + rootDir + " not found for zipping!");
         }
         
+        long startTime = System.nanoTime();
         ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
         ZipOutputStream zos = new ZipOutputStream(zipBuffer);
         
@@ -52,6 +54,9 @@ public class RecursiveZipper {
             zos.close();
         }
 
+        Metrics metrics = Metrics.getDefault();
+        metrics.recordSince("zip.zip-project", startTime);
+        metrics.counter("zip.zipped-bytes").add(zipBuffer.size());
         return zipBuffer.toByteArray();
     }
 
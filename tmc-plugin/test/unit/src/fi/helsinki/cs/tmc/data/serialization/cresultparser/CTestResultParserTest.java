@@ -344,6 +344,53 @@ public class CTestResultParserTest {
         assertTrue("Third test should not fail using excess memory", results.get(2).isSuccessful());
     }
     
+    @Test
+    public void testValgrindOutputOfInterleavedProcesses() throws Exception {
+        File ttmp = constructTestOutput(oneOfEachTest);
+        File vtmp = mkTempFile("valgrind", ".log");
+        PrintWriter pw = new PrintWriter(vtmp);
+        pw.println("==10== Main process");
+        pw.println("==20== first");
+        pw.println("==30== second");
+        pw.println("--20-- first again");
+        pw.println("==10== Main again");
+        pw.println("==30== second again");
+        pw.close();
+        
+        CTestResultParser cpar = new CTestResultParser(ttmp, vtmp, null);
+        cpar.parseTestOutput();
+        vtmp.delete();
+        ttmp.delete();
+        
+        List<CTestCase> tests = cpar.getTestCases();
+        assertEquals("\n==20== first\n--20-- first again", tests.get(0).getValgrindTrace());
+        assertEquals("\n==30== second\n==30== second again", tests.get(1).getValgrindTrace());
+    }
+    
+    @Test
+    public void testNoValgrindWarningWhenValgrindRunsLater() throws Exception {
+        File ttmp = constructTestOutput(oneOfEachTest);
+        CTestResultParser cpar = new CTestResultParser(ttmp, null, null);
+        cpar.setWarnIfNoValgrind(false);
+        cpar.parseTestOutput();
+        ttmp.delete();
+        
+        for (CTestCase test : cpar.getTestCases()) {
+            assertNull(test.getValgrindTrace());
+        }
+    }
+    
+    @Test
+    public void testParsePID() {
+        assertEquals(1234, CTestResultParser.parsePID("==1234== ERROR SUMMARY"));
+        assertEquals(1234, CTestResultParser.parsePID("--1234-- warning"));
+        assertEquals(7, CTestResultParser.parsePID("==7=="));
+        assertEquals(-1, CTestResultParser.parsePID("Some crap that should be ignored"));
+        assertEquals(-1, CTestResultParser.parsePID(""));
+        assertEquals(-1, CTestResultParser.parsePID("==== nothing"));
+        assertEquals(-1, CTestResultParser.parsePID("==99999999999== too big"));
+    }
+    
     public File constructMemoryTestOutput(ArrayList<CTestCase> testCases) throws IOException {
         File tmp = mkTempFile("test_memory", ".txt");
         PrintWriter pw = new PrintWriter(tmp, "UTF-8");
@@ -0,0 +1,197 @@
+package fi.helsinki.cs.tmc.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TmcEventBusTest {
+    
+    public static class FooEvent implements TmcEvent {}
+    public static class BarEvent implements TmcEvent {}
+    public static class CountEvent implements CoalescableEvent<CountEvent> {
+        public final int count;
+        public CountEvent(int count) {
+            this.count = count;
+        }
+        @Override
+        public CountEvent mergeWith(CountEvent later) {
+            return new CountEvent(this.count + later.count);
+        }
+    }
+    
+    private TmcEventBus bus;
+    private List<String> received;
+    
+    @Before
+    public void setUp() {
+        bus = TmcEventBus.createNewInstance();
+        received = new ArrayList<String>();
+    }
+    
+    @Test
+    public void itShouldOnlyDeliverEventsToListenersThatHandleThem() {
+        TmcEventListener fooListener = new TmcEventListener() {
+            public void receive(FooEvent e) {
+                received.add("foo");
+            }
+        };
+        TmcEventListener barListener = new TmcEventListener() {
+            public void receive(BarEvent e) {
+                received.add("bar");
+            }
+        };
+        bus.subscribeStrongly(fooListener);
+        bus.subscribeStrongly(barListener);
+        
+        assertTrue(fooListener.handles(FooEvent.class));
+        assertFalse(fooListener.handles(BarEvent.class));
+        
+        bus.post(new FooEvent());
+        bus.post(new BarEvent());
+        bus.post(new FooEvent());
+        
+        assertEquals(3, received.size());
+        assertEquals("foo", received.get(0));
+        assertEquals("bar", received.get(1));
+        assertEquals("foo", received.get(2));
+    }
+    
+    @Test
+    public void itShouldDeliverAllEventsToListenersThatOverrideTheGenericReceiveMethod() {
+        bus.subscribeStrongly(new TmcEventListener() {
+            @Override
+            public void receive(TmcEvent e) {
+                received.add(e.getClass().getSimpleName());
+            }
+        });
+        
+        bus.post(new FooEvent());
+        bus.post(new BarEvent());
+        
+        assertEquals(2, received.size());
+    }
+    
+    @Test
+    public void itShouldNotDeliverToUnsubscribedListeners() {
+        TmcEventListener listener = new TmcEventListener() {
+            public void receive(FooEvent e) {
+                received.add("foo");
+            }
+        };
+        bus.subscribeWeakly(listener);
+        bus.post(new FooEvent());
+        bus.unsubscribe(listener);
+        bus.post(new FooEvent());
+        
+        assertEquals(1, received.size());
+    }
+    
+    @Test
+    public void itCanDeliverEventsInTheBackground() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Thread postingThread = Thread.currentThread();
+        final Thread[] receivingThread = new Thread[1];
+        bus.subscribeStrongly(new TmcEventListener() {
+            public void receive(FooEvent e) {
+                receivingThread[0] = Thread.currentThread();
+                latch.countDown();
+            }
+
+            @Override
+            public Delivery getDelivery() {
+                return Delivery.BACKGROUND;
+            }
+        });
+        
+        bus.post(new FooEvent());
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotSame(postingThread, receivingThread[0]);
+    }
+    
+    @Test
+    public void itShouldRecordListenerStatistics() {
+        TmcEventListener listener = new TmcEventListener() {
+            public void receive(FooEvent e) {
+            }
+        };
+        bus.subscribeDependent(listener, this);
+        bus.post(new FooEvent());
+        bus.post(new FooEvent());
+        
+        TmcEventBus.ListenerStats stats = bus.getListenerStats().get(listener.getClass().getName());
+        assertNotNull(stats);
+        assertEquals(2, stats.getCount());
+    }
+    
+    @Test
+    public void itShouldAllowSubscribingDuringPost() {
+        final TmcEventListener lateListener = new TmcEventListener() {
+            public void receive(FooEvent e) {
+                received.add("late");
+            }
+        };
+        bus.subscribeStrongly(new TmcEventListener() {
+            public void receive(FooEvent e) {
+                received.add("early");
+                bus.subscribeStrongly(lateListener);
+                bus.unsubscribe(this);
+            }
+        });
+        
+        bus.post(new FooEvent());
+        bus.post(new FooEvent());
+        
+        assertEquals(2, received.size());
+        assertEquals("early", received.get(0));
+        assertEquals("late", received.get(1));
+    }
+    
+    @Test
+    public void itShouldRemoveCollectedWeakListenersWithoutWaitingForAPost() throws InterruptedException {
+        bus.subscribeWeakly(new TmcEventListener() {
+            public void receive(FooEvent e) {
+            }
+        });
+        bus.subscribeDependent(new TmcEventListener() {
+            public void receive(FooEvent e) {
+            }
+        }, new Object());
+        
+        for (int i = 0; i < 50 && bus.getListenerCount() > 0; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertEquals(0, bus.getListenerCount());
+    }
+    
+    @Test
+    public void itShouldCoalesceEventsWithinTheListenersWindow() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        bus.subscribeStrongly(new TmcEventListener() {
+            public void receive(CountEvent e) {
+                received.add("count " + e.count);
+                latch.countDown();
+            }
+            
+            @Override
+            public long getCoalescingWindowMillis(Class<? extends TmcEvent> eventType) {
+                return 200;
+            }
+        });
+        
+        bus.post(new CountEvent(1));
+        bus.post(new CountEvent(2));
+        bus.post(new CountEvent(3));
+        assertTrue(received.isEmpty());
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals(1, received.size());
+        assertEquals("count 6", received.get(0));
+    }
+}
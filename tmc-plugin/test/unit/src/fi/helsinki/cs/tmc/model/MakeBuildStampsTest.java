@@ -0,0 +1,109 @@
+package fi.helsinki.cs.tmc.model;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MakeBuildStampsTest {
+    
+    private File projectDir;
+    private File output;
+    private ConfigFile file;
+    private MakeBuildStamps stamps;
+    
+    @Before
+    public void setUp() throws IOException {
+        projectDir = File.createTempFile("MakeBuildStampsTest", ".dir");
+        projectDir.delete();
+        projectDir.mkdir();
+        write("Makefile", "test:\n");
+        write("src/lib.c", "int f() { return 1; }");
+        write("src/lib.h", "int f();");
+        write("test/test.c", "int main() { return 0; }");
+        output = write("test/test", "binary");
+        
+        file = new ConfigFile("MakeBuildStampsTest.json");
+        stamps = new MakeBuildStamps(file);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        file.getFileObject().delete();
+        FileUtils.deleteDirectory(projectDir);
+    }
+    
+    private File write(String path, String content) throws IOException {
+        File f = new File(projectDir, path);
+        FileUtils.write(f, content, "UTF-8");
+        return f;
+    }
+    
+    @Test
+    public void itShouldNotBeUpToDateBeforeTheFirstBuild() throws IOException {
+        assertFalse(stamps.isUpToDate(projectDir, stamps.hashSources(projectDir), output));
+    }
+    
+    @Test
+    public void itShouldBeUpToDateAfterABuildWithTheSameSources() throws IOException {
+        stamps.markBuilt(projectDir, stamps.hashSources(projectDir), output);
+        assertTrue(stamps.isUpToDate(projectDir, stamps.hashSources(projectDir), output));
+    }
+    
+    @Test
+    public void savingWithoutChangesShouldNotMatter() throws IOException {
+        stamps.markBuilt(projectDir, stamps.hashSources(projectDir), output);
+        File source = new File(projectDir, "src/lib.c");
+        source.setLastModified(source.lastModified() + 10000);
+        assertTrue(stamps.isUpToDate(projectDir, stamps.hashSources(projectDir), output));
+    }
+    
+    @Test
+    public void changingASourceOrHeaderOrMakefileShouldRequireABuild() throws IOException {
+        String[] paths = {"src/lib.c", "src/lib.h", "Makefile"};
+        for (String path : paths) {
+            stamps.markBuilt(projectDir, stamps.hashSources(projectDir), output);
+            write(path, "changed " + path);
+            assertFalse(path, stamps.isUpToDate(projectDir, stamps.hashSources(projectDir), output));
+        }
+    }
+    
+    @Test
+    public void buildOutputsShouldNotAffectTheHash() throws IOException {
+        String hash = stamps.hashSources(projectDir);
+        write("src/lib.o", "object");
+        write("tmc_test_results.xml", "<xml/>");
+        write("valgrind.log", "log");
+        assertEquals(hash, stamps.hashSources(projectDir));
+    }
+    
+    @Test
+    public void itShouldRequireABuildIfTheOutputIsGoneOrReplaced() throws IOException {
+        stamps.markBuilt(projectDir, stamps.hashSources(projectDir), output);
+        output.setLastModified(output.lastModified() - 10000);
+        assertFalse(stamps.isUpToDate(projectDir, stamps.hashSources(projectDir), output));
+        
+        stamps.markBuilt(projectDir, stamps.hashSources(projectDir), output);
+        output.delete();
+        assertFalse(stamps.isUpToDate(projectDir, stamps.hashSources(projectDir), output));
+    }
+    
+    @Test
+    public void forgettingShouldRequireABuild() throws IOException {
+        String hash = stamps.hashSources(projectDir);
+        stamps.markBuilt(projectDir, hash, output);
+        stamps.forget(projectDir);
+        assertFalse(stamps.isUpToDate(projectDir, hash, output));
+    }
+    
+    @Test
+    public void itShouldRememberStampsAcrossInstances() throws IOException {
+        String hash = stamps.hashSources(projectDir);
+        stamps.markBuilt(projectDir, hash, output);
+        MakeBuildStamps reloaded = new MakeBuildStamps(file);
+        assertTrue(reloaded.isUpToDate(projectDir, hash, output));
+    }
+}
@@ -0,0 +1,159 @@
+package fi.helsinki.cs.tmc.model;
+
+import fi.helsinki.cs.tmc.data.Review;
+import fi.helsinki.cs.tmc.events.TmcEventBus;
+import fi.helsinki.cs.tmc.events.TmcEventListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ReviewDbTest {
+    
+    private Level oldLogLevel;
+    
+    private TmcEventBus eventBus;
+    private ConfigFile file;
+    private TmcSettings settings;
+    private List<Review> notified;
+    
+    private ReviewDb db;
+    
+    @Before
+    public void setUp() {
+        oldLogLevel = ReviewDb.logger.getLevel();
+        ReviewDb.logger.setLevel(Level.OFF);
+        
+        eventBus = TmcEventBus.createNewInstance();
+        notified = new ArrayList<Review>();
+        eventBus.subscribeStrongly(new TmcEventListener() {
+            public void receive(ReviewDb.NewUnreadReviewEvent e) {
+                notified.add(e.review);
+            }
+        });
+        file = new ConfigFile("ReviewDbTest.json");
+        settings = mock(TmcSettings.class);
+        when(settings.getUsername()).thenReturn("alice");
+        when(settings.getServerBaseUrl()).thenReturn("http://example.com");
+        db = new ReviewDb(eventBus, file, settings);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        file.getFileObject().delete();
+        ReviewDb.logger.setLevel(oldLogLevel);
+    }
+    
+    private Review review(int id, String exerciseName, boolean read) {
+        Review review = new Review();
+        review.setId(id);
+        review.setExerciseName(exerciseName);
+        review.setMarkedAsRead(read);
+        review.setUrl("http://example.com/reviews/" + id);
+        review.setCreatedAt(new Date(1000000L * id));
+        return review;
+    }
+    
+    @Test
+    public void itShouldNotifyAboutEachUnreadReviewOnce() {
+        assertTrue(db.setReviews(Arrays.asList(review(1, "ex1", false), review(2, "ex2", true))));
+        assertEquals(1, notified.size());
+        assertEquals(1, notified.get(0).getId());
+        
+        assertFalse(db.setReviews(Arrays.asList(review(1, "ex1", false), review(2, "ex2", true))));
+        assertFalse(db.notifyAboutUnreadReviews());
+        assertEquals(1, notified.size());
+    }
+    
+    @Test
+    public void forgettingNotificationsShouldNotifyAgain() {
+        db.setReviews(Arrays.asList(review(1, "ex1", false)));
+        db.forgetReviewsNotifiedAbout();
+        assertTrue(db.notifyAboutUnreadReviews());
+        assertEquals(2, notified.size());
+    }
+    
+    @Test
+    public void itShouldRememberNotificationsAcrossRestarts() {
+        db.setReviews(Arrays.asList(review(1, "ex1", false)), "http://example.com/reviews.json", "\"abc\"");
+        
+        db = new ReviewDb(eventBus, file, settings);
+        assertEquals(1, db.getReviews().size());
+        assertEquals(new Date(1000000L), db.getReviewById(1).getCreatedAt());
+        assertFalse(db.setReviews(Arrays.asList(review(1, "ex1", false))));
+        assertEquals(1, notified.size());
+    }
+    
+    @Test
+    public void itShouldPersistTheETagOfItsUrl() {
+        db.setReviews(Arrays.asList(review(1, "ex1", true)), "http://example.com/reviews.json", "\"abc\"");
+        
+        db = new ReviewDb(eventBus, file, settings);
+        assertEquals("\"abc\"", db.getReviewListETag("http://example.com/reviews.json"));
+        assertNull(db.getReviewListETag("http://example.com/other.json"));
+    }
+    
+    @Test
+    public void itShouldNotLoadTheReviewsOfAnotherUserOrServer() {
+        db.setReviews(Arrays.asList(review(1, "ex1", false)), "http://example.com/reviews.json", "\"abc\"");
+        
+        when(settings.getUsername()).thenReturn("bob");
+        db = new ReviewDb(eventBus, file, settings);
+        assertTrue(db.getReviews().isEmpty());
+        assertNull(db.getReviewListETag("http://example.com/reviews.json"));
+        
+        when(settings.getUsername()).thenReturn("alice");
+        when(settings.getServerBaseUrl()).thenReturn("http://other.example.com");
+        db = new ReviewDb(eventBus, file, settings);
+        assertTrue(db.getReviews().isEmpty());
+    }
+    
+    @Test
+    public void itShouldForgetTheReviewsWhenTheUserChanges() {
+        db.setReviews(Arrays.asList(review(1, "ex1", false)), "http://example.com/reviews.json", "\"abc\"");
+        
+        when(settings.getUsername()).thenReturn("bob");
+        assertNull(db.getReviewListETag("http://example.com/reviews.json"));
+        assertTrue(db.setReviews(Arrays.asList(review(1, "ex1", false))));
+        assertEquals(2, notified.size());
+    }
+    
+    @Test
+    public void itShouldIndexReviewsByIdAndExercise() {
+        db.setReviews(Arrays.asList(review(1, "ex1", true), review(2, "ex2", true), review(3, "ex1", false)));
+        
+        assertEquals("ex2", db.getReviewById(2).getExerciseName());
+        assertNull(db.getReviewById(4));
+        assertEquals(2, db.getReviewsForExercise("ex1").size());
+        assertTrue(db.getReviewsForExercise("ex3").isEmpty());
+        
+        db.setReviews(Arrays.asList(review(2, "ex2", true)));
+        assertNull(db.getReviewById(1));
+        assertTrue(db.getReviewsForExercise("ex1").isEmpty());
+    }
+    
+    @Test
+    public void itShouldKnowWhichReviewsHaveBeenNotifiedAbout() {
+        db.setReviews(Arrays.asList(review(1, "ex1", false)));
+        assertTrue(db.isKnownAndNotifiedAbout("ex1", "http://example.com/reviews/1"));
+        assertFalse(db.isKnownAndNotifiedAbout("ex1", "http://example.com/reviews/2"));
+        assertFalse(db.isKnownAndNotifiedAbout("ex2", "http://example.com/reviews/1"));
+    }
+    
+    @Test
+    public void markingAsReadShouldForgetTheETag() {
+        Review r = review(1, "ex1", false);
+        db.setReviews(Arrays.asList(r), "http://example.com/reviews.json", "\"abc\"");
+        db.markAsRead(review(1, "ex1", false));
+        
+        assertTrue(db.getReviewById(1).isMarkedAsRead());
+        assertNull(db.getReviewListETag("http://example.com/reviews.json"));
+    }
+}
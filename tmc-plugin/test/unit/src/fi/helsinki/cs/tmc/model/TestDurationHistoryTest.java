@@ -0,0 +1,84 @@
+package fi.helsinki.cs.tmc.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestDurationHistoryTest {
+    
+    private File projectA;
+    private File projectB;
+    private ConfigFile file;
+    private TestDurationHistory history;
+    
+    @Before
+    public void setUp() throws IOException {
+        projectA = createTempDir();
+        projectB = createTempDir();
+        file = new ConfigFile("TestDurationHistoryTest.json");
+        history = new TestDurationHistory(file);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        file.getFileObject().delete();
+        FileUtils.deleteDirectory(projectA);
+        FileUtils.deleteDirectory(projectB);
+    }
+    
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile("TestDurationHistoryTest", ".dir");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+    
+    private Map<String, Long> measured(String name, long millis) {
+        Map<String, Long> result = new HashMap<String, Long>();
+        result.put(name, millis);
+        return result;
+    }
+    
+    @Test
+    public void itShouldKeepDurationsPerProject() {
+        history.record(projectA, measured("FooTest.bar", 100L));
+        history.record(projectB, measured("FooTest.bar", 2000L));
+        
+        assertEquals(Arrays.asList(100L), history.getEstimates(projectA, Arrays.asList("FooTest.bar")));
+        assertEquals(Arrays.asList(2000L), history.getEstimates(projectB, Arrays.asList("FooTest.bar")));
+    }
+    
+    @Test
+    public void itShouldAverageWithThePreviousEstimate() {
+        history.record(projectA, measured("FooTest.bar", 100L));
+        history.record(projectA, measured("FooTest.bar", 300L));
+        
+        assertEquals(Arrays.asList(200L), history.getEstimates(projectA, Arrays.asList("FooTest.bar")));
+    }
+    
+    @Test
+    public void itShouldForgetTestsNoLongerRun() {
+        history.record(projectA, measured("FooTest.old", 100L));
+        history.record(projectA, measured("FooTest.bar", 100L));
+        
+        assertEquals(Arrays.asList((Long)null), history.getEstimates(projectA, Arrays.asList("FooTest.old")));
+    }
+    
+    @Test
+    public void itShouldForgetRemovedProjectsAndPersist() throws IOException {
+        history.record(projectA, measured("FooTest.bar", 100L));
+        FileUtils.deleteDirectory(projectA);
+        history.record(projectB, measured("FooTest.bar", 200L));
+        
+        history = new TestDurationHistory(file);
+        assertEquals(Arrays.asList((Long)null), history.getEstimates(projectA, Arrays.asList("FooTest.bar")));
+        assertEquals(Arrays.asList(200L), history.getEstimates(projectB, Arrays.asList("FooTest.bar")));
+    }
+}
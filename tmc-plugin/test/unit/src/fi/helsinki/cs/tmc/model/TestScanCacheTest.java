@@ -0,0 +1,150 @@
+package fi.helsinki.cs.tmc.model;
+
+import com.google.gson.Gson;
+import fi.helsinki.cs.tmc.testscanner.TestMethod;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestScanCacheTest {
+    
+    /**
+     * Pretends every file declares a test method named after its first line,
+     * except that files whose first line starts with '#' have no tests.
+     */
+    private static class FakeScanner implements TestScanCache.Scanner {
+        private File testDir;
+        private List<File> scanned = new ArrayList<File>();
+        
+        @Override
+        public List<TestMethod> findTests(List<File> sources, File sourceDir, String classPath) {
+            assertEquals(testDir, sourceDir);
+            List<TestMethod> result = new ArrayList<TestMethod>();
+            for (File source : sources) {
+                scanned.add(source);
+                String path = source.getAbsolutePath().substring(testDir.getAbsolutePath().length() + 1);
+                String className = path.substring(0, path.length() - ".java".length()).replace(File.separatorChar, '.');
+                String methodName;
+                try {
+                    methodName = FileUtils.readLines(source, "UTF-8").get(0);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (!methodName.startsWith("#")) {
+                    result.add(testMethod(className, methodName));
+                }
+            }
+            return result;
+        }
+    }
+    
+    private static TestMethod testMethod(String className, String methodName) {
+        return new Gson().fromJson("{\"className\":\"" + className + "\",\"methodName\":\"" + methodName + "\"}", TestMethod.class);
+    }
+    
+    private File testDir;
+    private ConfigFile file;
+    private FakeScanner scanner;
+    private TestScanCache cache;
+    
+    @Before
+    public void setUp() throws IOException {
+        testDir = File.createTempFile("TestScanCacheTest", ".dir");
+        testDir.delete();
+        testDir.mkdir();
+        file = new ConfigFile("TestScanCacheTest.json");
+        scanner = new FakeScanner();
+        scanner.testDir = testDir;
+        cache = new TestScanCache(file, scanner);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        file.getFileObject().delete();
+        FileUtils.deleteDirectory(testDir);
+    }
+    
+    private void writeSource(String path, String firstLine) throws IOException {
+        FileUtils.write(new File(testDir, path), firstLine + "\n", "UTF-8");
+    }
+    
+    private List<String> names(List<TestMethod> tests) {
+        List<String> result = new ArrayList<String>();
+        for (TestMethod test : tests) {
+            result.add(test.className + "." + test.methodName);
+        }
+        return result;
+    }
+    
+    @Test
+    public void itShouldOnlyRescanChangedFiles() throws IOException {
+        writeSource("a/ATest.java", "one");
+        writeSource("BTest.java", "two");
+        
+        assertEquals(2, cache.findTests(testDir, "cp").size());
+        assertEquals(2, scanner.scanned.size());
+        
+        scanner.scanned.clear();
+        writeSource("BTest.java", "three");
+        List<TestMethod> tests = cache.findTests(testDir, "cp");
+        
+        assertEquals(1, scanner.scanned.size());
+        assertEquals(new File(testDir, "BTest.java"), scanner.scanned.get(0));
+        assertTrue(names(tests).contains("a.ATest.one"));
+        assertTrue(names(tests).contains("BTest.three"));
+    }
+    
+    @Test
+    public void itShouldRescanEverythingWhenTheClassPathChanges() throws IOException {
+        writeSource("ATest.java", "one");
+        cache.findTests(testDir, "cp");
+        scanner.scanned.clear();
+        
+        cache.findTests(testDir, "other-cp");
+        
+        assertEquals(1, scanner.scanned.size());
+    }
+    
+    @Test
+    public void itShouldForgetRemovedFiles() throws IOException {
+        writeSource("ATest.java", "one");
+        writeSource("BTest.java", "two");
+        cache.findTests(testDir, "cp");
+        
+        new File(testDir, "BTest.java").delete();
+        
+        assertEquals(1, cache.findTests(testDir, "cp").size());
+    }
+    
+    @Test
+    public void itShouldNotRememberScansThatFoundNoTestsInATestFile() throws IOException {
+        writeSource("ATest.java", "#failed to compile @Test");
+        writeSource("Helper.java", "#no tests here");
+        cache.findTests(testDir, "cp");
+        scanner.scanned.clear();
+        
+        cache.findTests(testDir, "cp");
+        
+        assertEquals(1, scanner.scanned.size());
+        assertEquals(new File(testDir, "ATest.java"), scanner.scanned.get(0));
+    }
+    
+    @Test
+    public void itShouldPersistTheCache() throws IOException {
+        writeSource("ATest.java", "one");
+        cache.findTests(testDir, "cp");
+        scanner.scanned.clear();
+        
+        cache = new TestScanCache(file, scanner);
+        List<TestMethod> tests = cache.findTests(testDir, "cp");
+        
+        assertTrue(scanner.scanned.isEmpty());
+        assertEquals("ATest.one", names(tests).get(0));
+    }
+}
@@ -99,4 +99,35 @@ public class TmcProjectInfoTest {
         assertTrue(zd.shouldZip("MyExercise/xoox/Zab.txt"));
         assertTrue(zd.shouldZip("MyExercise/pom.xml"));
     }
+
+    @Test
+    public void itShouldBeEqualToAnotherInfoOfTheSameProject() {
+        assertEquals(projectInfo, new TmcProjectInfo(mockProject));
+        assertEquals(projectInfo.hashCode(), new TmcProjectInfo(mockProject).hashCode());
+        assertFalse(projectInfo.equals(new TmcProjectInfo(mock(Project.class))));
+    }
+    
+    @Test
+    public void itShouldRedetectTheProjectTypeWhenAMarkerFileIsCreatedOrDeleted() throws IOException {
+        assertEquals(TmcProjectType.JAVA_SIMPLE, projectInfo.getProjectType());
+        
+        FileObject pom = projectInfo.getProjectDir().createData("pom.xml");
+        assertEquals(TmcProjectType.JAVA_MAVEN, projectInfo.getProjectType());
+        
+        pom.delete();
+        assertEquals(TmcProjectType.JAVA_SIMPLE, projectInfo.getProjectType());
+    }
+    
+    @Test
+    public void itShouldNotCacheATypeDetectedBeforeTheCacheWasInvalidated() {
+        TmcProjectInfo.ProjectTypeCache cache = new TmcProjectInfo.ProjectTypeCache(null);
+        
+        long generation = cache.getGeneration();
+        cache.invalidate(); // A marker file changed while we were detecting
+        cache.set(generation, TmcProjectType.JAVA_SIMPLE);
+        assertNull(cache.get());
+        
+        cache.set(cache.getGeneration(), TmcProjectType.JAVA_MAVEN);
+        assertEquals(TmcProjectType.JAVA_MAVEN, cache.get());
+    }
 }
@@ -0,0 +1,92 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BgTaskBatchTest {
+    
+    private List<List<String>> batches;
+    private List<Throwable> failures;
+    private int cancelledCount;
+    private boolean calledOutsideEdt;
+    private CountDownLatch finished;
+    
+    private BgTaskBatch<String> batch;
+    
+    @Before
+    public void setUp() {
+        batches = new ArrayList<List<String>>();
+        failures = new ArrayList<Throwable>();
+        cancelledCount = 0;
+        calledOutsideEdt = false;
+        finished = new CountDownLatch(1);
+        
+        batch = new BgTaskBatch<String>(200, new BatchedBgTaskListener<String>() {
+            @Override
+            public void bgTasksFinished(List<String> results, List<Throwable> newFailures, int newCancelledCount) {
+                if (!SwingUtilities.isEventDispatchThread()) {
+                    calledOutsideEdt = true;
+                }
+                batches.add(results);
+                failures.addAll(newFailures);
+                cancelledCount += newCancelledCount;
+                finished.countDown();
+            }
+        });
+    }
+    
+    @Test
+    public void itShouldDeliverTasksFinishingTogetherInOneCallInTheSwingThread() throws Exception {
+        Thread[] threads = new Thread[5];
+        for (int i = 0; i < threads.length; ++i) {
+            final String result = "result " + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    batch.bgTaskReady(result);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        waitForEdt();
+        
+        assertFalse(calledOutsideEdt);
+        assertEquals(1, batches.size());
+        assertEquals(5, batches.get(0).size());
+    }
+    
+    @Test
+    public void itShouldDeliverFailuresAndCancellationsWithResults() throws Exception {
+        Exception ex = new Exception();
+        batch.bgTaskReady("ok");
+        batch.bgTaskFailed(ex);
+        batch.bgTaskCancelled();
+        
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        waitForEdt();
+        
+        assertEquals(1, batches.size());
+        assertEquals("ok", batches.get(0).get(0));
+        assertSame(ex, failures.get(0));
+        assertEquals(1, cancelledCount);
+    }
+    
+    private void waitForEdt() throws Exception {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import fi.helsinki.cs.tmc.utilities.BgTaskScheduler.Lane;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BgTaskSchedulerTest {
+    
+    private BgTaskScheduler scheduler;
+    private CountDownLatch release;
+    
+    @Before
+    public void setUp() {
+        scheduler = new BgTaskScheduler();
+        release = new CountDownLatch(1);
+    }
+    
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+    
+    private Callable<String> blocker(final CountDownLatch started) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "blocker";
+            }
+        };
+    }
+    
+    private Callable<String> returning(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return value;
+            }
+        };
+    }
+    
+    @Test
+    public void aFullLaneShouldNotHoldUpOtherLanes() throws Exception {
+        CountDownLatch started = new CountDownLatch(Lane.BULK.getMaxThreads());
+        for (int i = 0; i < Lane.BULK.getMaxThreads(); ++i) {
+            scheduler.submit(Lane.BULK, blocker(started));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        
+        Future<String> queuedBulk = scheduler.submit(Lane.BULK, returning("bulk"));
+        Future<String> interactive = scheduler.submit(Lane.INTERACTIVE, returning("interactive"));
+        
+        assertEquals("interactive", interactive.get(5, TimeUnit.SECONDS));
+        assertFalse(queuedBulk.isDone());
+        assertEquals(1, scheduler.getLaneStats(Lane.BULK).getQueuedCount());
+        
+        release.countDown();
+        assertEquals("bulk", queuedBulk.get(5, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    public void promotedTasksShouldRunInTheInteractiveLane() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(Lane.BACKGROUND, blocker(started));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        
+        Future<String> waitedFor = scheduler.submit(Lane.BACKGROUND, returning("done"));
+        assertTrue(scheduler.promote(waitedFor));
+        assertEquals("done", waitedFor.get(5, TimeUnit.SECONDS));
+        assertFalse(scheduler.promote(waitedFor));
+        
+        assertEquals(1, scheduler.getLaneStats(Lane.INTERACTIVE).getQueueWait().getCount());
+    }
+    
+    @Test
+    public void itShouldRecordQueueWaitAndRunTimePerLane() throws Exception {
+        scheduler.submit(Lane.BULK, returning("a")).get(5, TimeUnit.SECONDS);
+        scheduler.submit(Lane.BULK, returning("b")).get(5, TimeUnit.SECONDS);
+        
+        BgTaskScheduler.LaneStats stats = scheduler.getLaneStats(Lane.BULK);
+        for (int i = 0; i < 50 && stats.getRunTime().getCount() < 2; ++i) {
+            Thread.sleep(10); // Run time is recorded just after the future completes
+        }
+        assertEquals(2, stats.getQueueWait().getCount());
+        assertEquals(2, stats.getRunTime().getCount());
+        assertEquals(0, scheduler.getLaneStats(Lane.INTERACTIVE).getRunTime().getCount());
+    }
+    
+    @Test
+    public void cancellingAQueuedTaskShouldRemoveItFromTheQueuedCount() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(Lane.BACKGROUND, blocker(started));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        
+        Future<String> queued = scheduler.submit(Lane.BACKGROUND, returning("never"));
+        assertEquals(1, scheduler.getLaneStats(Lane.BACKGROUND).getQueuedCount());
+        queued.cancel(true);
+        assertEquals(0, scheduler.getLaneStats(Lane.BACKGROUND).getQueuedCount());
+    }
+}
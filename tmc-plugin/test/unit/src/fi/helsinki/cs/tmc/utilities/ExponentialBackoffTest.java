@@ -0,0 +1,71 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExponentialBackoffTest {
+    
+    private static class FixedRandom extends Random {
+        private final double value;
+        
+        public FixedRandom(double value) {
+            this.value = value;
+        }
+        
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+    
+    @Test
+    public void delaysShouldDoubleUpToTheMaximum() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, new FixedRandom(0.999999));
+        assertEquals(100, backoff.nextDelay());
+        assertEquals(200, backoff.nextDelay());
+        assertEquals(400, backoff.nextDelay());
+        assertEquals(800, backoff.nextDelay());
+        assertEquals(1000, backoff.nextDelay());
+        assertEquals(1000, backoff.nextDelay());
+        assertEquals(6, backoff.getFailures());
+    }
+    
+    @Test
+    public void jitterShouldKeepDelaysInTheUpperHalf() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, new FixedRandom(0.0));
+        assertEquals(50, backoff.nextDelay());
+        assertEquals(100, backoff.nextDelay());
+        assertEquals(200, backoff.nextDelay());
+        
+        backoff = new ExponentialBackoff(100, 1000);
+        for (int i = 0; i < 20; ++i) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay >= 50);
+            assertTrue(delay <= 1000);
+        }
+    }
+    
+    @Test
+    public void resetShouldStartFromTheInitialDelay() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, new FixedRandom(0.999999));
+        backoff.nextDelay();
+        backoff.nextDelay();
+        backoff.reset();
+        assertEquals(0, backoff.getFailures());
+        assertEquals(100, backoff.nextDelay());
+    }
+    
+    @Test
+    public void manyFailuresShouldNotOverflow() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1, Long.MAX_VALUE, new FixedRandom(0.0));
+        for (int i = 0; i < 200; ++i) {
+            assertTrue(backoff.nextDelay() > 0);
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void maxShouldNotBeBelowInitial() {
+        new ExponentialBackoff(1000, 100);
+    }
+}
@@ -0,0 +1,96 @@
+package fi.helsinki.cs.tmc.utilities;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestShardPlannerTest {
+    
+    @Test
+    public void itShouldBalanceShardsByEstimatedDuration() {
+        List<String> tests = Arrays.asList("a", "b", "c", "d", "e");
+        List<Long> estimates = Arrays.asList(10L, 1L, 1L, 1L, 7L);
+        
+        List<List<String>> shards = TestShardPlanner.partition(tests, estimates, 2);
+        
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList("a"), shards.get(0));
+        assertEquals(Arrays.asList("b", "c", "d", "e"), shards.get(1));
+    }
+    
+    @Test
+    public void unknownEstimatesShouldCountAsAverage() {
+        List<String> tests = Arrays.asList("a", "b", "c");
+        List<Long> estimates = Arrays.asList(4L, null, 4L);
+        
+        List<List<String>> shards = TestShardPlanner.partition(tests, estimates, 3);
+        
+        assertEquals(3, shards.size());
+    }
+    
+    @Test
+    public void itShouldNotProduceEmptyShards() {
+        List<String> tests = Arrays.asList("a", "b");
+        
+        List<List<String>> shards = TestShardPlanner.partition(tests, Arrays.asList((Long)null, null), 8);
+        
+        assertEquals(2, shards.size());
+        assertEquals(1, shards.get(0).size());
+        assertEquals(1, shards.get(1).size());
+    }
+    
+    @Test
+    public void itShouldKeepGroupsInTheSameShard() {
+        List<String> tests = Arrays.asList("A.a", "B.a", "A.b", "C.a", "B.b");
+        List<String> classes = Arrays.asList("A", "B", "A", "C", "B");
+        List<Long> estimates = Arrays.asList(5L, 1L, 5L, 3L, 1L);
+        
+        List<List<String>> shards = TestShardPlanner.partitionByGroup(tests, classes, estimates, 2);
+        
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList("A.a", "A.b"), shards.get(0));
+        assertEquals(Arrays.asList("B.a", "B.b", "C.a"), shards.get(1));
+    }
+    
+    @Test
+    public void itShouldNotMakeMoreShardsThanGroups() {
+        List<String> tests = Arrays.asList("A.a", "A.b", "A.c");
+        List<String> classes = Arrays.asList("A", "A", "A");
+        
+        List<List<String>> shards = TestShardPlanner.partitionByGroup(tests, classes, Arrays.asList((Long)null, null, null), 3);
+        
+        assertEquals(1, shards.size());
+        assertEquals(tests, shards.get(0));
+    }
+    
+    @Test
+    public void shardingShouldBeOffByDefault() {
+        System.clearProperty(TestShardPlanner.SHARD_COUNT_PROPERTY);
+        assertEquals(1, TestShardPlanner.chooseShardCount(100, 8, null));
+    }
+    
+    @Test
+    public void shardCountShouldBeLimitedByCoresMemoryAndTestCount() {
+        System.setProperty(TestShardPlanner.SHARD_COUNT_PROPERTY, TestShardPlanner.AUTO_SHARD_COUNT);
+        try {
+            assertEquals(4, TestShardPlanner.chooseShardCount(100, 4, null));
+            assertEquals(2, TestShardPlanner.chooseShardCount(100, 8, 1024));
+            assertEquals(1, TestShardPlanner.chooseShardCount(5, 8, null));
+            assertEquals(1, TestShardPlanner.chooseShardCount(0, 8, null));
+        } finally {
+            System.clearProperty(TestShardPlanner.SHARD_COUNT_PROPERTY);
+        }
+    }
+    
+    @Test
+    public void aNumberShouldSetTheShardCount() {
+        System.setProperty(TestShardPlanner.SHARD_COUNT_PROPERTY, "3");
+        try {
+            assertEquals(3, TestShardPlanner.chooseShardCount(100, 8, null));
+            assertEquals(2, TestShardPlanner.chooseShardCount(2, 8, null));
+        } finally {
+            System.clearProperty(TestShardPlanner.SHARD_COUNT_PROPERTY);
+        }
+    }
+}
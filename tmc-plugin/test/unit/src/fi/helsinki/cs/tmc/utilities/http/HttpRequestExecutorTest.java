@@ -142,6 +142,35 @@ public class HttpRequestExecutorTest {
         BufferedHttpEntity result = new HttpRequestExecutor(uri.toString()).setTimeout(5000).call();
         assertEquals("Yay", EntityUtils.toString(result, "UTF-8"));
     }
+    
+    @Test
+    public void testConditionalGet() throws Exception {
+        server.setHandler(new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest req, HttpResponse res, HttpContext hc) throws HttpException, IOException {
+                Header ifNoneMatch = req.getFirstHeader("If-None-Match");
+                res.addHeader("ETag", "\"v1\"");
+                if (ifNoneMatch != null && ifNoneMatch.getValue().equals("\"v1\"")) {
+                    res.setStatusCode(304);
+                } else {
+                    res.setEntity(new StringEntity("Hello", "UTF-8"));
+                }
+            }
+        });
+        server.start();
+        
+        HttpTasks.ConditionalText first = new HttpTasks().getForTextIfChanged(server.getBaseUrl(), null).call();
+        assertTrue(first.isModified());
+        assertEquals("Hello", first.text);
+        assertEquals("\"v1\"", first.etag);
+        
+        HttpTasks.ConditionalText second = new HttpTasks().getForTextIfChanged(server.getBaseUrl(), first.etag).call();
+        assertFalse(second.isModified());
+        assertEquals("\"v1\"", second.etag);
+        
+        HttpTasks.ConditionalText third = new HttpTasks().getForTextIfChanged(server.getBaseUrl(), "\"v0\"").call();
+        assertEquals("Hello", third.text);
+    }
             
     private HttpRequestHandler oneTwoThreeHandler() {
         return new HttpRequestHandler() {
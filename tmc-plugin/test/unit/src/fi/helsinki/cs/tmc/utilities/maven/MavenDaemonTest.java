@@ -0,0 +1,151 @@
+package fi.helsinki.cs.tmc.utilities.maven;
+
+import fi.helsinki.cs.tmc.maven.wrapper.MavenDaemonProtocol;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MavenDaemonTest {
+    
+    /**
+     * Speaks the daemon protocol without Maven.
+     * Echoes the arguments to stdout and the work dir to stderr
+     * and exits with the argument count. If the first argument is "hang",
+     * it writes a stdout frame and then hangs.
+     */
+    public static class FakeDaemonMain {
+        public static void main(String[] args) throws Exception {
+            BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+            String token = stdin.readLine();
+            ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            System.out.println("some noise");
+            System.out.println(MavenDaemonProtocol.LISTENING_PREFIX + server.getLocalPort());
+            System.out.flush();
+            
+            while (true) {
+                Socket socket = server.accept();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                if (!token.equals(in.readUTF())) {
+                    socket.close();
+                    continue;
+                }
+                String workDir = in.readUTF();
+                int n = in.readInt();
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < n; ++i) {
+                    String arg = in.readUTF();
+                    if (i == 0 && arg.equals("hang")) {
+                        byte[] started = "hanging".getBytes("UTF-8");
+                        out.writeByte(MavenDaemonProtocol.FRAME_STDOUT);
+                        out.writeInt(started.length);
+                        out.write(started);
+                        out.flush();
+                        Thread.sleep(Long.MAX_VALUE);
+                    }
+                    sb.append(arg).append(' ');
+                }
+                
+                byte[] stdout = sb.toString().getBytes("UTF-8");
+                byte[] stderr = workDir.getBytes("UTF-8");
+                out.writeByte(MavenDaemonProtocol.FRAME_STDOUT);
+                out.writeInt(stdout.length);
+                out.write(stdout);
+                out.writeByte(MavenDaemonProtocol.FRAME_STDERR);
+                out.writeInt(stderr.length);
+                out.write(stderr);
+                out.writeByte(MavenDaemonProtocol.FRAME_EXIT);
+                out.writeInt(n);
+                out.flush();
+                socket.close();
+            }
+        }
+    }
+    
+    private MavenDaemon daemon = new MavenDaemon(new String[] {
+        new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+        "-cp",
+        System.getProperty("java.class.path"),
+        FakeDaemonMain.class.getName()
+    });
+    
+    @After
+    public void tearDown() {
+        daemon.shutdown();
+    }
+    
+    @Test
+    public void itShouldRunBuildsInTheSameDaemon() throws Exception {
+        File workDir = new File(".").getAbsoluteFile();
+        
+        for (int i = 0; i < 3; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            int status = daemon.newBuild(workDir, Arrays.asList("-Dfoo=bar", "test")).run(out, err);
+            
+            assertEquals(2, status);
+            assertEquals("-Dfoo=bar test ", out.toString("UTF-8"));
+            assertEquals(workDir.getPath(), err.toString("UTF-8"));
+        }
+        assertFalse(daemon.isBroken());
+    }
+    
+    @Test
+    public void cancellingARunningBuildShouldKillTheDaemonAndInterruptTheBuild() throws Exception {
+        final MavenDaemon.Build build = daemon.newBuild(new File("."), Arrays.asList("hang"));
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        final CountDownLatch buildStarted = new CountDownLatch(1);
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                buildStarted.countDown();
+            }
+        };
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    build.run(out, new ByteArrayOutputStream());
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        };
+        thread.start();
+        assertTrue(buildStarted.await(30, TimeUnit.SECONDS));
+        build.cancel();
+        thread.join(5000);
+        
+        assertFalse(thread.isAlive());
+        assertTrue(thrown.get() instanceof InterruptedException);
+        
+        // The next build starts a new daemon
+        int status = daemon.newBuild(new File("."), Arrays.asList("x")).run(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+        assertEquals(1, status);
+    }
+    
+    @Test
+    public void itShouldReportAnUnavailableDaemonWhenItFailsToStart() throws Exception {
+        MavenDaemon bad = new MavenDaemon(new String[] { "sh", "-c", "echo nope; exit 1" });
+        try {
+            bad.newBuild(new File("."), Arrays.asList("test")).run(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+            fail("Expected UnavailableException");
+        } catch (MavenDaemon.UnavailableException e) {
+        }
+        assertTrue(bad.isBroken());
+    }
+}
@@ -0,0 +1,37 @@
+package fi.helsinki.cs.tmc.utilities.metrics;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    
+    @Test
+    public void itShouldTrackCountTotalAndMax() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1000000);
+        h.record(3000000);
+        
+        assertEquals(2, h.getCount());
+        assertEquals(4000000, h.getTotalNanos());
+        assertEquals(3000000, h.getMaxNanos());
+        assertEquals(2000000, h.getAverageNanos());
+    }
+    
+    @Test
+    public void percentilesShouldBeWithinABucketOfTheTrueValue() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 99; ++i) {
+            h.record(1000000); // 1 ms
+        }
+        h.record(500000000); // 500 ms
+        
+        long p50 = h.getPercentileNanos(50);
+        assertTrue(p50 >= 1000000 && p50 <= 2 * 1000000);
+        assertEquals(500000000, h.getPercentileNanos(100));
+    }
+    
+    @Test
+    public void anEmptyHistogramShouldReportZero() {
+        assertEquals(0, new LatencyHistogram().getPercentileNanos(99));
+    }
+}
@@ -0,0 +1,44 @@
+package fi.helsinki.cs.tmc.utilities.metrics;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+    
+    private Metrics metrics;
+    
+    @Before
+    public void setUp() {
+        metrics = new Metrics();
+    }
+    
+    @Test
+    public void itShouldReturnTheSameMetricForTheSameName() {
+        assertSame(metrics.counter("a"), metrics.counter("a"));
+        assertSame(metrics.histogram("a"), metrics.histogram("a"));
+        assertNotSame(metrics.counter("a"), metrics.counter("b"));
+    }
+    
+    @Test
+    public void itShouldExportAllMetricsAsJson() {
+        metrics.counter("http.failed").add(3);
+        metrics.histogram("http.request").record(2000000);
+        metrics.register("queue.length", new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        
+        JsonObject json = new JsonParser().parse(metrics.toJson()).getAsJsonObject();
+        
+        assertEquals(3, json.getAsJsonObject("counters").get("http.failed").getAsLong());
+        assertEquals(7, json.getAsJsonObject("gauges").get("queue.length").getAsLong());
+        JsonObject request = json.getAsJsonObject("histograms").getAsJsonObject("http.request");
+        assertEquals(1, request.get("count").getAsLong());
+        assertEquals(2.0, request.get("max_ms").getAsDouble(), 0.001);
+    }
+}
@@ -0,0 +1,53 @@
+package fi.helsinki.cs.tmc.utilities.process;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProcessRunnerGroupTest {
+    
+    private ProcessRunner runner(String script) {
+        String[] command = { "sh", "-c", script };
+        return new ProcessRunner(command, new File("."), null);
+    }
+    
+    @Test
+    public void itShouldReportEachProcessAsSoonAsItFinishes() throws Exception {
+        final List<Integer> finished = Collections.synchronizedList(new ArrayList<Integer>());
+        ProcessRunnerGroup group = new ProcessRunnerGroup(Arrays.asList(
+                runner("sleep 1; echo slow"),
+                runner("echo fast")));
+        group.setListener(new ProcessRunnerGroup.Listener() {
+            @Override
+            public void processFinished(int index, ProcessResult result) {
+                finished.add(index);
+            }
+        });
+        
+        List<ProcessResult> results = group.call();
+        
+        assertEquals(Arrays.asList(1, 0), finished);
+        assertEquals("slow\n", results.get(0).output);
+        assertEquals("fast\n", results.get(1).output);
+        assertTrue(group.getElapsedMillis(0) >= group.getElapsedMillis(1));
+    }
+    
+    @Test
+    public void aNonZeroExitShouldKillTheOthers() throws Exception {
+        ProcessRunnerGroup group = new ProcessRunnerGroup(Arrays.asList(
+                runner("sleep 60"),
+                runner("echo oops >&2; exit 3")));
+        
+        long startTime = System.currentTimeMillis();
+        List<ProcessResult> results = group.call();
+        
+        assertTrue(System.currentTimeMillis() - startTime < 30000);
+        assertEquals(1, results.size());
+        assertEquals(3, results.get(0).statusCode);
+        assertEquals("oops\n", results.get(0).errorOutput);
+    }
+}
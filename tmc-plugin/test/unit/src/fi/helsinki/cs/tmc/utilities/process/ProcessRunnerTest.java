@@ -0,0 +1,98 @@
+package fi.helsinki.cs.tmc.utilities.process;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProcessRunnerTest {
+    
+    private ProcessRunner runner(String script) {
+        String[] command = { "sh", "-c", script };
+        return new ProcessRunner(command, new File("."), null);
+    }
+    
+    @Test
+    public void itShouldCaptureStdoutAndStderrSeparately() throws Exception {
+        ProcessResult result = runner("echo out; echo err 1>&2; exit 3").call();
+        
+        assertEquals(3, result.statusCode);
+        assertEquals("out\n", result.output);
+        assertEquals("err\n", result.errorOutput);
+    }
+    
+    @Test
+    public void itShouldKeepOnlyTheEndOfLongOutput() throws Exception {
+        ProcessResult result = runner("i=0; while [ $i -lt 1000 ]; do echo line$i; i=$((i+1)); done")
+                .setMaxCapturedBytes(8)
+                .call();
+        
+        assertTrue(result.output.startsWith("["));
+        assertTrue(result.output.endsWith("line999\n"));
+        assertTrue(result.output.length() < 100);
+    }
+    
+    @Test
+    public void itShouldStreamOutputLineByLine() throws Exception {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+        runner("echo a; echo b 1>&2; printf c")
+                .setLineListener(new ProcessRunner.LineListener() {
+                    @Override
+                    public void lineRead(String line, boolean errorOutput) {
+                        lines.add((errorOutput ? "err:" : "out:") + line);
+                    }
+                })
+                .call();
+        
+        assertEquals(3, lines.size());
+        assertTrue(lines.contains("out:a"));
+        assertTrue(lines.contains("err:b"));
+        assertTrue(lines.contains("out:c"));
+    }
+    
+    @Test
+    public void cancellingShouldKillTheProcess() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final ProcessRunner runner = runner("echo started; sleep 60");
+        runner.setLineListener(new ProcessRunner.LineListener() {
+            @Override
+            public void lineRead(String line, boolean errorOutput) {
+                started.countDown();
+            }
+        });
+        
+        final Exception[] thrown = new Exception[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    runner.call();
+                } catch (Exception ex) {
+                    thrown[0] = ex;
+                }
+            }
+        };
+        thread.start();
+        
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        runner.cancel();
+        thread.join(10000);
+        
+        assertFalse(thread.isAlive());
+        assertTrue(thrown[0] instanceof InterruptedException);
+    }
+    
+    @Test
+    public void itShouldNotWaitForeverForABackgroundChildThatKeepsTheOutputOpen() throws Exception {
+        long start = System.currentTimeMillis();
+        ProcessResult result = runner("sleep 30 2>/dev/null & echo done").call();
+        
+        assertEquals(0, result.statusCode);
+        assertEquals("done\n", result.output);
+        assertTrue(System.currentTimeMillis() - start < 20000);
+    }
+}
@@ -0,0 +1,54 @@
+package fi.helsinki.cs.tmc.utilities.valrindmemorytest;
+
+import fi.helsinki.cs.tmc.utilities.process.ProcessResult;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ValgrindProbeTest {
+    
+    private static class FakeCommand implements Callable<ProcessResult> {
+        private final ProcessResult result;
+        private int calls = 0;
+        
+        public FakeCommand(ProcessResult result) {
+            this.result = result;
+        }
+        
+        @Override
+        public ProcessResult call() throws Exception {
+            calls++;
+            if (result == null) {
+                throw new IOException("No such file or directory");
+            }
+            return result;
+        }
+    }
+    
+    @Test
+    public void itShouldRunValgrindOnlyOnce() {
+        FakeCommand command = new FakeCommand(new ProcessResult(0, "valgrind-3.10.0\n", ""));
+        ValgrindProbe probe = new ValgrindProbe(command);
+        
+        assertTrue(probe.isAvailable());
+        assertTrue(probe.isAvailable());
+        assertEquals(1, command.calls);
+    }
+    
+    @Test
+    public void itShouldRememberThatValgrindIsMissing() {
+        FakeCommand command = new FakeCommand(null);
+        ValgrindProbe probe = new ValgrindProbe(command);
+        
+        assertFalse(probe.isAvailable());
+        assertFalse(probe.isAvailable());
+        assertEquals(1, command.calls);
+    }
+    
+    @Test
+    public void aFailingValgrindShouldCountAsMissing() {
+        ValgrindProbe probe = new ValgrindProbe(new FakeCommand(new ProcessResult(1, "", "error")));
+        assertFalse(probe.isAvailable());
+    }
+}
@@ -0,0 +1,45 @@
+package fi.helsinki.cs.tmc.utilities.valrindmemorytest;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ValgrindSummaryTest {
+    
+    @Test
+    public void itShouldReadTheSummaryLines() {
+        ValgrindSummary summary = ValgrindSummary.parse(
+                "==12== HEAP SUMMARY:\n" +
+                "==12==     in use at exit: 1,124 bytes in 3 blocks\n" +
+                "==12==   total heap usage: 1,624 allocs, 237 frees, 12,345 bytes allocated\n" +
+                "==12== 124 bytes in 3 blocks are definitely lost in loss record 1 of 1\n" +
+                "==12== LEAK SUMMARY:\n" +
+                "==12==    definitely lost: 1,124 bytes in 3 blocks\n" +
+                "==12==    indirectly lost: 16 bytes in 1 blocks\n" +
+                "==12== ERROR SUMMARY: 2 errors from 1 contexts (suppressed: 0 from 0)");
+        
+        assertEquals(2, summary.getErrors());
+        assertEquals(1124, summary.getDefinitelyLostBytes());
+        assertEquals(16, summary.getIndirectlyLostBytes());
+        assertEquals(1624, summary.getAllocs());
+        assertEquals(237, summary.getFrees());
+        assertEquals(12345, summary.getBytesAllocated());
+    }
+    
+    @Test
+    public void missingValuesShouldBeMinusOne() {
+        ValgrindSummary summary = ValgrindSummary.parse("==1== nothing here");
+        
+        assertEquals(-1, summary.getErrors());
+        assertEquals(-1, summary.getDefinitelyLostBytes());
+        assertEquals(-1, summary.getBytesAllocated());
+    }
+    
+    @Test
+    public void addLineShouldTellWhetherTheLineWasASummaryLine() {
+        ValgrindSummary summary = new ValgrindSummary();
+        
+        assertTrue(summary.addLine("==1== ERROR SUMMARY: 0 errors from 0 contexts"));
+        assertFalse(summary.addLine("==1== Invalid read of size 4"));
+        assertEquals(0, summary.getErrors());
+    }
+}
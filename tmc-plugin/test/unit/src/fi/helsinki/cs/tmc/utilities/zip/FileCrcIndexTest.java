@@ -0,0 +1,56 @@
+package fi.helsinki.cs.tmc.utilities.zip;
+
+import fi.helsinki.cs.tmc.testing.TempTestDir;
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileCrcIndexTest {
+    private TempTestDir tempDir;
+    private FileCrcIndex index;
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new TempTestDir();
+        index = new FileCrcIndex();
+        file = new File(tempDir.get(), "one.txt");
+        FileUtils.write(file, "one");
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        tempDir.destroy();
+    }
+    
+    @Test
+    public void itShouldTrustEntriesRecordedWellAfterTheFileWasModified() {
+        file.setLastModified(System.currentTimeMillis() - 10000);
+        index.put(file, 123);
+        
+        assertTrue(index.matches(file, 3, 123));
+        assertFalse(index.matches(file, 3, 456));
+    }
+    
+    @Test
+    public void itShouldNotTrustEntriesRecordedRightAfterTheFileWasModified() {
+        index.put(file, 123);
+        
+        assertFalse(index.matches(file, 3, 123));
+    }
+    
+    @Test
+    public void itShouldNotTrustEntriesAfterTheFileIsModified() throws IOException {
+        long modTime = System.currentTimeMillis() - 10000;
+        file.setLastModified(modTime);
+        index.put(file, 123);
+        
+        FileUtils.write(file, "two");
+        file.setLastModified(modTime + 1000);
+        assertFalse(index.matches(file, 3, 123));
+    }
+}
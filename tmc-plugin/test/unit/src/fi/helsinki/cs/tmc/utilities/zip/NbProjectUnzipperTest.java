@@ -1,12 +1,18 @@
 package fi.helsinki.cs.tmc.utilities.zip;
 
 import fi.helsinki.cs.tmc.testing.TempTestDir;
+import fi.helsinki.cs.tmc.utilities.HashUtils;
 import fi.helsinki.cs.tmc.utilities.zip.NbProjectUnzipper.Result;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.io.FileUtils;
@@ -263,4 +269,214 @@ public class NbProjectUnzipperTest {
         assertEquals(1, result.skippedFiles.size());
         assertEquals(1, result.deletedFiles.size());
     }
+    
+    @Test
+    public void itCanApplyChangesToIndividualFiles() throws IOException {
+        new File(tempDir.getPath() + "/dest/sub").mkdirs();
+        File preservedFile = new File(tempDir.getPath() + "/dest/one.txt");
+        FileUtils.write(preservedFile, "This should remain");
+        File overwrittenFile = new File(tempDir.getPath() + "/dest/sub/two.txt");
+        FileUtils.write(overwrittenFile, "This should be overwritten");
+        File deletedFile = new File(tempDir.getPath() + "/dest/three.txt");
+        FileUtils.write(deletedFile, "This should be deleted");
+        File newFile = new File(tempDir.getPath() + "/dest/new/four.txt");
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayOverwrite("one.txt")).thenReturn(false);
+        when(overwriting.mayOverwrite("sub" + fsep + "two.txt")).thenReturn(true);
+        when(overwriting.mayDelete("three.txt")).thenReturn(true);
+        
+        Map<String, byte[]> changes = new HashMap<String, byte[]>();
+        changes.put("one.txt", "one".getBytes("UTF-8"));
+        changes.put("sub/two.txt", "two".getBytes("UTF-8"));
+        changes.put("new/four.txt", "four".getBytes("UTF-8"));
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting);
+        Result result = unzipper.applyFileChanges(changes, Arrays.asList("three.txt", "nonexistent.txt"), inTempDir("dest"));
+        
+        assertEquals("This should remain", FileUtils.readFileToString(preservedFile));
+        assertEquals("two", FileUtils.readFileToString(overwrittenFile));
+        assertEquals("four", FileUtils.readFileToString(newFile));
+        assertFalse(deletedFile.exists());
+        
+        assertEquals(Arrays.asList("one.txt"), result.skippedFiles);
+        assertEquals(Arrays.asList("sub" + fsep + "two.txt"), result.overwrittenFiles);
+        assertEquals(Arrays.asList("new" + fsep + "four.txt"), result.newFiles);
+        assertEquals(Arrays.asList("three.txt"), result.deletedFiles);
+    }
+    
+    @Test
+    public void itShouldRejectChangesOutsideTheProjectDirectory() throws IOException {
+        new File(tempDir.getPath() + "/dest").mkdirs();
+        File outsideFile = new File(tempDir.getPath() + "/outside.txt");
+        FileUtils.write(outsideFile, "This should remain");
+        File insideFile = new File(tempDir.getPath() + "/dest/one.txt");
+        
+        Map<String, byte[]> changes = new HashMap<String, byte[]>();
+        changes.put("one.txt", "one".getBytes("UTF-8"));
+        changes.put("sub/../../outside.txt", "overwritten".getBytes("UTF-8"));
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper();
+        try {
+            unzipper.applyFileChanges(changes, Arrays.<String>asList(), inTempDir("dest"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        try {
+            unzipper.applyFileChanges(new HashMap<String, byte[]>(), Arrays.asList("../outside.txt"), inTempDir("dest"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        
+        assertEquals("This should remain", FileUtils.readFileToString(outsideFile));
+        assertFalse(insideFile.exists());
+    }
+    
+    @Test
+    public void itCanComputeHashesOfTheFilesInTheProject() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        writeFileToZip("dir1/sub/one.txt", "one");
+        zipOut.close();
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper();
+        Map<String, String> hashes = unzipper.computeFileHashes(zipBuffer.toByteArray());
+        
+        assertEquals(1, hashes.size());
+        assertEquals(HashUtils.sha1Hex("one".getBytes("UTF-8")), hashes.get("sub/one.txt"));
+    }
+    
+    @Test
+    public void itShouldNoticeChangesToPreviouslyExtractedFilesEvenIfTheirSizeIsTheSame() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        writeFileToZip("dir1/one.txt", "one");
+        zipOut.close();
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayOverwrite("one.txt")).thenReturn(true);
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting, new FileCrcIndex());
+        
+        Result result = unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"));
+        assertEquals(Arrays.asList("one.txt"), result.newFiles);
+        
+        result = unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"));
+        assertEquals(Arrays.asList("one.txt"), result.unchangedFiles);
+        
+        // Written within the timestamp resolution of the previous write
+        File file = inTempDir("dest/one.txt");
+        long oldModTime = file.lastModified();
+        FileUtils.write(file, "two");
+        file.setLastModified(oldModTime);
+        
+        result = unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"));
+        assertEquals(Arrays.asList("one.txt"), result.overwrittenFiles);
+        assertEquals("one", FileUtils.readFileToString(file));
+    }
+    
+    @Test
+    public void itShouldNotReportNonEmptyDirectoriesAsDeletedInDryRunMode() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        zipOut.close();
+        
+        new File(tempDir.getPath() + "/dest/stuff/deleted").mkdirs();
+        File file = new File(tempDir.getPath() + "/dest/stuff/deleted/two.txt");
+        FileUtils.write(file, "This would be deleted if not in dry run mode");
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayDelete(anyString())).thenReturn(true);
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting);
+        Result result = unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"), false);
+        
+        assertTrue(file.exists());
+        assertEquals(Arrays.asList("stuff" + fsep + "deleted" + fsep + "two.txt"), result.deletedFiles);
+        assertTrue(result.skippedDeletingFiles.contains("stuff" + fsep + "deleted"));
+        assertTrue(result.skippedDeletingFiles.contains("stuff"));
+    }
+    
+    @Test
+    public void itShouldCheckAndExtractManyFilesInParallel() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        for (int i = 0; i < 60; ++i) {
+            writeFileToZip("dir1/sub" + (i % 3) + "/file" + i + ".txt", "content " + i);
+        }
+        zipOut.close();
+        
+        for (int i = 0; i < 60; i += 2) { // Leave every other file new
+            String content = (i % 4 == 0) ? "content " + i : "old content " + i;
+            FileUtils.write(inTempDir("dest/sub" + (i % 3) + "/file" + i + ".txt"), content);
+        }
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayOverwrite(anyString())).thenReturn(true);
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting, new FileCrcIndex());
+        Result result = unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"));
+        
+        assertEquals(30, result.newFiles.size());
+        assertEquals(15, result.unchangedFiles.size());
+        assertEquals(15, result.overwrittenFiles.size());
+        for (int i = 0; i < 60; ++i) {
+            File file = inTempDir("dest/sub" + (i % 3) + "/file" + i + ".txt");
+            assertEquals("content " + i, FileUtils.readFileToString(file));
+        }
+    }
+    
+    @Test
+    public void itShouldPropagateExceptionsFromTheExtractionThreads() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        writeFileToZip("dir1/one.txt", "one");
+        writeFileToZip("dir1/two.txt", "two");
+        zipOut.close();
+        
+        new File(tempDir.getPath() + "/dest/two.txt").mkdirs(); // Can't be overwritten with a file
+        
+        NbProjectUnzipper.OverwritingDecider overwriting = mock(NbProjectUnzipper.OverwritingDecider.class);
+        when(overwriting.mayOverwrite(anyString())).thenReturn(true);
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting, new FileCrcIndex());
+        try {
+            unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"));
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+    }
+    
+    @Test
+    public void itShouldConsultTheOverwritingDeciderInZipOrder() throws IOException {
+        writeDirToZip("dir1/");
+        writeDirToZip("dir1/nbproject/");
+        List<String> expectedOrder = new ArrayList<String>();
+        for (int i = 0; i < 30; ++i) {
+            String name = "file" + ((i * 7) % 30) + ".txt";
+            writeFileToZip("dir1/" + name, "new content");
+            FileUtils.write(inTempDir("dest/" + name), "old content");
+            expectedOrder.add(name);
+        }
+        zipOut.close();
+        
+        final List<String> calls = new ArrayList<String>();
+        NbProjectUnzipper.OverwritingDecider overwriting = new NbProjectUnzipper.OverwritingDecider() {
+            @Override
+            public boolean mayOverwrite(String relPath) {
+                calls.add(relPath);
+                return true;
+            }
+
+            @Override
+            public boolean mayDelete(String relPath) {
+                return false;
+            }
+        };
+        
+        NbProjectUnzipper unzipper = new NbProjectUnzipper(overwriting, new FileCrcIndex());
+        Result result = unzipper.unzipProject(zipBuffer.toByteArray(), inTempDir("dest"));
+        
+        assertEquals(expectedOrder, calls);
+        assertEquals(expectedOrder, result.overwrittenFiles);
+    }
 }